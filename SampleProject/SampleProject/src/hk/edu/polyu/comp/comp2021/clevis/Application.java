@@ -1,7 +1,16 @@
 package hk.edu.polyu.comp.comp2021.clevis;
 
 import hk.edu.polyu.comp.comp2021.clevis.model.Clevis;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.RTree;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialHashGrid;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialIndex;
+import hk.edu.polyu.comp.comp2021.clevis.model.operations.IntersectionPair;
+import hk.edu.polyu.comp.comp2021.clevis.model.operations.ShapeQueryHandler;
+import hk.edu.polyu.comp.comp2021.clevis.model.persistence.Journal;
+import hk.edu.polyu.comp.comp2021.clevis.model.persistence.MappedSnapshot;
 import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeStore;
+import hk.edu.polyu.comp.comp2021.clevis.model.util.ShapeListFormatter;
 
 import javax.swing.SwingUtilities;
 import java.io.*;
@@ -14,14 +23,25 @@ import java.util.*;
  */
 public class Application {
 
-    private static List<String> commandLog = new ArrayList<>();
-    private static int commandIndex = 0;
+    // Batch mode: no prompts or confirmations, only query results and errors
+    private static boolean quiet = false;
 
     /**
      * Main entry point for the Clevis application.
      * Parses command-line arguments for log file paths and optional GUI mode.
      *
-     * @param args Command-line arguments: -html <htmlFile> -txt <txtFile> [-gui]
+     * With -script, commands are read from the file instead of stdin, and only
+     * query results and errors are printed, through a buffered stream.
+     *
+     * Commands are appended to both logs as they are entered; -fsync chooses when
+     * the log files are forced to disk: none, batch or close (the default).
+     * With -open, a snapshot written by save is memory-mapped instead of loaded,
+     * and only the query commands are available. With -journal, the drawing is
+     * recovered from and journaled to the given directory. With -grid, the drawing
+     * is indexed by a uniform grid of the given cell size instead of an R-tree.
+     *
+     * @param args Command-line arguments: -html <htmlFile> -txt <txtFile> [-gui] [-script <file>]
+     *             [-fsync <policy>] [-open <snapshot>] [-journal <dir>] [-grid <cellSize>]
      */
     public static void main(String[] args) {
         Locale.setDefault(Locale.US);
@@ -37,12 +57,17 @@ public class Application {
 
         // Parse command-line arguments for log file paths (REQ1)
         if (args.length < 4) {
-            System.out.println("Usage: java hk.edu.polyu.comp.comp2021.clevis.Application -html <htmlFile> -txt <txtFile> [-gui]");
+            System.out.println("Usage: java hk.edu.polyu.comp.comp2021.clevis.Application -html <htmlFile> -txt <txtFile> [-gui] [-script <file>] [-fsync none|batch|close] [-open <snapshot>] [-journal <dir>] [-grid <cellSize>]");
             return;
         }
 
         String htmlPath = null;
         String txtPath = null;
+        String scriptPath = null;
+        String openPath = null;
+        String journalPath = null;
+        double cellSize = 0;
+        CommandLogWriter.SyncPolicy syncPolicy = CommandLogWriter.SyncPolicy.CLOSE;
 
         // Parse arguments
         for (int i = 0; i < args.length - 1; i++) {
@@ -50,223 +75,337 @@ public class Application {
                 htmlPath = args[i + 1];
             } else if ("-txt".equalsIgnoreCase(args[i])) {
                 txtPath = args[i + 1];
+            } else if ("-script".equalsIgnoreCase(args[i])) {
+                scriptPath = args[i + 1];
+            } else if ("-journal".equalsIgnoreCase(args[i])) {
+                journalPath = args[i + 1];
+            } else if ("-grid".equalsIgnoreCase(args[i])) {
+                try {
+                    cellSize = Double.parseDouble(args[i + 1]);
+                } catch (NumberFormatException e) {
+                    cellSize = -1;
+                }
+                if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+                    System.out.println("Error: -grid needs a positive cell size.");
+                    return;
+                }
+            } else if ("-open".equalsIgnoreCase(args[i])) {
+                openPath = args[i + 1];
+            } else if ("-fsync".equalsIgnoreCase(args[i])) {
+                try {
+                    syncPolicy = CommandLogWriter.SyncPolicy.valueOf(args[i + 1].toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Error: -fsync must be none, batch or close.");
+                    return;
+                }
             }
         }
 
         if (htmlPath == null || txtPath == null) {
             System.out.println("Error: Both -html and -txt arguments are required.");
-            System.out.println("Usage: java hk.edu.polyu.comp.comp2021.clevis.Application -html <htmlFile> -txt <txtFile> [-gui]");
+            System.out.println("Usage: java hk.edu.polyu.comp.comp2021.clevis.Application -html <htmlFile> -txt <txtFile> [-gui] [-script <file>] [-fsync none|batch|close] [-open <snapshot>] [-journal <dir>] [-grid <cellSize>]");
             return;
         }
 
-        // Initialize the Clevis model
-        Clevis clevis = new Clevis();
-        ViewerFrame viewer = null;
+        MappedSnapshot archive = null;
+        if (openPath != null) {
+            try {
+                archive = MappedSnapshot.open(java.nio.file.Paths.get(openPath));
+            } catch (IOException e) {
+                System.out.println("Error: Cannot open snapshot: " + e.getMessage());
+                return;
+            }
+        }
+
+        // Initialize the Clevis model, recovering it from the journal if there is one
+        Clevis clevis;
+        Journal journal = null;
+        SpatialIndex index = cellSize > 0 ? new SpatialHashGrid(cellSize) : new RTree();
+        if (journalPath == null) {
+            clevis = new Clevis(index);
+        } else {
+            try {
+                journal = Journal.open(java.nio.file.Paths.get(journalPath),
+                        Journal.DEFAULT_CHECKPOINT_INTERVAL, false);
+                clevis = journal.recover(index);
+            } catch (IOException e) {
+                System.out.println("Error: Cannot recover journal: " + e.getMessage());
+                closeQuietly(journal);
+                closeQuietly(archive);
+                return;
+            }
+        }
+
+        Reader input;
+        if (scriptPath == null) {
+            input = new InputStreamReader(System.in);
+        } else {
+            try {
+                input = new FileReader(scriptPath);
+            } catch (FileNotFoundException e) {
+                System.out.println("Error: Cannot open script: " + scriptPath);
+                closeQuietly(archive);
+                closeQuietly(journal);
+                return;
+            }
+        }
+        CommandLogWriter log;
+        try {
+            log = new CommandLogWriter(txtPath, htmlPath, CommandLogWriter.DEFAULT_CAPACITY, syncPolicy);
+        } catch (IOException e) {
+            System.out.println("Error: Cannot create log files: " + e.getMessage());
+            closeQuietly(input);
+            closeQuietly(archive);
+            closeQuietly(journal);
+            return;
+        }
+        quiet = scriptPath != null;
+        PrintStream console = System.out;
+        if (quiet) {
+            // Results reach the console in large chunks instead of one write per line
+            System.setOut(new PrintStream(new BufferedOutputStream(console, 1 << 16), false));
+        }
 
         // Initialize GUI if requested (BON1)
-        if (useGui) {
-            ViewerFrame vf = new ViewerFrame(clevis);
-            viewer = vf;
-            final ViewerFrame finalViewer = viewer;
-            SwingUtilities.invokeLater(() -> finalViewer.setVisible(true));
+        final ViewerFrame viewer = useGui ? new ViewerFrame(clevis) : null;
+        if (viewer != null) {
+            SwingUtilities.invokeLater(() -> viewer.setVisible(true));
         }
 
         // Display available commands
-        System.out.println("=== Clevis Vector Graphics Tool ===");
-        System.out.println("Available commands:");
-        System.out.println("  rectangle <name> <x> <y> <width> <height>");
-        System.out.println("  line <name> <x1> <y1> <x2> <y2>");
-        System.out.println("  circle <name> <cx> <cy> <radius>");
-        System.out.println("  square <name> <x> <y> <sideLength>");
-        System.out.println("  group <groupName> <shape1> <shape2> ...");
-        System.out.println("  ungroup <groupName>");
-        System.out.println("  delete <shapeName>");
-        System.out.println("  boundingbox <shapeName>");
-        System.out.println("  move <shapeName> <dx> <dy>");
-        System.out.println("  shapeAt <x> <y>");
-        System.out.println("  intersect <shape1> <shape2>");
-        System.out.println("  list <shapeName>");
-        System.out.println("  listAll");
-        System.out.println("  quit");
-        System.out.println("=====================================\n");
-
-        final ViewerFrame finalViewer = viewer;
+        if (!quiet) {
+            System.out.println("=== Clevis Vector Graphics Tool ===");
+            System.out.println("Available commands:");
+            System.out.println("  rectangle <name> <x> <y> <width> <height>");
+            System.out.println("  line <name> <x1> <y1> <x2> <y2>");
+            System.out.println("  circle <name> <cx> <cy> <radius>");
+            System.out.println("  square <name> <x> <y> <sideLength>");
+            System.out.println("  group <groupName> <shape1> <shape2> ...");
+            System.out.println("  ungroup <groupName>");
+            System.out.println("  flatten <groupName>");
+            System.out.println("  delete <shapeName>");
+            System.out.println("  deleteMany <shape1> <shape2> ...");
+            System.out.println("  undo");
+            System.out.println("  redo");
+            System.out.println("  boundingbox <shapeName>");
+            System.out.println("  move <shapeName> <dx> <dy>");
+            System.out.println("  shapeAt <x> <y>");
+            System.out.println("  shapeAtBatch <pointFile> [parallelism]");
+            System.out.println("  shapesIn <x> <y> <w> <h> [contained|touching]");
+            System.out.println("  intersect <shape1> <shape2>");
+            System.out.println("  intersectAll [parallelism]");
+            System.out.println("  list <shapeName>");
+            System.out.println("  listAll");
+            System.out.println("  save <file>");
+            System.out.println("  load <file>");
+            System.out.println("  export png <file> <width> <height>");
+            System.out.println("  export svg <file>");
+            System.out.println("  quit");
+            System.out.println("=====================================\n");
+        }
 
         // Main command processing loop
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(System.in))) {
+        CommandTokenizer tokens = new CommandTokenizer();
+        try (BufferedReader br = new BufferedReader(input, 1 << 16)) {
             String line;
-            System.out.print("> ");
+            prompt();
 
             while ((line = br.readLine()) != null) {
-                line = line.trim();
-
                 // Skip empty lines
-                if (line.isEmpty()) {
-                    System.out.print("> ");
+                if (tokens.tokenize(line) == 0) {
+                    prompt();
                     continue;
                 }
 
                 // Log the command (REQ1)
-                commandIndex++;
-                commandLog.add(line);
+                log.append(line.trim());
 
-                // Parse and execute command
-                String[] tokens = line.split("\\s+");
-                String command = tokens[0].toLowerCase(Locale.ROOT);
+                // Execute command
+                Command command = tokens.command();
+                if (archive != null && !command.isReadOnly()) {
+                    System.out.println("Error: The opened snapshot is read-only.");
+                    prompt();
+                    continue;
+                }
 
                 try {
-                    boolean shouldRefreshGui = false;
-
+                    // An open viewer follows the drawing through its change events
                     switch (command) {
-                        case "rectangle": // REQ2
-                            if (tokens.length != 6) {
+                        case RECTANGLE: // REQ2
+                            if (tokens.count() != 6) {
                                 System.out.println("Error: Usage: rectangle <name> <x> <y> <width> <height>");
                                 break;
                             }
                             try {
-                                String name = tokens[1];
-                                double x = Double.parseDouble(tokens[2]);
-                                double y = Double.parseDouble(tokens[3]);
-                                double w = Double.parseDouble(tokens[4]);
-                                double h = Double.parseDouble(tokens[5]);
+                                String name = tokens.text(1);
+                                double x = tokens.number(2);
+                                double y = tokens.number(3);
+                                double w = tokens.number(4);
+                                double h = tokens.number(5);
                                 clevis.rectangle(name, x, y, w, h);
-                                System.out.println("Rectangle '" + name + "' created successfully.");
-                                shouldRefreshGui = true;
+                                confirm("Rectangle '" + name + "' created successfully.");
                             } catch (NumberFormatException e) {
                                 System.out.println("Error: Invalid number format. Please enter valid numeric values.");
                             }
                             break;
 
-                        case "line": // REQ3
-                            if (tokens.length != 6) {
+                        case LINE: // REQ3
+                            if (tokens.count() != 6) {
                                 System.out.println("Error: Usage: line <name> <x1> <y1> <x2> <y2>");
                                 break;
                             }
                             try {
-                                String name = tokens[1];
-                                double x1 = Double.parseDouble(tokens[2]);
-                                double y1 = Double.parseDouble(tokens[3]);
-                                double x2 = Double.parseDouble(tokens[4]);
-                                double y2 = Double.parseDouble(tokens[5]);
+                                String name = tokens.text(1);
+                                double x1 = tokens.number(2);
+                                double y1 = tokens.number(3);
+                                double x2 = tokens.number(4);
+                                double y2 = tokens.number(5);
                                 clevis.line(name, x1, y1, x2, y2);
-                                System.out.println("Line '" + name + "' created successfully.");
-                                shouldRefreshGui = true;
+                                confirm("Line '" + name + "' created successfully.");
                             } catch (NumberFormatException e) {
                                 System.out.println("Error: Invalid number format. Please enter valid numeric values.");
                             }
                             break;
 
-                        case "circle": // REQ4
-                            if (tokens.length != 5) {
+                        case CIRCLE: // REQ4
+                            if (tokens.count() != 5) {
                                 System.out.println("Error: Usage: circle <name> <cx> <cy> <radius>");
                                 break;
                             }
                             try {
-                                String name = tokens[1];
-                                double cx = Double.parseDouble(tokens[2]);
-                                double cy = Double.parseDouble(tokens[3]);
-                                double r = Double.parseDouble(tokens[4]);
+                                String name = tokens.text(1);
+                                double cx = tokens.number(2);
+                                double cy = tokens.number(3);
+                                double r = tokens.number(4);
                                 clevis.circle(name, cx, cy, r);
-                                System.out.println("Circle '" + name + "' created successfully.");
-                                shouldRefreshGui = true;
+                                confirm("Circle '" + name + "' created successfully.");
                             } catch (NumberFormatException e) {
                                 System.out.println("Error: Invalid number format. Please enter valid numeric values.");
                             }
                             break;
 
-                        case "square": // REQ5
-                            if (tokens.length != 5) {
+                        case SQUARE: // REQ5
+                            if (tokens.count() != 5) {
                                 System.out.println("Error: Usage: square <name> <x> <y> <sideLength>");
                                 break;
                             }
                             try {
-                                String name = tokens[1];
-                                double x = Double.parseDouble(tokens[2]);
-                                double y = Double.parseDouble(tokens[3]);
-                                double s = Double.parseDouble(tokens[4]);
+                                String name = tokens.text(1);
+                                double x = tokens.number(2);
+                                double y = tokens.number(3);
+                                double s = tokens.number(4);
                                 clevis.square(name, x, y, s);
-                                System.out.println("Square '" + name + "' created successfully.");
-                                shouldRefreshGui = true;
+                                confirm("Square '" + name + "' created successfully.");
                             } catch (NumberFormatException e) {
                                 System.out.println("Error: Invalid number format. Please enter valid numeric values.");
                             }
                             break;
 
-                        case "group": // REQ6
-                            if (tokens.length < 3) {
+                        case GROUP: // REQ6
+                            if (tokens.count() < 3) {
                                 System.out.println("Error: Usage: group <groupName> <shape1> <shape2> ...");
                                 break;
                             }
                             try {
-                                String groupName = tokens[1];
+                                String groupName = tokens.text(1);
                                 List<String> shapeNames = new ArrayList<>();
-                                for (int i = 2; i < tokens.length; i++) {
-                                    shapeNames.add(tokens[i]);
+                                for (int i = 2; i < tokens.count(); i++) {
+                                    shapeNames.add(tokens.text(i));
                                 }
                                 clevis.group(groupName, shapeNames);
-                                System.out.println("Group '" + groupName + "' created successfully.");
-                                shouldRefreshGui = true;
+                                confirm("Group '" + groupName + "' created successfully.");
                             } catch (IllegalArgumentException e) {
                                 System.out.println("Error: " + e.getMessage());
                             }
                             break;
 
-                        case "ungroup": // REQ7
-                            if (tokens.length != 2) {
+                        case UNGROUP: // REQ7
+                            if (tokens.count() != 2) {
                                 System.out.println("Error: Usage: ungroup <groupName>");
                                 break;
                             }
                             try {
-                                String groupName = tokens[1];
+                                String groupName = tokens.text(1);
                                 clevis.ungroup(groupName);
-                                System.out.println("Group '" + groupName + "' ungrouped successfully.");
-                                shouldRefreshGui = true;
+                                confirm("Group '" + groupName + "' ungrouped successfully.");
+                            } catch (IllegalArgumentException e) {
+                                System.out.println("Error: " + e.getMessage());
+                            }
+                            break;
+
+                        case FLATTEN:
+                            if (tokens.count() != 2) {
+                                System.out.println("Error: Usage: flatten <groupName>");
+                                break;
+                            }
+                            try {
+                                String groupName = tokens.text(1);
+                                clevis.flatten(groupName);
+                                confirm("Group '" + groupName + "' flattened successfully.");
                             } catch (IllegalArgumentException e) {
                                 System.out.println("Error: " + e.getMessage());
                             }
                             break;
 
-                        case "delete": // REQ8
-                            if (tokens.length != 2) {
+                        case DELETE: // REQ8
+                            if (tokens.count() != 2) {
                                 System.out.println("Error: Usage: delete <shapeName>");
                                 break;
                             }
                             try {
-                                String shapeName = tokens[1];
+                                String shapeName = tokens.text(1);
                                 clevis.deleteShape(shapeName);
-                                System.out.println("Shape '" + shapeName + "' deleted successfully.");
-                                shouldRefreshGui = true;
+                                confirm("Shape '" + shapeName + "' deleted successfully.");
+                            } catch (IllegalArgumentException e) {
+                                System.out.println("Error: " + e.getMessage());
+                            }
+                            break;
+
+                        case DELETE_MANY: // REQ8 for many shapes
+                            if (tokens.count() < 2) {
+                                System.out.println("Error: Usage: deleteMany <shape1> <shape2> ...");
+                                break;
+                            }
+                            try {
+                                List<String> shapeNames = new ArrayList<>();
+                                for (int i = 1; i < tokens.count(); i++) {
+                                    shapeNames.add(tokens.text(i));
+                                }
+                                clevis.deleteMany(shapeNames);
+                                confirm(shapeNames.size() + " shapes deleted successfully.");
                             } catch (IllegalArgumentException e) {
                                 System.out.println("Error: " + e.getMessage());
                             }
                             break;
 
-                        case "boundingbox": // REQ9
-                            if (tokens.length != 2) {
+                        case BOUNDING_BOX: // REQ9
+                            if (tokens.count() != 2) {
                                 System.out.println("Error: Usage: boundingbox <shapeName>");
                                 break;
                             }
                             try {
-                                String shapeName = tokens[1];
-                                BoundingBox bbox = clevis.boundingBox(shapeName);
+                                String shapeName = tokens.text(1);
+                                BoundingBox bbox = archive == null ? clevis.boundingBox(shapeName)
+                                        : ShapeQueryHandler.boundingBox(archive, shapeName);
                                 System.out.println(bbox.toString());
                             } catch (IllegalArgumentException e) {
                                 System.out.println("Error: " + e.getMessage());
                             }
                             break;
 
-                        case "move": // REQ10
-                            if (tokens.length != 4) {
+                        case MOVE: // REQ10
+                            if (tokens.count() != 4) {
                                 System.out.println("Error: Usage: move <shapeName> <dx> <dy>");
                                 break;
                             }
                             try {
-                                String shapeName = tokens[1];
-                                double dx = Double.parseDouble(tokens[2]);
-                                double dy = Double.parseDouble(tokens[3]);
+                                String shapeName = tokens.text(1);
+                                double dx = tokens.number(2);
+                                double dy = tokens.number(3);
                                 clevis.move(shapeName, dx, dy);
-                                System.out.printf("Shape '%s' moved by (%.2f, %.2f).\n", shapeName, dx, dy);
-                                shouldRefreshGui = true;
+                                if (!quiet) {
+                                    System.out.printf("Shape '%s' moved by (%.2f, %.2f).\n", shapeName, dx, dy);
+                                }
                             } catch (NumberFormatException e) {
                                 System.out.println("Error: Invalid number format. Please enter valid numeric values.");
                             } catch (IllegalArgumentException e) {
@@ -274,15 +413,29 @@ public class Application {
                             }
                             break;
 
-                        case "shapeat": // REQ11
-                            if (tokens.length != 3) {
+                        case UNDO:
+                        case REDO:
+                            if (tokens.count() != 1) {
+                                System.out.println("Error: Usage: " + command.keyword());
+                                break;
+                            }
+                            if (command == Command.UNDO ? clevis.undo() : clevis.redo()) {
+                                confirm(command == Command.UNDO ? "Undone." : "Redone.");
+                            } else {
+                                System.out.println(command == Command.UNDO ? "Error: Nothing to undo." : "Error: Nothing to redo.");
+                            }
+                            break;
+
+                        case SHAPE_AT: // REQ11
+                            if (tokens.count() != 3) {
                                 System.out.println("Error: Usage: shapeAt <x> <y>");
                                 break;
                             }
                             try {
-                                double x = Double.parseDouble(tokens[1]);
-                                double y = Double.parseDouble(tokens[2]);
-                                String foundShape = clevis.shapeAt(x, y);
+                                double x = tokens.number(1);
+                                double y = tokens.number(2);
+                                String foundShape = archive == null ? clevis.shapeAt(x, y)
+                                        : nameOf(archive, ShapeQueryHandler.shapeAt(archive, x, y));
                                 if (foundShape != null) {
                                     System.out.println("Shape at (" + x + ", " + y + "): " + foundShape);
                                 } else {
@@ -293,15 +446,50 @@ public class Application {
                             }
                             break;
 
-                        case "intersect": // REQ12
-                            if (tokens.length != 3) {
+                        case SHAPE_AT_BATCH: // REQ11 for every point in a file
+                            if (tokens.count() != 2 && tokens.count() != 3) {
+                                System.out.println("Error: Usage: shapeAtBatch <pointFile> [parallelism]");
+                                break;
+                            }
+                            try {
+                                int parallelism = tokens.count() == 3 ? tokens.integer(2) : 1;
+                                double[][] points = readPoints(tokens.text(1));
+                                double[] xs = points[0], ys = points[1];
+                                String[] found;
+                                if (archive == null) {
+                                    found = clevis.shapeAtBatch(xs, ys, parallelism);
+                                } else {
+                                    found = new String[xs.length];
+                                    for (int i = 0; i < xs.length; i++) {
+                                        found[i] = nameOf(archive, ShapeQueryHandler.shapeAt(archive, xs[i], ys[i]));
+                                    }
+                                }
+                                for (int i = 0; i < found.length; i++) {
+                                    if (found[i] != null) {
+                                        System.out.println("Shape at (" + xs[i] + ", " + ys[i] + "): " + found[i]);
+                                    } else {
+                                        System.out.println("No shape found at (" + xs[i] + ", " + ys[i] + ")");
+                                    }
+                                }
+                            } catch (NumberFormatException e) {
+                                System.out.println("Error: Invalid number format. Please enter valid numeric values.");
+                            } catch (IOException e) {
+                                System.out.println("Error: Cannot read points: " + e.getMessage());
+                            } catch (IllegalArgumentException e) {
+                                System.out.println("Error: " + e.getMessage());
+                            }
+                            break;
+
+                        case INTERSECT: // REQ12
+                            if (tokens.count() != 3) {
                                 System.out.println("Error: Usage: intersect <shape1> <shape2>");
                                 break;
                             }
                             try {
-                                String shape1 = tokens[1];
-                                String shape2 = tokens[2];
-                                boolean doIntersect = clevis.intersect(shape1, shape2);
+                                String shape1 = tokens.text(1);
+                                String shape2 = tokens.text(2);
+                                boolean doIntersect = archive == null ? clevis.intersect(shape1, shape2)
+                                        : ShapeQueryHandler.intersect(archive, shape1, shape2);
                                 System.out.println("Shapes '" + shape1 + "' and '" + shape2 + "' " +
                                         (doIntersect ? "intersect" : "do not intersect") + ".");
                             } catch (IllegalArgumentException e) {
@@ -309,26 +497,95 @@ public class Application {
                             }
                             break;
 
-                        case "list": // REQ13
-                            if (tokens.length != 2) {
+                        case INTERSECT_ALL: // REQ12 over the whole drawing
+                            if (tokens.count() > 2) {
+                                System.out.println("Error: Usage: intersectAll [parallelism]");
+                                break;
+                            }
+                            try {
+                                int parallelism = tokens.count() == 2 ? tokens.integer(1) : 1;
+                                // A mapped snapshot is checked on this thread whatever the parallelism
+                                List<IntersectionPair> pairs = archive == null ? clevis.intersectAll(parallelism)
+                                        : ShapeQueryHandler.intersectAll(archive);
+                                if (pairs.isEmpty()) {
+                                    System.out.println("No intersecting shapes found.");
+                                } else {
+                                    for (IntersectionPair pair : pairs) {
+                                        System.out.println("Shapes '" + pair.first + "' and '" + pair.second + "' intersect.");
+                                    }
+                                }
+                            } catch (NumberFormatException e) {
+                                System.out.println("Error: Invalid number format. Please enter valid numeric values.");
+                            } catch (IllegalArgumentException e) {
+                                System.out.println("Error: " + e.getMessage());
+                            }
+                            break;
+
+                        case SHAPES_IN: // shapes inside or touching a region
+                            if (tokens.count() != 5 && tokens.count() != 6) {
+                                System.out.println("Error: Usage: shapesIn <x> <y> <w> <h> [contained|touching]");
+                                break;
+                            }
+                            try {
+                                double x = tokens.number(1);
+                                double y = tokens.number(2);
+                                double w = tokens.number(3);
+                                double h = tokens.number(4);
+                                ShapeQueryHandler.RegionMode mode = ShapeQueryHandler.RegionMode.TOUCHING;
+                                if (tokens.count() == 6) {
+                                    String word = tokens.text(5);
+                                    if ("contained".equalsIgnoreCase(word)) {
+                                        mode = ShapeQueryHandler.RegionMode.CONTAINED;
+                                    } else if (!"touching".equalsIgnoreCase(word)) {
+                                        System.out.println("Error: Usage: shapesIn <x> <y> <w> <h> [contained|touching]");
+                                        break;
+                                    }
+                                }
+                                // Names are printed as they are found, bottom shape first
+                                int[] found = new int[1];
+                                if (archive == null) {
+                                    clevis.shapesIn(x, y, w, h, mode, shape -> {
+                                        System.out.println(shape.name());
+                                        found[0]++;
+                                    });
+                                } else {
+                                    MappedSnapshot opened = archive;
+                                    ShapeQueryHandler.shapesIn(opened, x, y, w, h, mode, id -> {
+                                        System.out.println(opened.name(id));
+                                        found[0]++;
+                                    });
+                                }
+                                if (found[0] == 0) {
+                                    System.out.println("No shapes found in (" + x + ", " + y + ", " + w + ", " + h + ")");
+                                }
+                            } catch (NumberFormatException e) {
+                                System.out.println("Error: Invalid number format. Please enter valid numeric values.");
+                            } catch (IllegalArgumentException e) {
+                                System.out.println("Error: " + e.getMessage());
+                            }
+                            break;
+
+                        case LIST: // REQ13
+                            if (tokens.count() != 2) {
                                 System.out.println("Error: Usage: list <shapeName>");
                                 break;
                             }
                             try {
-                                String shapeName = tokens[1];
-                                String info = clevis.list(shapeName);
+                                String shapeName = tokens.text(1);
+                                String info = archive == null ? clevis.list(shapeName)
+                                        : ShapeListFormatter.list(archive, shapeName);
                                 System.out.println(info);
                             } catch (IllegalArgumentException e) {
                                 System.out.println("Error: " + e.getMessage());
                             }
                             break;
 
-                        case "listall": // REQ14
-                            if (tokens.length != 1) {
+                        case LIST_ALL: // REQ14
+                            if (tokens.count() != 1) {
                                 System.out.println("Error: Usage: listAll");
                                 break;
                             }
-                            String listing = clevis.listAll();
+                            String listing = archive == null ? clevis.listAll() : ShapeListFormatter.listAll(archive);
                             if (listing.isEmpty()) {
                                 System.out.println("No shapes have been created yet.");
                             } else {
@@ -336,22 +593,76 @@ public class Application {
                             }
                             break;
 
-                        case "quit": // REQ15
-                            System.out.println("Saving logs and exiting...");
-                            saveLogs(htmlPath, txtPath);
-                            System.out.println("Thank you for using Clevis. Goodbye!");
-                            if (finalViewer != null) {
-                                finalViewer.dispose();
+                        case SAVE:
+                            if (tokens.count() != 2) {
+                                System.out.println("Error: Usage: save <file>");
+                                break;
+                            }
+                            try {
+                                String file = tokens.text(1);
+                                clevis.save(file);
+                                confirm("Drawing saved to '" + file + "'.");
+                            } catch (IOException e) {
+                                System.out.println("Error: Cannot save drawing: " + e.getMessage());
+                            }
+                            break;
+
+                        case EXPORT:
+                            if (tokens.count() == 3 && "svg".equalsIgnoreCase(tokens.text(1))) {
+                                try {
+                                    String file = tokens.text(2);
+                                    clevis.exportSvg(file);
+                                    confirm("Drawing exported to '" + file + "'.");
+                                } catch (IOException e) {
+                                    System.out.println("Error: Cannot export drawing: " + e.getMessage());
+                                }
+                                break;
+                            }
+                            if (tokens.count() != 5 || !"png".equalsIgnoreCase(tokens.text(1))) {
+                                System.out.println("Error: Usage: export png <file> <width> <height> | export svg <file>");
+                                break;
+                            }
+                            try {
+                                String file = tokens.text(2);
+                                int width = tokens.integer(3);
+                                int height = tokens.integer(4);
+                                TiledRasterizer.writePng(clevis, java.nio.file.Paths.get(file), width, height,
+                                        Runtime.getRuntime().availableProcessors());
+                                confirm("Drawing exported to '" + file + "'.");
+                            } catch (NumberFormatException e) {
+                                System.out.println("Error: Invalid number format. Please enter valid numeric values.");
+                            } catch (IOException e) {
+                                System.out.println("Error: Cannot export drawing: " + e.getMessage());
+                            } catch (IllegalArgumentException e) {
+                                System.out.println("Error: " + e.getMessage());
+                            }
+                            break;
+
+                        case LOAD:
+                            if (tokens.count() != 2) {
+                                System.out.println("Error: Usage: load <file>");
+                                break;
+                            }
+                            try {
+                                String file = tokens.text(1);
+                                clevis.load(file);
+                                confirm("Drawing loaded from '" + file + "'.");
+                            } catch (IOException e) {
+                                System.out.println("Error: Cannot load drawing: " + e.getMessage());
+                            }
+                            break;
+
+                        case QUIT: // REQ15
+                            confirm("Saving logs and exiting...");
+                            closeLog(log, htmlPath, txtPath);
+                            confirm("Thank you for using Clevis. Goodbye!");
+                            if (viewer != null) {
+                                viewer.dispose();
                             }
                             return;
 
                         default:
-                            System.out.println("Error: Unknown command '" + command + "'. Type a valid command.");
-                    }
-
-                    // Refresh GUI if needed (BON1)
-                    if (shouldRefreshGui && finalViewer != null) {
-                        SwingUtilities.invokeLater(finalViewer::refresh);
+                            System.out.println("Error: Unknown command '" + tokens.text(0).toLowerCase(Locale.ROOT) + "'. Type a valid command.");
                     }
 
                 } catch (IllegalArgumentException e) {
@@ -361,101 +672,115 @@ public class Application {
                     e.printStackTrace();
                 }
 
-                System.out.print("> ");
+                prompt();
             }
         } catch (IOException ioe) {
             System.err.println("I/O Error: " + ioe.getMessage());
             ioe.printStackTrace();
         } finally {
             // Ensure logs are saved even if there's an error
-            saveLogs(htmlPath, txtPath);
+            closeLog(log, htmlPath, txtPath);
+            closeQuietly(archive);
+            closeJournal(journal);
+            if (quiet) {
+                System.out.flush();
+                System.setOut(console);
+                quiet = false;
+            }
         }
     }
 
     /**
-     * Saves command logs to both HTML and TXT files (REQ1).
-     *
-     * @param htmlPath Path to the HTML log file
-     * @param txtPath Path to the TXT log file
+     * Prints the input prompt, except in batch mode.
      */
-    private static void saveLogs(String htmlPath, String txtPath) {
-        saveTxtLog(txtPath);
-        saveHtmlLog(htmlPath);
+    private static void prompt() {
+        if (!quiet) {
+            System.out.print("> ");
+        }
     }
 
     /**
-     * Saves command log to a plain text file (REQ1).
-     * Each line contains one command in execution order.
-     *
-     * @param txtPath Path to the TXT log file
+     * Prints a confirmation of a successful command, except in batch mode.
+     * Query results and errors are always printed.
      */
-    private static void saveTxtLog(String txtPath) {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(txtPath))) {
-            for (String cmd : commandLog) {
-                pw.println(cmd);
-            }
-            System.out.println("TXT log saved to: " + txtPath);
-        } catch (IOException e) {
-            System.err.println("Error saving TXT log: " + e.getMessage());
+    private static void confirm(String message) {
+        if (!quiet) {
+            System.out.println(message);
         }
     }
 
     /**
-     * Saves command log to an HTML file (REQ1).
-     * Commands are recorded in a table with operation index and command columns.
+     * Finishes both command logs (REQ1). Does nothing if they are already closed.
      *
+     * @param log the session's log writer
      * @param htmlPath Path to the HTML log file
+     * @param txtPath Path to the TXT log file
      */
-    private static void saveHtmlLog(String htmlPath) {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(htmlPath))) {
-            pw.println("<!DOCTYPE html>");
-            pw.println("<html>");
-            pw.println("<head>");
-            pw.println("    <meta charset=\"UTF-8\">");
-            pw.println("    <title>Clevis Command Log</title>");
-            pw.println("    <style>");
-            pw.println("        body { font-family: Arial, sans-serif; margin: 20px; }");
-            pw.println("        h2 { color: #333; }");
-            pw.println("        table { border-collapse: collapse; width: 100%; max-width: 800px; }");
-            pw.println("        th, td { border: 1px solid #ddd; padding: 8px; text-align: left; }");
-            pw.println("        th { background-color: #4CAF50; color: white; }");
-            pw.println("        tr:nth-child(even) { background-color: #f2f2f2; }");
-            pw.println("    </style>");
-            pw.println("</head>");
-            pw.println("<body>");
-            pw.println("    <h2>Clevis Session Command Log</h2>");
-            pw.println("    <table>");
-            pw.println("        <tr><th>Operation Index</th><th>Operation Command</th></tr>");
-
-            for (int i = 0; i < commandLog.size(); i++) {
-                pw.printf("        <tr><td>%d</td><td>%s</td></tr>%n",
-                        i + 1, escapeHtml(commandLog.get(i)));
+    private static void closeLog(CommandLogWriter log, String htmlPath, String txtPath) {
+        try {
+            if (log.isOpen()) {
+                log.close();
+                confirm("TXT log saved to: " + txtPath);
+                confirm("HTML log saved to: " + htmlPath);
             }
+        } catch (IOException e) {
+            System.err.println("Error saving logs: " + e.getMessage());
+        }
+    }
 
-            pw.println("    </table>");
-            pw.println("</body>");
-            pw.println("</html>");
-
-            System.out.println("HTML log saved to: " + htmlPath);
+    private static void closeJournal(Journal journal) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
         } catch (IOException e) {
-            System.err.println("Error saving HTML log: " + e.getMessage());
+            System.err.println("Error closing journal: " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Already failing; the original error is reported
         }
     }
 
     /**
-     * Escapes HTML special characters to prevent HTML injection.
-     *
-     * @param text The text to escape
-     * @return HTML-safe text
+     * Reads one point per line, as x and y separated by white space; blank lines are skipped.
+     * @return the x coordinates and the y coordinates
+     * @throws NumberFormatException if a line does not hold exactly two numbers
      */
-    private static String escapeHtml(String text) {
-        if (text == null) {
-            return "";
+    private static double[][] readPoints(String file) throws IOException {
+        double[] xs = new double[1024], ys = new double[1024];
+        int count = 0;
+        CommandTokenizer tokens = new CommandTokenizer();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                int n = tokens.tokenize(line);
+                if (n == 0) {
+                    continue;
+                }
+                if (n != 2) {
+                    throw new NumberFormatException("Expected two numbers: " + line);
+                }
+                if (count == xs.length) {
+                    xs = Arrays.copyOf(xs, count * 2);
+                    ys = Arrays.copyOf(ys, count * 2);
+                }
+                xs[count] = tokens.number(0);
+                ys[count] = tokens.number(1);
+                count++;
+            }
         }
-        return text.replace("&", "&amp;")
-                .replace("<", "&lt;")
-                .replace(">", "&gt;")
-                .replace("\"", "&quot;")
-                .replace("'", "&#39;");
+        return new double[][] {Arrays.copyOf(xs, count), Arrays.copyOf(ys, count)};
+    }
+
+    private static String nameOf(MappedSnapshot archive, int id) {
+        return id == PrimitiveShapeStore.NO_SHAPE ? null : archive.name(id);
     }
 }
@@ -0,0 +1,111 @@
+package hk.edu.polyu.comp.comp2021.clevis;
+
+/**
+ * Commands understood by the command-line interface, with a precomputed
+ * case-insensitive lookup from the keyword characters.
+ */
+enum Command {
+    RECTANGLE("rectangle", false),
+    LINE("line", false),
+    CIRCLE("circle", false),
+    SQUARE("square", false),
+    GROUP("group", false),
+    UNGROUP("ungroup", false),
+    FLATTEN("flatten", false),
+    DELETE("delete", false),
+    DELETE_MANY("deletemany", false),
+    BOUNDING_BOX("boundingbox", true),
+    MOVE("move", false),
+    UNDO("undo", false),
+    REDO("redo", false),
+    SHAPE_AT("shapeat", true),
+    SHAPE_AT_BATCH("shapeatbatch", true),
+    SHAPES_IN("shapesin", true),
+    INTERSECT("intersect", true),
+    INTERSECT_ALL("intersectall", true),
+    LIST("list", true),
+    LIST_ALL("listall", true),
+    SAVE("save", false),
+    LOAD("load", false),
+    EXPORT("export", false),
+    QUIT("quit", true),
+    UNKNOWN(null, true);
+
+    private static final Command[] TABLE = new Command[64];
+
+    static {
+        for (Command command : values()) {
+            if (command.keyword == null) {
+                continue;
+            }
+            char[] chars = command.keyword.toCharArray();
+            int slot = hash(chars, 0, chars.length) & (TABLE.length - 1);
+            while (TABLE[slot] != null) {
+                slot = (slot + 1) & (TABLE.length - 1);
+            }
+            TABLE[slot] = command;
+        }
+    }
+
+    private final String keyword;
+    private final boolean readOnly;
+
+    Command(String keyword, boolean readOnly) {
+        this.keyword = keyword;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * @return true if the command can run on a snapshot opened read-only
+     */
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return lower-case keyword typed for this command, or null for UNKNOWN
+     */
+    String keyword() {
+        return keyword;
+    }
+
+    /**
+     * Looks up the command whose keyword equals chars[start, start + length),
+     * ignoring case. Allocates nothing.
+     * @return the command, or UNKNOWN if no keyword matches
+     */
+    static Command lookup(char[] chars, int start, int length) {
+        int slot = hash(chars, start, length) & (TABLE.length - 1);
+        for (Command command = TABLE[slot]; command != null; command = TABLE[slot]) {
+            if (command.matches(chars, start, length)) {
+                return command;
+            }
+            slot = (slot + 1) & (TABLE.length - 1);
+        }
+        return UNKNOWN;
+    }
+
+    private boolean matches(char[] chars, int start, int length) {
+        if (keyword.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (lower(chars[start + i]) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(char[] chars, int start, int length) {
+        int h = length;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + lower(chars[i]);
+        }
+        return h ^ (h >>> 7);
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+}
@@ -0,0 +1,221 @@
+package hk.edu.polyu.comp.comp2021.clevis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Appends commands to the TXT and HTML logs (REQ1) while the session runs.
+ * Commands are handed to a background thread through a bounded queue, so the
+ * caller never waits on disk unless the queue is full. The thread writes every
+ * command it finds waiting in one batch to both files. The HTML footer is
+ * written by {@link #close()}.
+ */
+final class CommandLogWriter implements Closeable {
+
+    /**
+     * When the log files are forced to the storage device.
+     */
+    enum SyncPolicy {
+        /** Never; the operating system decides. */
+        NONE,
+        /** After every written batch. */
+        BATCH,
+        /** Once, when the writer is closed. */
+        CLOSE
+    }
+
+    static final int DEFAULT_CAPACITY = 4096;
+    private static final int MAX_BATCH = 1024;
+    // Queued after the last command to stop the writer thread
+    private static final String END = new String("END");
+
+    private static final String HTML_HEADER = String.join(System.lineSeparator(),
+            "<!DOCTYPE html>",
+            "<html>",
+            "<head>",
+            "    <meta charset=\"UTF-8\">",
+            "    <title>Clevis Command Log</title>",
+            "    <style>",
+            "        body { font-family: Arial, sans-serif; margin: 20px; }",
+            "        h2 { color: #333; }",
+            "        table { border-collapse: collapse; width: 100%; max-width: 800px; }",
+            "        th, td { border: 1px solid #ddd; padding: 8px; text-align: left; }",
+            "        th { background-color: #4CAF50; color: white; }",
+            "        tr:nth-child(even) { background-color: #f2f2f2; }",
+            "    </style>",
+            "</head>",
+            "<body>",
+            "    <h2>Clevis Session Command Log</h2>",
+            "    <table>",
+            "        <tr><th>Operation Index</th><th>Operation Command</th></tr>",
+            "");
+    private static final String HTML_FOOTER = String.join(System.lineSeparator(),
+            "    </table>",
+            "</body>",
+            "</html>",
+            "");
+
+    private final FileChannel txt;
+    private final FileChannel html;
+    private final SyncPolicy policy;
+    private final BlockingQueue<String> queue;
+    private final Thread writer;
+    private volatile IOException failure;
+    private boolean closed;
+    private int operationIndex;
+
+    /**
+     * Creates both log files, replacing existing ones, and starts the writer thread.
+     * @param capacity number of commands that may wait to be written
+     * @throws IOException if a file cannot be created
+     */
+    CommandLogWriter(String txtPath, String htmlPath, int capacity, SyncPolicy policy) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Log queue capacity must be at least 1");
+        }
+        this.txt = open(txtPath);
+        try {
+            this.html = open(htmlPath);
+        } catch (IOException e) {
+            txt.close();
+            throw e;
+        }
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        write(html, HTML_HEADER);
+        this.writer = new Thread(this::drain, "clevis-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static FileChannel open(String path) throws IOException {
+        return FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Queues a command for both logs, waiting only while the queue is full.
+     * @throws IllegalStateException if the writer is closed
+     */
+    void append(String command) {
+        if (closed) {
+            throw new IllegalStateException("Command log is closed");
+        }
+        try {
+            queue.put(command);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return false once {@link #close()} has been called
+     */
+    boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Writes the remaining commands and the HTML footer, then closes both files.
+     * Calling it again does nothing.
+     * @throws IOException if any write failed during the session
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (FileChannel t = txt; FileChannel h = html) {
+            if (failure == null) {
+                write(h, HTML_FOOTER);
+                if (policy != SyncPolicy.NONE) {
+                    t.force(false);
+                    h.force(false);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void drain() {
+        List<String> batch = new ArrayList<>(MAX_BATCH);
+        StringBuilder txtText = new StringBuilder();
+        StringBuilder htmlText = new StringBuilder();
+        boolean done = false;
+        while (!done) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            for (String command : batch) {
+                if (command == END) {
+                    done = true;
+                    break;
+                }
+                operationIndex++;
+                txtText.append(command).append(System.lineSeparator());
+                htmlText.append("        <tr><td>").append(operationIndex).append("</td><td>")
+                        .append(escapeHtml(command)).append("</td></tr>").append(System.lineSeparator());
+            }
+            batch.clear();
+            if (failure == null && txtText.length() > 0) {
+                try {
+                    write(txt, txtText);
+                    write(html, htmlText);
+                    if (policy == SyncPolicy.BATCH) {
+                        txt.force(false);
+                        html.force(false);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            txtText.setLength(0);
+            htmlText.setLength(0);
+        }
+    }
+
+    private static void write(FileChannel channel, CharSequence text) throws IOException {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(text.toString());
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Escapes HTML special characters to prevent HTML injection.
+     *
+     * @param text The text to escape
+     * @return HTML-safe text
+     */
+    static String escapeHtml(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;")
+                .replace("'", "&#39;");
+    }
+}
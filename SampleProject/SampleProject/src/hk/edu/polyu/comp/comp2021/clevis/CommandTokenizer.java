@@ -0,0 +1,172 @@
+package hk.edu.polyu.comp.comp2021.clevis;
+
+import java.util.Arrays;
+
+/**
+ * Splits command lines into whitespace-separated tokens without regular
+ * expressions or substrings. The characters of the current line are copied
+ * into a reusable buffer and tokens are kept as offsets into it, so numbers
+ * and the command keyword are read in place. Only {@link #text(int)} creates
+ * a String, for shape names.
+ * A tokenizer is reused for every line and is not thread-safe.
+ */
+final class CommandTokenizer {
+    // Powers of ten that are exact doubles
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    // Largest mantissa that every double represents exactly
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private char[] chars = new char[256];
+    private int[] start = new int[16];
+    private int[] end = new int[16];
+    private int count;
+
+    /**
+     * Tokenizes a new line, replacing the previous one.
+     * @return number of tokens in the line
+     */
+    int tokenize(String line) {
+        int length = line.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        line.getChars(0, length, chars, 0);
+        count = 0;
+        int i = 0;
+        while (i < length) {
+            while (i < length && Character.isWhitespace(chars[i])) {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            if (count == start.length) {
+                start = Arrays.copyOf(start, count * 2);
+                end = Arrays.copyOf(end, count * 2);
+            }
+            start[count] = i;
+            while (i < length && !Character.isWhitespace(chars[i])) {
+                i++;
+            }
+            end[count] = i;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return number of tokens in the current line
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return the command named by the first token, or UNKNOWN if there is none
+     */
+    Command command() {
+        if (count == 0) {
+            return Command.UNKNOWN;
+        }
+        return Command.lookup(chars, start[0], end[0] - start[0]);
+    }
+
+    /**
+     * @return token i as a String
+     */
+    String text(int i) {
+        checkIndex(i);
+        return new String(chars, start[i], end[i] - start[i]);
+    }
+
+    /**
+     * Parses token i as a double, giving the same value as {@link Double#parseDouble}.
+     * Plain decimals whose digits fit in 53 bits are converted in place: the
+     * digits and the power of ten are both exact doubles, so one division is
+     * correctly rounded. Anything else is handed to Double.parseDouble.
+     * @throws NumberFormatException if the token is not a number
+     */
+    double number(int i) {
+        checkIndex(i);
+        int pos = start[i];
+        int limit = end[i];
+        boolean negative = false;
+        if (chars[pos] == '-' || chars[pos] == '+') {
+            negative = chars[pos] == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        for (; pos < limit; pos++) {
+            char c = chars[pos];
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (point) {
+                    fractionDigits++;
+                }
+                if (mantissa >= MAX_EXACT_MANTISSA) {
+                    return slowNumber(i);
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return slowNumber(i);
+            }
+        }
+        if (digits == 0 || fractionDigits >= POWERS_OF_TEN.length) {
+            return slowNumber(i);
+        }
+        double value = (double) mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses token i as a decimal int.
+     * @throws NumberFormatException if the token is not an int
+     */
+    int integer(int i) {
+        checkIndex(i);
+        int pos = start[i];
+        int limit = end[i];
+        boolean negative = false;
+        if (chars[pos] == '-' || chars[pos] == '+') {
+            negative = chars[pos] == '-';
+            pos++;
+        }
+        if (pos == limit) {
+            throw new NumberFormatException("For input string: \"" + text(i) + "\"");
+        }
+        long value = 0;
+        for (; pos < limit; pos++) {
+            char c = chars[pos];
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("For input string: \"" + text(i) + "\"");
+            }
+            value = value * 10 + (c - '0');
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw new NumberFormatException("For input string: \"" + text(i) + "\"");
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \"" + text(i) + "\"");
+        }
+        return (int) value;
+    }
+
+    private double slowNumber(int i) {
+        return Double.parseDouble(text(i));
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("Token " + i + " of " + count);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package hk.edu.polyu.comp.comp2021.clevis;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.Clevis;
+import hk.edu.polyu.comp.comp2021.clevis.model.DrawingChange;
+import hk.edu.polyu.comp.comp2021.clevis.model.DrawingListener;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.DensityPyramid;
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Group;
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Shape;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Draws a view of a drawing at any scale with a level of detail.
+ * The top-level shapes are kept in a {@link DensityPyramid}. Shapes smaller
+ * than a cell of the pyramid's detail level for the scale, which is at most
+ * one pixel, are not drawn one by one: each non-empty cell of that level is
+ * drawn as a single pixel, darker the more shapes it holds. Only the larger
+ * shapes are drawn in full, by a {@link ShapeRenderer} that also turns group
+ * members under one cell into points. Zoomed in far enough, every shape is
+ * drawn in full.
+ * The pyramid is built from the drawing once and then follows its changes, so
+ * the renderer must get the drawing's change events, as a listener or from one.
+ * Changes and rendering may come from different threads: the renderer holds the
+ * drawing's monitor, which the drawing holds while it changes, so shapes never
+ * move under a frame being rendered.
+ */
+public class LevelOfDetailRenderer implements DrawingListener {
+    /** Counts from which a point is drawn in the full ink colour. */
+    public static final int SHADES = 8;
+
+    private final Clevis clevis;
+    private final DensityPyramid pyramid = new DensityPyramid();
+    // Shapes in the pyramid by name, as deleted shapes are only named in their events
+    private final Map<String, Shape> placed = new HashMap<>();
+    private final List<Shape> visible = new ArrayList<>();
+    private ShapeRenderer renderer;
+    private double rendererScale;
+    private Color ink;
+    private final Color[] shades = new Color[SHADES];
+
+    public LevelOfDetailRenderer(Clevis clevis) {
+        this.clevis = clevis;
+        synchronized (clevis) {
+            rebuild();
+        }
+    }
+
+    @Override
+    public void drawingChanged(DrawingChange change) {
+        synchronized (clevis) {
+            follow(change);
+        }
+    }
+
+    private void follow(DrawingChange change) {
+        switch (change.kind) {
+            case ADDED:
+                place(clevis.shapes.get(change.name));
+                break;
+            case DELETED:
+                unplace(change.name);
+                break;
+            case MOVED: {
+                // A moved member moves the top-level group the pyramid holds
+                String topLevel = clevis.topLevelOf(change.name);
+                Shape shape = topLevel == null ? null : placed.get(topLevel);
+                if (shape != null) {
+                    pyramid.update(shape);
+                }
+                break;
+            }
+            case GROUPED: {
+                // The members are now drawn through the group
+                Shape group = clevis.shapes.get(change.name);
+                if (group instanceof Group) {
+                    for (Shape member : ((Group) group).members()) {
+                        if (placed.get(member.name()) == member) {
+                            unplace(member.name());
+                        }
+                    }
+                    place(group);
+                }
+                break;
+            }
+            case UNGROUPED: {
+                Shape group = placed.get(change.name);
+                unplace(change.name);
+                if (group instanceof Group) {
+                    for (Shape member : ((Group) group).members()) {
+                        place(member);
+                    }
+                }
+                break;
+            }
+            case RESTORED:
+                rebuild();
+                break;
+        }
+    }
+
+    private void rebuild() {
+        pyramid.clear();
+        placed.clear();
+        for (Shape shape : clevis.drawOrder) {
+            placed.put(shape.name(), shape);
+        }
+        pyramid.insertAll(placed.values());
+    }
+
+    private void place(Shape shape) {
+        // Members put back into their groups are drawn through the group
+        if (shape != null && clevis.drawOrder.contains(shape) && !pyramid.contains(shape)) {
+            pyramid.insert(shape);
+            placed.put(shape.name(), shape);
+        }
+    }
+
+    private void unplace(String name) {
+        Shape shape = placed.remove(name);
+        if (shape != null) {
+            pyramid.remove(shape);
+        }
+    }
+
+    /**
+     * Draws the part of a view under the area (x, y, w, h), in pixels. The
+     * view shows the drawing scaled by scale pixels per drawing unit, with the
+     * drawing point (originX, originY) at pixel (0, 0). Outlines are
+     * {@link ShapeRenderer#STROKE_WIDTH} pixels wide whatever the scale.
+     * Points are drawn before, and so under, the shapes drawn in full.
+     * @return number of top-level shapes drawn in full
+     * @throws IllegalArgumentException if the scale is not positive and finite
+     */
+    public int render(Graphics2D g2, double scale, double originX, double originY,
+                      int x, int y, int w, int h) {
+        synchronized (clevis) {
+            return renderLocked(g2, scale, originX, originY, x, y, w, h);
+        }
+    }
+
+    private int renderLocked(Graphics2D g2, double scale, double originX, double originY,
+                             int x, int y, int w, int h) {
+        int level = DensityPyramid.detailLevel(scale);
+        double left = originX + x / scale, top = originY + y / scale;
+        double width = w / scale, height = h / scale;
+        double pad = ShapeRenderer.STROKE_WIDTH / scale;
+
+        Color color = g2.getColor();
+        Color[] points = shadesOf(color);
+        visible.clear();
+        pyramid.query(level, left - pad, top - pad, left + width + pad, top + height + pad, visible,
+                (cellX, cellY, side, count) -> {
+                    g2.setColor(points[Math.min(count, SHADES) - 1]);
+                    g2.fillRect((int) Math.floor((cellX + side / 2 - originX) * scale),
+                            (int) Math.floor((cellY + side / 2 - originY) * scale), 1, 1);
+                });
+        g2.setColor(color);
+
+        visible.sort(Comparator.comparingInt(Shape::z));
+        ShapeRenderer shapes = rendererFor(scale, level);
+        AffineTransform view = g2.getTransform();
+        // Drawing coordinates to pixels
+        g2.scale(scale, scale);
+        g2.translate(-originX, -originY);
+        for (Shape shape : visible) {
+            shapes.draw(g2, shape, left, top, width, height);
+        }
+        g2.setTransform(view);
+        return visible.size();
+    }
+
+    private ShapeRenderer rendererFor(double scale, int level) {
+        if (renderer == null || rendererScale != scale) {
+            renderer = new ShapeRenderer((float) Math.max(ShapeRenderer.STROKE_WIDTH / scale, Float.MIN_NORMAL),
+                    Math.scalb(1.0, level));
+            rendererScale = scale;
+        }
+        return renderer;
+    }
+
+    /**
+     * @return the ink colour with rising opacity for 1 to SHADES shapes per point:
+     *         each shape covers half of what the ones before it left uncovered
+     */
+    private Color[] shadesOf(Color color) {
+        if (!color.equals(ink)) {
+            for (int i = 0; i < SHADES; i++) {
+                int alpha = (int) Math.round(color.getAlpha() * (1 - Math.pow(0.5, i + 1)));
+                shades[i] = new Color(color.getRed(), color.getGreen(), color.getBlue(), alpha);
+            }
+            shades[SHADES - 1] = color;
+            ink = color;
+        }
+        return shades;
+    }
+}
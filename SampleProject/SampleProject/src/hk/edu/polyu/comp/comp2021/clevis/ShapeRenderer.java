@@ -0,0 +1,144 @@
+package hk.edu.polyu.comp.comp2021.clevis;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.Clevis;
+import hk.edu.polyu.comp.comp2021.clevis.model.operations.ShapeQueryHandler;
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Rectangle;
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Shape;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws the outlines of a drawing's shapes onto a Graphics2D.
+ * Only the shapes touching the requested area are drawn: they are found with a
+ * region query on the drawing's spatial index instead of a pass over every
+ * shape, and group members clear of the area are skipped too.
+ * One geometry object per shape kind is reused, so drawing a shape allocates
+ * nothing. Group members smaller than the point size, if one is given, are
+ * filled as a single square instead, as their outlines would not show.
+ */
+public class ShapeRenderer {
+    /** Default width of every outline, in drawing units. */
+    public static final float STROKE_WIDTH = 2f;
+
+    private final float strokeWidth;
+    private final double pointSize;
+    private final Stroke stroke;
+    private final Rectangle2D.Double rectangle = new Rectangle2D.Double();
+    private final Line2D.Double line = new Line2D.Double();
+    private final Ellipse2D.Double ellipse = new Ellipse2D.Double();
+    private final double[] box = new double[4];
+
+    public ShapeRenderer() {
+        this(STROKE_WIDTH);
+    }
+
+    /**
+     * @param strokeWidth width of every outline, in drawing units; a renderer
+     *        drawing at scale s keeps outlines w pixels wide with w / s
+     * @throws IllegalArgumentException if the width is not positive
+     */
+    public ShapeRenderer(float strokeWidth) {
+        this(strokeWidth, 0);
+    }
+
+    /**
+     * @param strokeWidth width of every outline, in drawing units
+     * @param pointSize group members whose bounding box is smaller than this,
+     *        in drawing units, are filled as a square of this size around their
+     *        centre; 0 draws every member in full
+     * @throws IllegalArgumentException if the width is not positive or the
+     *         point size is negative
+     */
+    public ShapeRenderer(float strokeWidth, double pointSize) {
+        if (!(strokeWidth > 0)) {
+            throw new IllegalArgumentException("Stroke width must be positive");
+        }
+        if (!(pointSize >= 0)) {
+            throw new IllegalArgumentException("Point size must not be negative");
+        }
+        this.strokeWidth = strokeWidth;
+        this.pointSize = pointSize;
+        this.stroke = new BasicStroke(strokeWidth);
+    }
+
+    /**
+     * Draws, in drawing order, every top-level shape whose outline can reach
+     * the area (x, y, w, h), given in drawing coordinates. The area is grown by
+     * the stroke width, so outlines just outside it still paint their edge.
+     * Only the lookup holds the drawing's lock, so several threads can render
+     * parts of one drawing at once; the drawing must not change meanwhile.
+     * @return number of top-level shapes drawn
+     */
+    public int render(Clevis clevis, Graphics2D g2, double x, double y, double w, double h) {
+        double minX = x - strokeWidth, minY = y - strokeWidth;
+        double maxX = x + w + strokeWidth, maxY = y + h + strokeWidth;
+        List<Shape> found = new ArrayList<>();
+        clevis.shapesIn(minX, minY, maxX - minX, maxY - minY, ShapeQueryHandler.RegionMode.TOUCHING, found::add);
+        Stroke previous = g2.getStroke();
+        g2.setStroke(stroke);
+        for (Shape shape : found) {
+            drawWithin(g2, shape, minX, minY, maxX, maxY);
+        }
+        g2.setStroke(previous);
+        return found.size();
+    }
+
+    /**
+     * Draws one top-level shape, skipping the group members that cannot reach
+     * the area (x, y, w, h) grown by the stroke width.
+     */
+    public void draw(Graphics2D g2, Shape shape, double x, double y, double w, double h) {
+        Stroke previous = g2.getStroke();
+        g2.setStroke(stroke);
+        drawWithin(g2, shape, x - strokeWidth, y - strokeWidth, x + w + strokeWidth, y + h + strokeWidth);
+        g2.setStroke(previous);
+    }
+
+    private void drawWithin(Graphics2D g2, Shape s, double minX, double minY, double maxX, double maxY) {
+        if (s instanceof Rectangle) {
+            //req2
+            Rectangle r = (Rectangle) s;
+            rectangle.setRect(r.x(), r.y(), r.w(), r.h());
+            g2.draw(rectangle);
+        } else if (s instanceof Line) {
+            //req3
+            Line l = (Line) s;
+            line.setLine(l.x1(), l.y1(), l.x2(), l.y2());
+            g2.draw(line);
+        } else if (s instanceof Circle) {
+            //req4
+            Circle c = (Circle) s;
+            double d = 2 * c.r();
+            ellipse.setFrame(c.cx() - c.r(), c.cy() - c.r(), d, d);
+            g2.draw(ellipse);
+        } else if (s instanceof Square) {
+            //req5
+            Square sq = (Square) s;
+            rectangle.setRect(sq.x(), sq.y(), sq.s(), sq.s());
+            g2.draw(rectangle);
+        } else if (s instanceof Group) {
+            //req6: members are relative to the group's pending offset
+            Group group = (Group) s;
+            double dx = group.offsetX(), dy = group.offsetY();
+            g2.translate(dx, dy);
+            for (Shape member : group.members()) {
+                member.bounds(box);
+                if (box[0] > maxX - dx || box[2] < minX - dx || box[1] > maxY - dy || box[3] < minY - dy) {
+                    continue;
+                }
+                if (Math.max(box[2] - box[0], box[3] - box[1]) < pointSize) {
+                    rectangle.setRect((box[0] + box[2] - pointSize) / 2, (box[1] + box[3] - pointSize) / 2,
+                            pointSize, pointSize);
+                    g2.fill(rectangle);
+                } else {
+                    drawWithin(g2, member, minX - dx, minY - dy, maxX - dx, maxY - dy);
+                }
+            }
+            g2.translate(-dx, -dy);
+        }
+    }
+}
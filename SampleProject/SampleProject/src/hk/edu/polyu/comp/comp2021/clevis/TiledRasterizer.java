@@ -0,0 +1,150 @@
+package hk.edu.polyu.comp.comp2021.clevis;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.Clevis;
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Shape;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rasterizes a drawing into an image without any window, so it also runs on
+ * headless machines. The drawing is scaled to fit the image, keeping its
+ * aspect ratio and centred, with outlines {@link ShapeRenderer#STROKE_WIDTH}
+ * pixels wide whatever the scale.
+ * The image is cut into tiles of {@link #TILE} by {@link #TILE} pixels. Each
+ * tile fetches its own shapes with a region query and is drawn into an image
+ * of its own by a {@link ShapeRenderer}, across a fork-join pool; the tiles
+ * are then copied into the final image.
+ */
+public final class TiledRasterizer {
+    public static final int TILE = 256;
+
+    private TiledRasterizer() {
+    }
+
+    /**
+     * Rasterizes the drawing and writes it to a PNG file.
+     * @throws IOException if the file cannot be written
+     */
+    public static void writePng(Clevis clevis, Path file, int width, int height, int parallelism) throws IOException {
+        BufferedImage image = render(clevis, width, height, parallelism);
+        if (!ImageIO.write(image, "png", file.toFile())) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+
+    /**
+     * Rasterizes the drawing: black outlines on white.
+     * @param parallelism number of worker threads; 1 renders on the calling thread
+     * @throws IllegalArgumentException if the width, height or parallelism is less than 1
+     */
+    public static BufferedImage render(Clevis clevis, int width, int height, int parallelism) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Image width and height must be positive");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        // Fit the drawing's bounding box into the image
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        double[] box = new double[4];
+        synchronized (clevis) {
+            for (Shape shape : clevis.drawOrder) {
+                // Also fills the lazily cached group bounds before the workers read them
+                shape.bounds(box);
+                minX = Math.min(minX, box[0]);
+                minY = Math.min(minY, box[1]);
+                maxX = Math.max(maxX, box[2]);
+                maxY = Math.max(maxY, box[3]);
+            }
+        }
+        double scale = 1, originX = 0, originY = 0;
+        if (minX <= maxX) {
+            // Leave the outline width free around the drawing when the image is large enough
+            double margin = Math.min(ShapeRenderer.STROKE_WIDTH, (Math.min(width, height) - 1) / 4.0);
+            scale = Math.min((width - 2 * margin) / Math.max(maxX - minX, Double.MIN_NORMAL),
+                    (height - 2 * margin) / Math.max(maxY - minY, Double.MIN_NORMAL));
+            // Drawing coordinates of the image's top-left corner
+            originX = (minX + maxX) / 2 - width / 2.0 / scale;
+            originY = (minY + maxY) / 2 - height / 2.0 / scale;
+        }
+
+        Tiles all = new Tiles(clevis, image, scale, originX, originY, 0, tileCount(width) * tileCount(height));
+        if (parallelism == 1) {
+            all.compute();
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(all);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return image;
+    }
+
+    private static int tileCount(int pixels) {
+        return (pixels + TILE - 1) / TILE;
+    }
+
+    /**
+     * Renders a range of tiles, numbered row by row, splitting it in half
+     * until one tile is left.
+     */
+    private static final class Tiles extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Clevis clevis;
+        private final BufferedImage image;
+        private final double scale, originX, originY;
+        private final int from, to;
+
+        Tiles(Clevis clevis, BufferedImage image, double scale, double originX, double originY, int from, int to) {
+            this.clevis = clevis;
+            this.image = image;
+            this.scale = scale;
+            this.originX = originX;
+            this.originY = originY;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && getPool() != null) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Tiles(clevis, image, scale, originX, originY, from, mid),
+                        new Tiles(clevis, image, scale, originX, originY, mid, to));
+                return;
+            }
+            ShapeRenderer renderer = new ShapeRenderer((float) Math.max(ShapeRenderer.STROKE_WIDTH / scale, Float.MIN_NORMAL));
+            int columns = tileCount(image.getWidth());
+            for (int tile = from; tile < to; tile++) {
+                int left = tile % columns * TILE, top = tile / columns * TILE;
+                int width = Math.min(TILE, image.getWidth() - left);
+                int height = Math.min(TILE, image.getHeight() - top);
+                BufferedImage pixels = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g2 = pixels.createGraphics();
+                g2.setColor(Color.WHITE);
+                g2.fillRect(0, 0, width, height);
+                g2.setColor(Color.BLACK);
+                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                // Drawing coordinates to tile pixels
+                g2.translate(-left, -top);
+                g2.scale(scale, scale);
+                g2.translate(-originX, -originY);
+                renderer.render(clevis, g2, originX + left / scale, originY + top / scale, width / scale, height / scale);
+                g2.dispose();
+                // Tiles cover disjoint parts of the image, so they can be copied in concurrently
+                image.getRaster().setDataElements(left, top, pixels.getRaster());
+            }
+        }
+    }
+}
@@ -1,59 +1,289 @@
 package hk.edu.polyu.comp.comp2021.clevis;
 
 import hk.edu.polyu.comp.comp2021.clevis.model.Clevis;
-import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
-import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Rectangle;
-import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Shape;
-
+import hk.edu.polyu.comp.comp2021.clevis.model.DrawingChange;
+import hk.edu.polyu.comp.comp2021.clevis.model.DrawingListener;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.DensityPyramid;
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.BoundingBox;
 
 import javax.swing.*;
 import java.awt.*;
-import java.awt.geom.*;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
 
 public class ViewerFrame extends JFrame {
     private final Clevis clevis;
+    private final CanvasPanel canvas;
 
     public ViewerFrame(Clevis clevis) {
         super("Clevis Viewer");
         this.clevis = clevis;
+        this.canvas = new CanvasPanel();
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(900, 640);
         setLocationRelativeTo(null);
 
-        add(new CanvasPanel(), BorderLayout.CENTER);
+        add(canvas, BorderLayout.CENTER);
+        clevis.addListener(canvas);
     }
 
-    public void refresh() { repaint(); }
+    /**
+     * Redraws the whole scene. Changes made through the drawing are picked up
+     * without it; it can be called from any thread.
+     */
+    public void refresh() {
+        canvas.invalidateAll();
+    }
 
-    private class CanvasPanel extends JPanel {
-        @Override protected void paintComponent(Graphics g) {
-            super.paintComponent(g);
-            Graphics2D g2 = (Graphics2D) g.create();
+    @Override
+    public void dispose() {
+        clevis.removeListener(canvas);
+        canvas.frameTimer.stop();
+        super.dispose();
+    }
 
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            g2.setStroke(new BasicStroke(2f));
-
-            for (Shape s : clevis.all()) {
-                if (s instanceof Rectangle) {
-                    //req2
-                    Rectangle r = (Rectangle) s;
-                    g2.draw(new Rectangle2D.Double(r.x(), r.y(), r.w(), r.h()));
-                } else if (s instanceof Line) {
-                    //req3
-                    Line l = (Line) s;
-                    g2.draw(new Line2D.Double(l.x1(), l.y1(), l.x2(), l.y2()));
-                } else if (s instanceof Circle) {
-                    //req4
-                    Circle c = (Circle) s;
-                    double d = 2 * c.r();
-                    g2.draw(new Ellipse2D.Double(c.cx() - c.r(), c.cy() - c.r(), d, d));
-                } else if (s instanceof Square) {
-                    //req5
-                    Square sq = (Square) s;
-                    g2.draw(new Rectangle2D.Double(sq.x(), sq.y(), sq.s(), sq.s()));
+    /**
+     * Paints the drawing from a back buffer holding the rendered scene.
+     * The buffer is re-rendered only where the drawing changed, or entirely
+     * when the panel outgrows it; expose events and shrinking just copy it to
+     * the screen. Its sides are rounded up to a multiple of BUFFER_STEP
+     * pixels, so dragging the window border does not re-render on every step.
+     * Changes are collected from the thread that makes them into one dirty
+     * area, which is re-rendered and repainted at most once per frame.
+     * The mouse wheel zooms around the pointer and dragging pans; Home goes
+     * back to the initial view. Zooming re-renders the scene through a
+     * {@link LevelOfDetailRenderer}, so zoomed-out views of dense drawings
+     * draw points instead of shapes under one pixel. Panning shifts the
+     * scene and only renders the strips it uncovers.
+     */
+    private class CanvasPanel extends JPanel implements DrawingListener {
+        private static final int BUFFER_STEP = 256;
+        private static final int FRAME_MILLIS = 16;
+        private static final double ZOOM_STEP = 1.25;
+        // Scales at which the pyramid's finest and coarsest levels are one pixel
+        private static final double MIN_SCALE = Math.scalb(1.0, -DensityPyramid.MAX_LEVEL);
+        private static final double MAX_SCALE = Math.scalb(1.0, -DensityPyramid.MIN_LEVEL);
+
+        private final LevelOfDetailRenderer renderer = new LevelOfDetailRenderer(clevis);
+        private final Timer frameTimer = new Timer(FRAME_MILLIS, e -> flush());
+        private BufferedImage scene;
+        private boolean stale = true;
+
+        // View: pixels per drawing unit, and the drawing point at pixel (0, 0)
+        private double scale = 1, originX, originY;
+        private Point dragged;
+
+        // Changes not yet repainted, guarded by this panel
+        private double dirtyMinX = Double.POSITIVE_INFINITY, dirtyMinY = Double.POSITIVE_INFINITY;
+        private double dirtyMaxX = Double.NEGATIVE_INFINITY, dirtyMaxY = Double.NEGATIVE_INFINITY;
+        private boolean allDirty;
+        private boolean scheduled;
+
+        CanvasPanel() {
+            frameTimer.setRepeats(false);
+            MouseAdapter mouse = new MouseAdapter() {
+                @Override public void mousePressed(MouseEvent e) {
+                    dragged = e.getPoint();
+                }
+
+                @Override public void mouseDragged(MouseEvent e) {
+                    if (dragged != null) {
+                        pan(e.getX() - dragged.x, e.getY() - dragged.y);
+                        dragged = e.getPoint();
+                    }
+                }
+
+                @Override public void mouseReleased(MouseEvent e) {
+                    dragged = null;
+                }
+
+                @Override public void mouseWheelMoved(MouseWheelEvent e) {
+                    zoom(Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()), e.getX(), e.getY());
+                }
+            };
+            addMouseListener(mouse);
+            addMouseMotionListener(mouse);
+            addMouseWheelListener(mouse);
+            getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_HOME, 0), "resetView");
+            getActionMap().put("resetView", new AbstractAction() {
+                @Override public void actionPerformed(java.awt.event.ActionEvent e) {
+                    scale = 1;
+                    originX = originY = 0;
+                    stale = true;
+                    repaint();
+                }
+            });
+        }
+
+        /**
+         * Scales the view by a factor, keeping the drawing point under the
+         * pixel (x, y) in place.
+         */
+        private void zoom(double factor, int x, int y) {
+            double next = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale * factor));
+            if (next == scale) {
+                return;
+            }
+            originX += x / scale - x / next;
+            originY += y / scale - y / next;
+            scale = next;
+            stale = true;
+            repaint();
+        }
+
+        /**
+         * Moves the view by (dx, dy) pixels. The scene is shifted in place and
+         * only the uncovered strips are rendered.
+         */
+        private void pan(int dx, int dy) {
+            if (dx == 0 && dy == 0) {
+                return;
+            }
+            originX -= dx / scale;
+            originY -= dy / scale;
+            if (stale || scene == null || Math.abs(dx) >= scene.getWidth() || Math.abs(dy) >= scene.getHeight()) {
+                stale = true;
+                repaint();
+                return;
+            }
+            int width = scene.getWidth(), height = scene.getHeight();
+            Graphics2D g2 = scene.createGraphics();
+            g2.copyArea(0, 0, width, height, dx, dy);
+            if (dx != 0) {
+                renderStrip(g2, dx > 0 ? 0 : width + dx, 0, Math.abs(dx), height);
+            }
+            if (dy != 0) {
+                renderStrip(g2, 0, dy > 0 ? 0 : height + dy, width, Math.abs(dy));
+            }
+            g2.dispose();
+            repaint();
+        }
+
+        private void renderStrip(Graphics2D g2, int x, int y, int width, int height) {
+            Shape clip = g2.getClip();
+            g2.clipRect(x, y, width, height);
+            renderArea(g2, x, y, width, height);
+            g2.setClip(clip);
+        }
+
+        @Override
+        public void drawingChanged(DrawingChange change) {
+            // The renderer's pyramid is updated on the thread making the change, before the frame is rendered
+            renderer.drawingChanged(change);
+            synchronized (this) {
+                if (change.kind == DrawingChange.Kind.RESTORED) {
+                    allDirty = true;
+                }
+                include(change.before);
+                include(change.after);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            SwingUtilities.invokeLater(frameTimer::start);
+        }
+
+        void invalidateAll() {
+            synchronized (this) {
+                allDirty = true;
+                if (scheduled) {
+                    return;
                 }
+                scheduled = true;
+            }
+            SwingUtilities.invokeLater(frameTimer::start);
+        }
+
+        private void include(BoundingBox box) {
+            if (box != null) {
+                dirtyMinX = Math.min(dirtyMinX, box.x);
+                dirtyMinY = Math.min(dirtyMinY, box.y);
+                dirtyMaxX = Math.max(dirtyMaxX, box.x + box.w);
+                dirtyMaxY = Math.max(dirtyMaxY, box.y + box.h);
+            }
+        }
+
+        /**
+         * Re-renders the part of the scene changed since the last frame and
+         * repaints it. Runs on the event dispatch thread.
+         */
+        private void flush() {
+            double minX, minY, maxX, maxY;
+            boolean all;
+            synchronized (this) {
+                minX = dirtyMinX;
+                minY = dirtyMinY;
+                maxX = dirtyMaxX;
+                maxY = dirtyMaxY;
+                all = allDirty;
+                dirtyMinX = dirtyMinY = Double.POSITIVE_INFINITY;
+                dirtyMaxX = dirtyMaxY = Double.NEGATIVE_INFINITY;
+                allDirty = false;
+                scheduled = false;
+            }
+            if (all || stale || scene == null) {
+                stale = true;
+                repaint();
+                return;
+            }
+            if (minX > maxX) {
+                return;
             }
+            // Outlines spread over the stroke width, plus a pixel of antialiasing
+            int pad = (int) Math.ceil(ShapeRenderer.STROKE_WIDTH) + 1;
+            int left = (int) Math.max(0, Math.floor((minX - originX) * scale) - pad);
+            int top = (int) Math.max(0, Math.floor((minY - originY) * scale) - pad);
+            int right = (int) Math.min(scene.getWidth(), Math.ceil((maxX - originX) * scale) + pad);
+            int bottom = (int) Math.min(scene.getHeight(), Math.ceil((maxY - originY) * scale) + pad);
+            if (left >= right || top >= bottom) {
+                return;
+            }
+            Graphics2D g2 = scene.createGraphics();
+            g2.clipRect(left, top, right - left, bottom - top);
+            renderArea(g2, left, top, right - left, bottom - top);
             g2.dispose();
+            repaint(left, top, right - left, bottom - top);
+        }
+
+        @Override protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            int width = getWidth(), height = getHeight();
+            if (width <= 0 || height <= 0) {
+                return;
+            }
+            if (scene == null || scene.getWidth() < width || scene.getHeight() < height) {
+                scene = createScene(roundUp(width), roundUp(height));
+                stale = true;
+            }
+            if (stale) {
+                Graphics2D g2 = scene.createGraphics();
+                renderArea(g2, 0, 0, scene.getWidth(), scene.getHeight());
+                g2.dispose();
+                stale = false;
+            }
+            g.drawImage(scene, 0, 0, null);
+        }
+
+        private BufferedImage createScene(int width, int height) {
+            GraphicsConfiguration config = getGraphicsConfiguration();
+            return config != null ? config.createCompatibleImage(width, height, Transparency.OPAQUE)
+                    : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        private void renderArea(Graphics2D g2, int x, int y, int width, int height) {
+            g2.setColor(getBackground());
+            g2.fillRect(x, y, width, height);
+            g2.setColor(getForeground());
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            renderer.render(g2, scale, originX, originY, x, y, width, height);
+        }
+
+        private int roundUp(int pixels) {
+            return (pixels + BUFFER_STEP - 1) / BUFFER_STEP * BUFFER_STEP;
         }
     }
 }
@@ -1,21 +1,37 @@
 package hk.edu.polyu.comp.comp2021.clevis.model;
 
+import hk.edu.polyu.comp.comp2021.clevis.model.index.DrawOrder;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.RTree;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialIndex;
 import hk.edu.polyu.comp.comp2021.clevis.model.operations.*;
+import hk.edu.polyu.comp.comp2021.clevis.model.persistence.DrawingSnapshot;
+import hk.edu.polyu.comp.comp2021.clevis.model.persistence.Journal;
+import hk.edu.polyu.comp.comp2021.clevis.model.persistence.SvgExporter;
 import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeStore;
 import hk.edu.polyu.comp.comp2021.clevis.model.util.*;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 /**
  * Main model class for the Clevis vector graphics tool.
  * Coordinates all shape operations and maintains the drawing state.
  * This class serves as the facade for the model layer in the MVC pattern.
+ * Its methods are synchronized on the drawing, and listeners are told about a
+ * change while the monitor is still held. Other threads reading the public
+ * maps and lists or the shapes in them, such as a viewer, hold the same monitor.
  */
 public class Clevis {
 //    public static Group group;
     // Core data structures
     public Map<String, Shape> shapes = new LinkedHashMap<>();
-    public List<Shape> drawOrder = new ArrayList<>();
+    public List<Shape> drawOrder = new DrawOrder();
     public Map<String, Group> groups = new HashMap<>();
+    // Spatial index over the top-level shapes in drawOrder
+    private final SpatialIndex index;
 
     // Operation handlers
     private final ShapeFactory factory;
@@ -24,108 +40,784 @@ public class Clevis {
     private final ShapeMover mover;
     private final ShapeQueryHandler queryHandler;
     private final ShapeListFormatter formatter;
+    // Records every successful mutation when the drawing is journaled
+    private Journal journal;
+    // Undo and redo stacks of the mutating operations
+    private final EditHistory history = new EditHistory();
+    // Told about every change, including those made by undo and redo
+    private final List<DrawingListener> listeners = new CopyOnWriteArrayList<>();
 
     /**
-     * Initializes a new Clevis instance with all necessary components.
+     * Initializes a new Clevis instance with all necessary components,
+     * indexing the drawing with an {@link RTree}.
      */
     public Clevis() {
+        this(new RTree());
+    }
+
+    /**
+     * Initializes a new Clevis instance that indexes the drawing with the given
+     * spatial index, such as a {@link hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialHashGrid}.
+     * @param index an empty index, used by this drawing only
+     * @throws IllegalArgumentException if the index is not empty
+     */
+    public Clevis(SpatialIndex index) {
+        if (index.size() != 0) {
+            throw new IllegalArgumentException("Spatial index must be empty");
+        }
+        this.index = index;
         this.shapes = new LinkedHashMap<>();
-        this.drawOrder = new ArrayList<>();
+        this.drawOrder = new DrawOrder();
         this.groups = new HashMap<>();
-        this.factory = new ShapeFactory(shapes, drawOrder);
-        this.groupManager = new GroupManager(shapes, drawOrder, groups, factory);
-        this.shapeManager = new ShapeManager(shapes, drawOrder, groups, groupManager);
-        this.mover = new ShapeMover(shapes, drawOrder, groups);
-        this.queryHandler = new ShapeQueryHandler(shapes, drawOrder);
+        this.factory = new ShapeFactory(shapes, drawOrder, index);
+        this.groupManager = new GroupManager(shapes, drawOrder, groups, factory, index);
+        this.shapeManager = new ShapeManager(shapes, drawOrder, groups, groupManager, index);
+        this.mover = new ShapeMover(shapes, index, groupManager);
+        this.queryHandler = new ShapeQueryHandler(shapes, drawOrder, index, groupManager);
         this.formatter = new ShapeListFormatter(shapes, groups,drawOrder,groupManager);
     }
 
     /**
-     * @return all shapes in the drawing
+     * @return all shapes in the drawing, group members included; the fields of
+     *         members of groups larger than {@link Group#EAGER_MEMBERS} are
+     *         relative to the groups' pending offsets
      */
-    public Collection<Shape> all() {
+    public synchronized Collection<Shape> all() {
         return shapes.values();
     }
 
+    /**
+     * @return the z-index the next created shape receives
+     */
+    public synchronized int nextZ() {
+        return factory.getNextZ();
+    }
+
+    /**
+     * Records every later successful mutation in the journal, including undo
+     * and redo. The undo history starts afresh, as the journal cannot rebuild
+     * the history before its latest checkpoint.
+     * Called by {@link Journal#recover()}.
+     */
+    public synchronized void attachJournal(Journal journal) {
+        this.journal = journal;
+        history.clear();
+    }
+
+    // =============================
+    // Change events
+    // =============================
+
+    /**
+     * Registers a listener told about every later change to the drawing:
+     * creates, deletes, moves, groupings and whole-drawing restores, whether
+     * made directly or by undo and redo. Flatten sends no event, as it does
+     * not change what is drawn.
+     */
+    public void addListener(DrawingListener listener) {
+        listeners.add(Objects.requireNonNull(listener));
+    }
+
+    public void removeListener(DrawingListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fire(DrawingChange.Kind kind, String name, BoundingBox before, BoundingBox after) {
+        DrawingChange change = new DrawingChange(kind, name, before, after);
+        for (DrawingListener listener : listeners) {
+            listener.drawingChanged(change);
+        }
+    }
+
+    private void added(Shape shape) {
+        if (!listeners.isEmpty()) {
+            fire(DrawingChange.Kind.ADDED, shape.name(), null, boxOf(shape));
+        }
+    }
+
+    /**
+     * @return bounding box of a shape in drawing coordinates, or null if no
+     *         listener needs it
+     */
+    private BoundingBox boxOf(Shape shape) {
+        if (listeners.isEmpty()) {
+            return null;
+        }
+        BoundingBox box = shape.bbox();
+        double dx = groupManager.offsetX(shape), dy = groupManager.offsetY(shape);
+        return dx == 0 && dy == 0 ? box : new BoundingBox(box.x + dx, box.y + dy, box.w, box.h);
+    }
+
+    /**
+     * Copies the drawing into a structure-of-arrays store.
+     * @return a store holding every top-level shape and, for groups, their members
+     */
+    public synchronized PrimitiveShapeStore toPrimitiveStore() {
+        PrimitiveShapeStore store = new PrimitiveShapeStore();
+        for (Shape shape : drawOrder) {
+            store.add(shape);
+        }
+        return store;
+    }
+
+    // =============================
+    // Snapshots
+    // =============================
+
+    /**
+     * Writes the drawing to a binary snapshot file (see {@link DrawingSnapshot}).
+     */
+    public synchronized void save(String path) throws IOException {
+        DrawingSnapshot.write(Paths.get(path), drawOrder, factory.getNextZ());
+    }
+
+    /**
+     * Writes the drawing to an SVG file (see {@link SvgExporter}).
+     */
+    public synchronized void exportSvg(String path) throws IOException {
+        SvgExporter.write(Paths.get(path), drawOrder);
+    }
+
+    /**
+     * Replaces the drawing with the one in a binary snapshot file.
+     * The current drawing is kept if the file cannot be read.
+     */
+    public synchronized void load(String path) throws IOException {
+        DrawingSnapshot snapshot = DrawingSnapshot.read(Paths.get(path));
+        try {
+            restore(snapshot.topLevel(), snapshot.nextZ());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid snapshot: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replaces the drawing with the given top-level shapes, in drawing order.
+     * Groups bring their members along.
+     * @throws IllegalArgumentException if a name occurs more than once; the
+     *         drawing is then left unchanged
+     */
+    public synchronized void restore(List<Shape> topLevel, int nextZ) {
+        Map<String, Shape> named = new LinkedHashMap<>();
+        for (Shape shape : topLevel) {
+            collectNames(shape, named);
+        }
+        shapes.clear();
+        drawOrder.clear();
+        groups.clear();
+        index.clear();
+        groupManager.clear();
+        shapes.putAll(named);
+        index.insertAll(topLevel);
+        for (Shape shape : topLevel) {
+            drawOrder.add(shape);
+            if (shape instanceof Group) {
+                groups.put(shape.name(), (Group) shape);
+                groupManager.adopt((Group) shape);
+            }
+        }
+        factory.setNextZ(nextZ);
+        history.clear();
+        if (journal != null) {
+            journal.restored();
+        }
+        if (!listeners.isEmpty()) {
+            fire(DrawingChange.Kind.RESTORED, null, null, null);
+        }
+    }
+
+    private static void collectNames(Shape shape, Map<String, Shape> named) {
+        if (named.putIfAbsent(shape.name(), shape) != null) {
+            throw new IllegalArgumentException("Name already used: " + shape.name());
+        }
+        if (shape instanceof Group) {
+            for (Shape member : ((Group) shape).members()) {
+                collectNames(member, named);
+            }
+        }
+    }
+
     // =============================
     // REQ2-5: Shape creation methods
     // =============================
 
-    public Rectangle rectangle(String n, double x, double y, double w, double h) {
-        return factory.createRectangle(n, x, y, w, h);
+    public synchronized Rectangle rectangle(String n, double x, double y, double w, double h) {
+        Rectangle r = factory.createRectangle(n, x, y, w, h);
+        if (journal != null) {
+            journal.rectangle(n, x, y, w, h);
+        }
+        history.record(new Presence(r, drawOrder.size() - 1, true));
+        added(r);
+        return r;
     }
 
-    public Line line(String n, double x1, double y1, double x2, double y2) {
-        return factory.createLine(n, x1, y1, x2, y2);
+    public synchronized Line line(String n, double x1, double y1, double x2, double y2) {
+        Line l = factory.createLine(n, x1, y1, x2, y2);
+        if (journal != null) {
+            journal.line(n, x1, y1, x2, y2);
+        }
+        history.record(new Presence(l, drawOrder.size() - 1, true));
+        added(l);
+        return l;
     }
 
-    public Circle circle(String n, double x, double y, double r) {
-        return factory.createCircle(n, x, y, r);
+    public synchronized Circle circle(String n, double x, double y, double r) {
+        Circle c = factory.createCircle(n, x, y, r);
+        if (journal != null) {
+            journal.circle(n, x, y, r);
+        }
+        history.record(new Presence(c, drawOrder.size() - 1, true));
+        added(c);
+        return c;
     }
 
-    public Square square(String n, double x, double y, double sideLength) {
-        return factory.createSquare(n, x, y, sideLength);
+    public synchronized Square square(String n, double x, double y, double sideLength) {
+        Square s = factory.createSquare(n, x, y, sideLength);
+        if (journal != null) {
+            journal.square(n, x, y, sideLength);
+        }
+        history.record(new Presence(s, drawOrder.size() - 1, true));
+        added(s);
+        return s;
+    }
+
+    // =============================
+    // Batch creation
+    // =============================
+
+    /**
+     * Creates rectangles from packed values, four per shape: x, y, width, height.
+     * Names are validated once for the whole batch and the spatial index is
+     * loaded in one pass; if any shape is invalid, none is created.
+     * The batch is undone as one edit.
+     */
+    public synchronized List<Rectangle> rectangles(String[] names, double[] values) {
+        List<Rectangle> created = factory.createRectangles(names, values);
+        if (journal != null) {
+            for (int i = 0; i < names.length; i++) {
+                journal.rectangle(names[i], values[i * 4], values[i * 4 + 1], values[i * 4 + 2], values[i * 4 + 3]);
+            }
+        }
+        recordCreated(created);
+        return created;
+    }
+
+    /**
+     * Creates lines from packed values, four per shape: x1, y1, x2, y2.
+     */
+    public synchronized List<Line> lines(String[] names, double[] values) {
+        List<Line> created = factory.createLines(names, values);
+        if (journal != null) {
+            for (int i = 0; i < names.length; i++) {
+                journal.line(names[i], values[i * 4], values[i * 4 + 1], values[i * 4 + 2], values[i * 4 + 3]);
+            }
+        }
+        recordCreated(created);
+        return created;
+    }
+
+    /**
+     * Creates circles from packed values, three per shape: centre x, centre y, radius.
+     */
+    public synchronized List<Circle> circles(String[] names, double[] values) {
+        List<Circle> created = factory.createCircles(names, values);
+        if (journal != null) {
+            for (int i = 0; i < names.length; i++) {
+                journal.circle(names[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+            }
+        }
+        recordCreated(created);
+        return created;
+    }
+
+    /**
+     * Creates squares from packed values, three per shape: x, y, side length.
+     */
+    public synchronized List<Square> squares(String[] names, double[] values) {
+        List<Square> created = factory.createSquares(names, values);
+        if (journal != null) {
+            for (int i = 0; i < names.length; i++) {
+                journal.square(names[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+            }
+        }
+        recordCreated(created);
+        return created;
+    }
+
+    private void recordCreated(List<? extends Shape> created) {
+        int[] positions = new int[created.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = drawOrder.size() - positions.length + i;
+        }
+        history.record(new Batch(new ArrayList<>(created), positions, true));
+        for (Shape shape : created) {
+            added(shape);
+        }
     }
 
     // =============================
     // REQ6-7: Group operations
     // =============================
 
-    public Group group(String groupName, List<String> shapeNames) {
-        return groupManager.group(groupName, shapeNames);
+    public synchronized Group group(String groupName, List<String> shapeNames) {
+        Group group = groupManager.group(groupName, shapeNames);
+        if (journal != null) {
+            journal.group(groupName, shapeNames);
+        }
+        history.record(new Grouping(group, drawOrder.size() - 1, true));
+        grouped(group);
+        return group;
+    }
+
+    public synchronized void ungroup(String groupName) {
+        Shape group = shapes.get(groupName);
+        int position = drawOrder.indexOf(group);
+        dissolve(groupName);
+        history.record(new Grouping((Group) group, position, false));
     }
 
-    public void ungroup(String groupName) {
+    private void dissolve(String groupName) {
+        Shape group = shapes.get(groupName);
+        BoundingBox box = group == null ? null : boxOf(group);
         groupManager.ungroup(groupName);
+        if (journal != null) {
+            journal.ungroup(groupName);
+        }
+        if (!listeners.isEmpty()) {
+            fire(DrawingChange.Kind.UNGROUPED, groupName, box, box);
+        }
+    }
+
+    private void grouped(Group group) {
+        if (!listeners.isEmpty()) {
+            BoundingBox box = boxOf(group);
+            fire(DrawingChange.Kind.GROUPED, group.name(), box, box);
+        }
+    }
+
+    private void regroup(Group group, int position) {
+        groupManager.regroup(group, position);
+        if (journal != null) {
+            List<String> names = new ArrayList<>();
+            for (Shape member : group.members()) {
+                names.add(member.name());
+            }
+            journal.regroup(group.name(), group.z(), names, position);
+        }
+        grouped(group);
+    }
+
+    /**
+     * Puts a dissolved group back together with its own z-index.
+     * Used to replay a journaled undo of an ungroup.
+     * @throws IllegalArgumentException if a member is not a top-level shape
+     */
+    public synchronized void regroup(String groupName, int z, List<String> shapeNames, int position) {
+        List<Shape> members = new ArrayList<>();
+        for (String name : shapeNames) {
+            Shape member = shapes.get(name);
+            if (member == null) {
+                throw new IllegalArgumentException("Shape not found: " + name);
+            }
+            members.add(member);
+        }
+        regroup(new Group(groupName, z, members), position);
+    }
+
+    public synchronized void flatten(String groupName) {
+        groupManager.flatten(groupName);
+        if (journal != null) {
+            journal.flatten(groupName);
+        }
     }
 
     // =============================
     // REQ8: Delete operation
     // =============================
 
-    public void deleteShape(String name) {
+    public synchronized void deleteShape(String name) {
+        Shape shape = shapes.get(name);
+        // Members of groups are not in the drawing order and get -1
+        int position = drawOrder.indexOf(shape);
+        remove(name);
+        history.record(new Presence(shape, position, false));
+    }
+
+    /**
+     * Deletes several shapes at once (see {@link ShapeManager#deleteAll}).
+     * The batch is undone as one edit.
+     */
+    public synchronized void deleteMany(List<String> names) {
+        List<Shape> listed = new ArrayList<>(names.size());
+        for (String name : names) {
+            listed.add(shapes.get(name));
+        }
+        // Positions before the delete are the positions the undo restores
+        Map<Shape, Integer> positionOf = new IdentityHashMap<>(listed.size() * 2);
+        for (Shape shape : listed) {
+            if (shape != null) {
+                positionOf.put(shape, drawOrder.indexOf(shape));
+            }
+        }
+        List<Shape> deleted = removeAll(names);
+
+        deleted.sort(Comparator.comparingInt(positionOf::get));
+        int[] positions = new int[deleted.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = positionOf.get(deleted.get(i));
+        }
+        history.record(new Batch(deleted, positions, false));
+    }
+
+    private List<Shape> removeAll(List<String> names) {
+        Map<String, BoundingBox> boxes = new HashMap<>();
+        if (!listeners.isEmpty()) {
+            for (String name : names) {
+                Shape shape = shapes.get(name);
+                if (shape != null) {
+                    boxes.put(name, boxOf(shape));
+                }
+            }
+        }
+        List<Shape> deleted = shapeManager.deleteAll(names);
+        if (journal != null) {
+            for (Shape shape : deleted) {
+                journal.delete(shape.name());
+            }
+        }
+        if (!listeners.isEmpty()) {
+            for (Shape shape : deleted) {
+                fire(DrawingChange.Kind.DELETED, shape.name(), boxes.get(shape.name()), null);
+            }
+        }
+        return deleted;
+    }
+
+    private void putBackAll(List<Shape> restored, int[] positions) {
+        shapeManager.reinsertAll(restored, positions);
+        for (Shape shape : restored) {
+            added(shape);
+        }
+        if (journal == null) {
+            return;
+        }
+        for (int i = 0; i < restored.size(); i++) {
+            Shape shape = restored.get(i);
+            Group parent = groupManager.parentOf(shape);
+            if (parent != null) {
+                journal.reinsertMember(parent.name(), shape.name());
+            } else {
+                journal.reinsert(shape, positions[i]);
+            }
+        }
+    }
+
+    private void remove(String name) {
+        Shape shape = shapes.get(name);
+        BoundingBox box = shape == null ? null : boxOf(shape);
         shapeManager.deleteShape(name);
+        if (journal != null) {
+            journal.delete(name);
+        }
+        if (!listeners.isEmpty()) {
+            fire(DrawingChange.Kind.DELETED, name, box, null);
+        }
+    }
+
+    private void putBack(Shape shape, int position) {
+        shapeManager.reinsert(shape, position);
+        added(shape);
+        if (journal == null) {
+            return;
+        }
+        Group parent = groupManager.parentOf(shape);
+        if (parent != null) {
+            journal.reinsertMember(parent.name(), shape.name());
+        } else {
+            journal.reinsert(shape, position);
+        }
+    }
+
+    /**
+     * Puts a deleted top-level shape back at a position in the drawing order.
+     * Used to replay a journaled undo of a delete.
+     */
+    public synchronized void reinsert(Shape shape, int position) {
+        putBack(shape, position);
+    }
+
+    /**
+     * Puts a deleted group member back; it never left its group's member list.
+     * Used to replay a journaled undo of a delete.
+     * @throws IllegalArgumentException if the group has no such member
+     */
+    public synchronized void reinsertMember(String groupName, String name) {
+        Group group = groups.get(groupName);
+        if (group != null) {
+            for (Shape member : group.members()) {
+                if (member.name().equals(name)) {
+                    putBack(member, -1);
+                    return;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Shape not found: " + groupName + "/" + name);
     }
 
     // =============================
     // REQ9: Bounding box calculation
     // =============================
 
-    public BoundingBox boundingBox(String name) {
+    public synchronized BoundingBox boundingBox(String name) {
         return queryHandler.boundingBox(name);
     }
 
+    /**
+     * @return name of the outermost group containing the shape, the shape's own
+     *         name if it is top-level, or null if there is no such shape
+     */
+    public synchronized String topLevelOf(String name) {
+        Shape shape = shapes.get(name);
+        return shape == null ? null : groupManager.topLevelAncestor(shape).name();
+    }
+
     // =============================
     // REQ10: Move operation
     // =============================
 
-    public void move(String shapeName, double dx, double dy) {
+    public synchronized void move(String shapeName, double dx, double dy) {
+        translate(shapeName, dx, dy);
+        history.record(new Move(shapeName, dx, dy));
+    }
+
+    private void translate(String shapeName, double dx, double dy) {
+        Shape shape = shapes.get(shapeName);
+        BoundingBox before = shape == null ? null : boxOf(shape);
         mover.move(shapeName, dx, dy);
+        if (journal != null) {
+            journal.move(shapeName, dx, dy);
+        }
+        if (!listeners.isEmpty() && (dx != 0 || dy != 0)) {
+            fire(DrawingChange.Kind.MOVED, shapeName, before, boxOf(shape));
+        }
+    }
+
+    // =============================
+    // Undo and redo
+    // =============================
+
+    /**
+     * Reverses the latest create, group, ungroup, delete or move.
+     * Flatten is not an edit of its own, as it does not change the drawing.
+     * @return false if there is nothing to undo
+     */
+    public synchronized boolean undo() {
+        return history.undo();
+    }
+
+    /**
+     * Applies again the latest undone operation.
+     * @return false if there is nothing to redo
+     */
+    public synchronized boolean redo() {
+        return history.redo();
     }
 
     // =============================
     // REQ11: Find topmost shape at point
     // =============================
 
-    public String shapeAt(double x, double y) {
+    public synchronized String shapeAt(double x, double y) {
         return queryHandler.shapeAt(x, y);
     }
 
+    /**
+     * Finds the topmost shape at each of many points (see {@link ShapeQueryHandler#shapeAtBatch}).
+     * @return for each point, the name of the topmost shape covering it, or null
+     */
+    public synchronized String[] shapeAtBatch(double[] xs, double[] ys) {
+        return queryHandler.shapeAtBatch(xs, ys, 1);
+    }
+
+    public synchronized String[] shapeAtBatch(double[] xs, double[] ys, int parallelism) {
+        return queryHandler.shapeAtBatch(xs, ys, parallelism);
+    }
+
     // =============================
     // REQ12: Intersection detection
     // =============================
 
-    public boolean intersect(String name1, String name2) {
+    public synchronized boolean intersect(String name1, String name2) {
         return queryHandler.intersect(name1, name2);
     }
 
+    public synchronized List<IntersectionPair> intersectAll() {
+        return queryHandler.intersectAll();
+    }
+
+    public synchronized List<IntersectionPair> intersectAll(int parallelism) {
+        return queryHandler.intersectAll(parallelism);
+    }
+
+    // =============================
+    // Region queries
+    // =============================
+
+    /**
+     * Finds the top-level shapes inside or touching a region (see {@link ShapeQueryHandler#shapesIn}).
+     * @return names of the matching shapes, in ascending z-index order
+     */
+    public synchronized List<String> shapesIn(double x, double y, double w, double h, ShapeQueryHandler.RegionMode mode) {
+        List<String> names = new ArrayList<>();
+        queryHandler.shapesIn(x, y, w, h, mode, shape -> names.add(shape.name()));
+        return names;
+    }
+
+    public synchronized void shapesIn(double x, double y, double w, double h, ShapeQueryHandler.RegionMode mode,
+                         Consumer<Shape> sink) {
+        queryHandler.shapesIn(x, y, w, h, mode, sink);
+    }
+
     // =============================
     // REQ13-14: Listing operations
     // =============================
 
-    public String list(String name) {
+    public synchronized String list(String name) {
         return formatter.list(name);
     }
 
-    public String listAll() { return formatter.listAll(); }
-}
\ No newline at end of file
+    public synchronized String listAll() { return formatter.listAll(); }
+
+    /**
+     * A shape tree that was created or deleted. The same objects go out of
+     * and back into the drawing, so later edits still refer to them.
+     */
+    private final class Presence implements EditHistory.Edit {
+        private final Shape shape;
+        private final int position;
+        private final boolean created;
+
+        Presence(Shape shape, int position, boolean created) {
+            this.shape = shape;
+            this.position = position;
+            this.created = created;
+        }
+
+        @Override
+        public void undo() {
+            if (created) {
+                remove(shape.name());
+            } else {
+                putBack(shape, position);
+            }
+        }
+
+        @Override
+        public void redo() {
+            if (created) {
+                putBack(shape, position);
+            } else {
+                remove(shape.name());
+            }
+        }
+    }
+
+    /**
+     * Shape trees created or deleted by one batch call, in drawing order.
+     * Members of groups, which are not in the drawing order, come first.
+     */
+    private final class Batch implements EditHistory.Edit {
+        private final List<Shape> shapes;
+        private final int[] positions;
+        private final boolean created;
+
+        Batch(List<Shape> shapes, int[] positions, boolean created) {
+            this.shapes = shapes;
+            this.positions = positions;
+            this.created = created;
+        }
+
+        @Override
+        public void undo() {
+            if (created) {
+                removeAll(names());
+            } else {
+                putBackAll(shapes, positions);
+            }
+        }
+
+        @Override
+        public void redo() {
+            if (created) {
+                putBackAll(shapes, positions);
+            } else {
+                removeAll(names());
+            }
+        }
+
+        private List<String> names() {
+            List<String> names = new ArrayList<>(shapes.size());
+            for (Shape shape : shapes) {
+                names.add(shape.name());
+            }
+            return names;
+        }
+    }
+
+    /**
+     * A group that was formed or dissolved.
+     */
+    private final class Grouping implements EditHistory.Edit {
+        private final Group group;
+        private final int position;
+        private final boolean formed;
+
+        Grouping(Group group, int position, boolean formed) {
+            this.group = group;
+            this.position = position;
+            this.formed = formed;
+        }
+
+        @Override
+        public void undo() {
+            if (formed) {
+                dissolve(group.name());
+            } else {
+                regroup(group, position);
+            }
+        }
+
+        @Override
+        public void redo() {
+            if (formed) {
+                regroup(group, position);
+            } else {
+                dissolve(group.name());
+            }
+        }
+    }
+
+    /**
+     * A move, undone by the opposite move.
+     */
+    private final class Move implements EditHistory.Edit {
+        private final String name;
+        private final double dx, dy;
+
+        Move(String name, double dx, double dy) {
+            this.name = name;
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        @Override
+        public void undo() {
+            translate(name, -dx, -dy);
+        }
+
+        @Override
+        public void redo() {
+            translate(name, dx, dy);
+        }
+    }
+}
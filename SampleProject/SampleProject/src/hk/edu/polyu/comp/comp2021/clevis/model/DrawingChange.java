@@ -0,0 +1,45 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.BoundingBox;
+
+/**
+ * One change to a drawing, sent to the {@link DrawingListener}s of a {@link Clevis}
+ * after the change has been made. Boxes are in drawing coordinates, with the
+ * offsets of any enclosing groups applied.
+ */
+public final class DrawingChange {
+    public enum Kind {
+        /** A shape was created or put back; only {@link #after} is set. */
+        ADDED,
+        /** A shape was deleted; only {@link #before} is set. */
+        DELETED,
+        /** A shape was moved from {@link #before} to {@link #after}. */
+        MOVED,
+        /** A group was formed, or formed again; its shapes did not move. */
+        GROUPED,
+        /** A group was dissolved; its shapes did not move. */
+        UNGROUPED,
+        /** The whole drawing was replaced; no name or box is set. */
+        RESTORED
+    }
+
+    public final Kind kind;
+    /** Name of the shape or group changed, or null for RESTORED. */
+    public final String name;
+    /** Bounding box before the change, or null if the shape was not drawn before. */
+    public final BoundingBox before;
+    /** Bounding box after the change, or null if the shape is not drawn after. */
+    public final BoundingBox after;
+
+    public DrawingChange(Kind kind, String name, BoundingBox before, BoundingBox after) {
+        this.kind = kind;
+        this.name = name;
+        this.before = before;
+        this.after = after;
+    }
+
+    @Override
+    public String toString() {
+        return kind + (name == null ? "" : " " + name);
+    }
+}
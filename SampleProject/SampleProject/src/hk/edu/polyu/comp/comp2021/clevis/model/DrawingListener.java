@@ -0,0 +1,11 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+/**
+ * Receives the changes made to a drawing (see {@link Clevis#addListener}).
+ * Called on the thread that made the change, once the change is complete,
+ * so implementations should return quickly and hand any slow work, such as
+ * repainting, to another thread.
+ */
+public interface DrawingListener {
+    void drawingChanged(DrawingChange change);
+}
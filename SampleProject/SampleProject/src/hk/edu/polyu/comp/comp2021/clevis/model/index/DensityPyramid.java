@@ -0,0 +1,469 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.index;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Shape;
+import java.util.*;
+
+/**
+ * Quadtree pyramid over the bounding boxes of the top-level shapes in a
+ * drawing, for drawing them at any scale with a level of detail.
+ * Level l cuts the plane into square cells of side 2^l, from
+ * {@link #MIN_LEVEL} up to {@link #MAX_LEVEL}; each cell has the four cells
+ * of the level below it as children. A shape whose bounding box is smaller
+ * than 2^l but not than 2^(l - 1) (see {@link #levelOf}) is stored in the cell
+ * of level l holding the centre of its box, so it lies within that cell grown
+ * by half a cell on every side. Every cell also counts the shapes stored in
+ * it and below it.
+ * <p>
+ * {@link #query} walks down from the top level to a detail level d, returning
+ * the shapes of the levels above d and, for every non-empty cell of level d,
+ * only its count: the shapes smaller than 2^d it stands for are never visited.
+ * With d chosen so that a cell is at most one pixel, those shapes would have
+ * been drawn into a single pixel anyway. A plain {@link #search} does not
+ * aggregate anything.
+ * <p>
+ * As in {@link SpatialHashGrid}, the cells of a level are kept in an
+ * open-addressing hash table keyed by the packed cell coordinates, and only
+ * cells that have held a shape are stored. Inserting, removing and moving a
+ * shape update one counter per level. Shapes of {@link #MAX_LEVEL} or more,
+ * and shapes whose cell lies outside the int range, are kept in a separate
+ * list that every query scans.
+ */
+public class DensityPyramid implements SpatialIndex {
+    public static final int MIN_LEVEL = -6;
+    public static final int MAX_LEVEL = 30;
+    private static final int INITIAL_SLOTS = 64;
+
+    private final Level[] levels = new Level[MAX_LEVEL - MIN_LEVEL + 1];
+    private final List<Entry> oversized = new ArrayList<>();
+    private final Map<Shape, Entry> entryOf = new HashMap<>();
+    // Reused so that reading a bounding box allocates nothing
+    private final double[] scratch = new double[4];
+
+    /**
+     * Receives the non-empty cells of the detail level from {@link #query}.
+     */
+    public interface CellSink {
+        /**
+         * @param x left edge of the cell, in drawing units
+         * @param y top edge of the cell, in drawing units
+         * @param side side length of the cell
+         * @param count number of shapes smaller than the cell with their centre in it
+         */
+        void cell(double x, double y, double side, int count);
+    }
+
+    /**
+     * A shape with the level and cell it is stored in, and its position in
+     * that cell's shape array or in the oversized list.
+     */
+    private static final class Entry {
+        final Shape shape;
+        int level, cellX, cellY, position;
+
+        Entry(Shape shape) {
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * @return the lowest level whose cells are larger than a box of the given
+     *         size (its larger side): 2^(l - 1) &lt;= size &lt; 2^l, or
+     *         {@link #MIN_LEVEL} for smaller sizes. Sizes that are not finite
+     *         get a level above {@link #MAX_LEVEL}.
+     */
+    public static int levelOf(double size) {
+        if (!(size < Double.POSITIVE_INFINITY)) {
+            return MAX_LEVEL + 1;
+        }
+        return Math.max(MIN_LEVEL, Math.getExponent(size) + 1);
+    }
+
+    /**
+     * @return the level whose cells are at most one pixel at the given scale,
+     *         in pixels per drawing unit, within {@link #MIN_LEVEL} and
+     *         {@link #MAX_LEVEL}
+     * @throws IllegalArgumentException if the scale is not positive and finite
+     */
+    public static int detailLevel(double scale) {
+        if (!(scale > 0) || Double.isInfinite(scale)) {
+            throw new IllegalArgumentException("Scale must be positive: " + scale);
+        }
+        int exponent = Math.getExponent(scale);
+        // 2^-level <= scale, rounding the level up when the scale is not a power of two
+        int level = scale == Math.scalb(1.0, exponent) ? -exponent : -exponent - 1;
+        return Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+    }
+
+    @Override
+    public void insert(Shape shape) {
+        if (entryOf.containsKey(shape)) {
+            throw new IllegalArgumentException("Shape already indexed: " + shape.name());
+        }
+        Entry entry = new Entry(shape);
+        place(entry);
+        link(entry);
+        entryOf.put(shape, entry);
+    }
+
+    @Override
+    public boolean remove(Shape shape) {
+        Entry entry = entryOf.remove(shape);
+        if (entry == null) {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    @Override
+    public void insertAll(Collection<? extends Shape> shapes) {
+        Set<Shape> batch = Collections.newSetFromMap(new IdentityHashMap<>(shapes.size() * 2));
+        for (Shape shape : shapes) {
+            if (entryOf.containsKey(shape) || !batch.add(shape)) {
+                throw new IllegalArgumentException("Shape already indexed: " + shape.name());
+            }
+        }
+        for (Shape shape : shapes) {
+            insert(shape);
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<? extends Shape> shapes) {
+        for (Shape shape : shapes) {
+            remove(shape);
+        }
+    }
+
+    /**
+     * Re-indexes a shape whose bounding box has changed. Nothing is updated
+     * when the shape stays in the same cell of the same level.
+     */
+    @Override
+    public void update(Shape shape) {
+        Entry entry = entryOf.get(shape);
+        if (entry == null) {
+            return;
+        }
+        int level = entry.level, cellX = entry.cellX, cellY = entry.cellY;
+        place(entry);
+        if (entry.level == level && entry.cellX == cellX && entry.cellY == cellY) {
+            return;
+        }
+        int newLevel = entry.level, newX = entry.cellX, newY = entry.cellY;
+        entry.level = level;
+        entry.cellX = cellX;
+        entry.cellY = cellY;
+        unlink(entry);
+        entry.level = newLevel;
+        entry.cellX = newX;
+        entry.cellY = newY;
+        link(entry);
+    }
+
+    @Override
+    public void search(double minX, double minY, double maxX, double maxY, List<Shape> out) {
+        query(MIN_LEVEL - 1, minX, minY, maxX, maxY, out, null);
+    }
+
+    /**
+     * Collects the shapes of the levels above the detail level whose bounding
+     * boxes overlap the query box, and reports every non-empty cell of the
+     * detail level that overlaps it to the sink. Every shape is thus either
+     * collected or counted in a cell, never both.
+     * @param detailLevel level whose cells are reported instead of their shapes;
+     *        below {@link #MIN_LEVEL}, every shape is collected
+     * @param cells receives the cells of the detail level; may be null when the
+     *        detail level is below {@link #MIN_LEVEL}
+     */
+    public void query(int detailLevel, double minX, double minY, double maxX, double maxY,
+                      List<Shape> out, CellSink cells) {
+        for (Entry entry : oversized) {
+            collect(entry.shape, minX, minY, maxX, maxY, out);
+        }
+        Level top = levels[MAX_LEVEL - MIN_LEVEL];
+        if (top == null) {
+            return;
+        }
+        int detail = Math.min(detailLevel, MAX_LEVEL);
+        // Few cells of the top level hold anything: visit the stored ones
+        for (int slot = 0; slot < top.keys.length; slot++) {
+            if (top.counts[slot] == 0) {
+                continue;
+            }
+            int cellX = (int) (top.keys[slot] >> 32), cellY = (int) top.keys[slot];
+            visit(MAX_LEVEL, top, slot, cellX, cellY, detail, minX, minY, maxX, maxY, out, cells);
+        }
+    }
+
+    /**
+     * Reports a cell at the detail level, or collects the shapes stored in it
+     * and walks down to those of its children the query box can reach.
+     */
+    private void visit(int level, Level cells, int slot, int cellX, int cellY, int detail,
+                       double minX, double minY, double maxX, double maxY, List<Shape> out, CellSink sink) {
+        double side = Math.scalb(1.0, level);
+        double left = cellX * side, top = cellY * side;
+        if (level == detail) {
+            if (left <= maxX && left + side >= minX && top <= maxY && top + side >= minY) {
+                sink.cell(left, top, side, cells.counts[slot]);
+            }
+            return;
+        }
+        // Shapes stored here reach at most half a cell past its edges
+        double loose = side / 2;
+        if (left - loose > maxX || left + side + loose < minX || top - loose > maxY || top + side + loose < minY) {
+            return;
+        }
+        Shape[] stored = cells.shapes[slot];
+        for (int i = 0; i < cells.sizes[slot]; i++) {
+            collect(stored[i], minX, minY, maxX, maxY, out);
+        }
+        if (level == MIN_LEVEL) {
+            return;
+        }
+        Level below = levels[level - 1 - MIN_LEVEL];
+        if (below == null) {
+            return;
+        }
+        for (int childX = 2 * cellX; childX <= 2 * cellX + 1; childX++) {
+            for (int childY = 2 * cellY; childY <= 2 * cellY + 1; childY++) {
+                int child = below.find(key(childX, childY));
+                if (child >= 0 && below.counts[child] > 0) {
+                    visit(level - 1, below, child, childX, childY, detail, minX, minY, maxX, maxY, out, sink);
+                }
+            }
+        }
+    }
+
+    private void collect(Shape shape, double minX, double minY, double maxX, double maxY, List<Shape> out) {
+        shape.bounds(scratch);
+        if (scratch[0] <= maxX && scratch[2] >= minX && scratch[1] <= maxY && scratch[3] >= minY) {
+            out.add(shape);
+        }
+    }
+
+    @Override
+    public boolean contains(Shape shape) {
+        return entryOf.containsKey(shape);
+    }
+
+    @Override
+    public int size() {
+        return entryOf.size();
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(levels, null);
+        oversized.clear();
+        entryOf.clear();
+    }
+
+    /**
+     * Reads the shape's current bounding box and the level and cell it
+     * belongs in into the entry.
+     */
+    private void place(Entry entry) {
+        entry.shape.bounds(scratch);
+        entry.level = levelOf(Math.max(scratch[2] - scratch[0], scratch[3] - scratch[1]));
+        if (entry.level <= MAX_LEVEL) {
+            double side = Math.scalb(1.0, entry.level);
+            double cellX = Math.floor((scratch[0] + scratch[2]) / 2 / side);
+            double cellY = Math.floor((scratch[1] + scratch[3]) / 2 / side);
+            if (!inIntRange(cellX) || !inIntRange(cellY)) {
+                // Casting would clamp the cell to an edge one that queries never reach
+                entry.level = MAX_LEVEL + 1;
+                return;
+            }
+            entry.cellX = (int) cellX;
+            entry.cellY = (int) cellY;
+        }
+    }
+
+    private static boolean inIntRange(double cell) {
+        return cell >= Integer.MIN_VALUE && cell <= Integer.MAX_VALUE;
+    }
+
+    private void link(Entry entry) {
+        if (entry.level > MAX_LEVEL) {
+            entry.position = oversized.size();
+            oversized.add(entry);
+            return;
+        }
+        Level own = level(entry.level);
+        entry.position = own.add(own.slotFor(key(entry.cellX, entry.cellY)), entry.shape);
+        // The same cell coordinates halved give the cell of the level above
+        for (int level = entry.level; level <= MAX_LEVEL; level++) {
+            // Shift counts are taken modulo 32; past 31 every cell is already 0 or -1
+            int shift = Math.min(level - entry.level, 31);
+            Level cells = level(level);
+            // Claiming the slot can rehash the table, so find it before reading the counts
+            int slot = cells.slotFor(key(entry.cellX >> shift, entry.cellY >> shift));
+            cells.counts[slot]++;
+        }
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.level > MAX_LEVEL) {
+            Entry last = oversized.remove(oversized.size() - 1);
+            if (last != entry) {
+                oversized.set(entry.position, last);
+                last.position = entry.position;
+            }
+            return;
+        }
+        Level own = levels[entry.level - MIN_LEVEL];
+        Shape moved = own.remove(own.find(key(entry.cellX, entry.cellY)), entry.position);
+        if (moved != null) {
+            entryOf.get(moved).position = entry.position;
+        }
+        for (int level = entry.level; level <= MAX_LEVEL; level++) {
+            int shift = Math.min(level - entry.level, 31);
+            Level cells = levels[level - MIN_LEVEL];
+            cells.counts[cells.find(key(entry.cellX >> shift, entry.cellY >> shift))]--;
+        }
+    }
+
+    private Level level(int level) {
+        Level cells = levels[level - MIN_LEVEL];
+        if (cells == null) {
+            cells = levels[level - MIN_LEVEL] = new Level();
+        }
+        return cells;
+    }
+
+    private static long key(int cellX, int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+    }
+
+    // ============================================================================
+    // CELL TABLE
+    // ============================================================================
+
+    /**
+     * Cells of one level: a hash table from packed cell coordinates to the
+     * number of shapes in and below the cell and the shapes stored in it.
+     */
+    private static final class Level {
+        private long[] keys = new long[INITIAL_SLOTS];
+        private int[] counts = new int[INITIAL_SLOTS];
+        private Shape[][] shapes = new Shape[INITIAL_SLOTS][];
+        private int[] sizes = new int[INITIAL_SLOTS];
+        private boolean[] taken = new boolean[INITIAL_SLOTS];
+        // Slots in use, including cells that have become empty
+        private int used;
+
+        /**
+         * @return slot of the cell, or -1 if it has never held a shape
+         */
+        int find(long key) {
+            int mask = keys.length - 1;
+            for (int slot = hash(key, mask); taken[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return slot of the cell, claiming a free slot for it if needed
+         */
+        int slotFor(long key) {
+            int mask = keys.length - 1;
+            int slot = hash(key, mask);
+            for (; taken[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            if ((used + 1) * 2 > keys.length) {
+                rehash();
+                return slotFor(key);
+            }
+            keys[slot] = key;
+            taken[slot] = true;
+            used++;
+            return slot;
+        }
+
+        /**
+         * Stores a shape in a cell.
+         * @return position of the shape in the cell's shape array
+         */
+        int add(int slot, Shape shape) {
+            Shape[] stored = shapes[slot];
+            if (stored == null) {
+                stored = shapes[slot] = new Shape[2];
+            } else if (sizes[slot] == stored.length) {
+                stored = shapes[slot] = Arrays.copyOf(stored, stored.length * 2);
+            }
+            stored[sizes[slot]] = shape;
+            return sizes[slot]++;
+        }
+
+        /**
+         * Removes the shape at a position by moving the cell's last shape into
+         * its place, as the order within a cell does not matter.
+         * @return the shape moved, or null if the removed shape was the last
+         */
+        Shape remove(int slot, int position) {
+            Shape[] stored = shapes[slot];
+            int last = --sizes[slot];
+            Shape moved = position < last ? stored[last] : null;
+            stored[position] = stored[last];
+            stored[last] = null;
+            if (last == 0) {
+                shapes[slot] = null;
+            }
+            return moved;
+        }
+
+        /**
+         * Rebuilds the table, dropping the cells that have become empty, with at
+         * least twice as many slots as non-empty cells.
+         */
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            Shape[][] oldShapes = shapes;
+            int[] oldSizes = sizes;
+            int live = 0;
+            for (int count : oldCounts) {
+                live += count > 0 ? 1 : 0;
+            }
+            int slots = INITIAL_SLOTS;
+            while (slots < (live + 1) * 4) {
+                slots *= 2;
+            }
+            keys = new long[slots];
+            counts = new int[slots];
+            shapes = new Shape[slots][];
+            sizes = new int[slots];
+            taken = new boolean[slots];
+            used = 0;
+            int mask = slots - 1;
+            for (int old = 0; old < oldKeys.length; old++) {
+                if (oldCounts[old] == 0) {
+                    continue;
+                }
+                int slot = hash(oldKeys[old], mask);
+                while (taken[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[old];
+                counts[slot] = oldCounts[old];
+                shapes[slot] = oldShapes[old];
+                sizes[slot] = oldSizes[old];
+                taken[slot] = true;
+                used++;
+            }
+        }
+
+        private static int hash(long key, int mask) {
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.index;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Shape;
+import java.util.*;
+
+/**
+ * List of the top-level shapes in drawing order that finds and removes a shape
+ * without scanning.
+ * Shapes sit in an array of slots; removing one leaves a tombstone (null) in
+ * its slot, and the array is compacted once tombstones outnumber live shapes.
+ * A position map gives the slot of every shape, and a Fenwick tree over the
+ * live slots turns slots into list indexes and back in O(log n).
+ * <ul>
+ *   <li>add, remove(Object), indexOf, get, set: O(log n), amortized for add and remove</li>
+ *   <li>contains: O(1)</li>
+ *   <li>add(index, shape) before the end: O(n), as slots have to shift;
+ *       {@link #insertAll} inserts many shapes in one such pass</li>
+ *   <li>iteration: O(n + tombstones)</li>
+ * </ul>
+ * Shapes are compared by identity, and a shape can be in the list only once:
+ * setting a shape that is already in the list at another index swaps the two,
+ * which keeps {@link Collections#swap} and {@link List#sort} working.
+ */
+public class DrawOrder extends AbstractList<Shape> {
+    private Shape[] slots = new Shape[64];
+    // Fenwick tree counting the live slots, 1-based
+    private int[] live = new int[65];
+    private final Map<Shape, Integer> slotOf = new IdentityHashMap<>();
+    // Slots in use, live or tombstoned
+    private int end;
+
+    @Override
+    public int size() {
+        return slotOf.size();
+    }
+
+    @Override
+    public Shape get(int index) {
+        Objects.checkIndex(index, size());
+        return slots[slotAt(index)];
+    }
+
+    /**
+     * Replaces the shape at a list index. A shape already in the list at
+     * another index moves to this one and the replaced shape takes its place.
+     * @return the replaced shape
+     * @throws IllegalArgumentException if the shape is null
+     */
+    @Override
+    public Shape set(int index, Shape shape) {
+        Objects.checkIndex(index, size());
+        if (shape == null) {
+            throw new IllegalArgumentException("Shape is required");
+        }
+        int slot = slotAt(index);
+        Shape replaced = slots[slot];
+        Integer other = slotOf.get(shape);
+        if (other == null) {
+            slotOf.remove(replaced);
+        } else {
+            slots[other] = replaced;
+            slotOf.put(replaced, other);
+        }
+        slots[slot] = shape;
+        slotOf.put(shape, slot);
+        return replaced;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return slotOf.containsKey(o);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        Integer slot = slotOf.get(o);
+        return slot == null ? -1 : liveBefore(slot);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    /**
+     * Appends a shape.
+     * @throws IllegalArgumentException if the shape is already in the list
+     */
+    @Override
+    public boolean add(Shape shape) {
+        if (slotOf.containsKey(shape)) {
+            throw new IllegalArgumentException("Shape already in draw order: " + shape.name());
+        }
+        if (end == slots.length) {
+            if (size() * 2 <= end) {
+                compact();
+            } else {
+                slots = Arrays.copyOf(slots, end * 2);
+                rebuildCounts();
+            }
+        }
+        slots[end] = shape;
+        slotOf.put(shape, end);
+        change(end, 1);
+        end++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Inserts a shape at a list index. Appending is as cheap as {@link #add(Shape)};
+     * any other index shifts the slots after it.
+     * @throws IllegalArgumentException if the shape is already in the list
+     */
+    @Override
+    public void add(int index, Shape shape) {
+        Objects.checkIndex(index, size() + 1);
+        if (index == size()) {
+            add(shape);
+            return;
+        }
+        if (slotOf.containsKey(shape)) {
+            throw new IllegalArgumentException("Shape already in draw order: " + shape.name());
+        }
+        compact();
+        if (end == slots.length) {
+            slots = Arrays.copyOf(slots, end * 2);
+        }
+        System.arraycopy(slots, index, slots, index + 1, end - index);
+        slots[index] = shape;
+        end++;
+        for (int slot = index; slot < end; slot++) {
+            slotOf.put(slots[slot], slot);
+        }
+        rebuildCounts();
+        modCount++;
+    }
+
+    /**
+     * Inserts shapes at the list indexes they have once all of them are in,
+     * merging them with the shapes already present in one O(n + m) pass.
+     * @param indexes final list indexes, ascending, one per shape
+     * @throws IllegalArgumentException if the indexes are not ascending and in
+     *         range, or a shape is already in the list; the list is then unchanged
+     */
+    public void insertAll(int[] indexes, List<? extends Shape> shapes) {
+        int m = shapes.size();
+        int total = size() + m;
+        if (indexes.length != m) {
+            throw new IllegalArgumentException("Expected one index per shape");
+        }
+        Set<Shape> inserted = Collections.newSetFromMap(new IdentityHashMap<>(m * 2));
+        for (int k = 0; k < m; k++) {
+            if (indexes[k] < 0 || indexes[k] >= total || (k > 0 && indexes[k] <= indexes[k - 1])) {
+                throw new IllegalArgumentException("Insertion indexes must be ascending and within the list");
+            }
+            Shape shape = shapes.get(k);
+            if (slotOf.containsKey(shape) || !inserted.add(shape)) {
+                throw new IllegalArgumentException("Shape already in draw order: " + shape.name());
+            }
+        }
+        compact();
+        Shape[] merged = new Shape[Math.max(slots.length, Integer.highestOneBit(Math.max(total, 1)) * 2)];
+        int from = 0;
+        for (int slot = 0, k = 0; slot < total; slot++) {
+            merged[slot] = k < m && indexes[k] == slot ? shapes.get(k++) : slots[from++];
+            slotOf.put(merged[slot], slot);
+        }
+        slots = merged;
+        end = total;
+        rebuildCounts();
+        modCount++;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        Integer slot = slotOf.remove(o);
+        if (slot == null) {
+            return false;
+        }
+        tombstone(slot);
+        return true;
+    }
+
+    @Override
+    public Shape remove(int index) {
+        Objects.checkIndex(index, size());
+        int slot = slotAt(index);
+        Shape shape = slots[slot];
+        slotOf.remove(shape);
+        tombstone(slot);
+        return shape;
+    }
+
+    @Override
+    public void clear() {
+        slots = new Shape[64];
+        live = new int[65];
+        slotOf.clear();
+        end = 0;
+        modCount++;
+    }
+
+    @Override
+    public Iterator<Shape> iterator() {
+        return new Iterator<Shape>() {
+            private int next = skip(0);
+            private int last = -1;
+            private int expected = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public Shape next() {
+                if (modCount != expected) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next >= end) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = skip(next + 1);
+                return slots[last];
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                if (modCount != expected) {
+                    throw new ConcurrentModificationException();
+                }
+                // Removing can compact the slots, so find the upcoming shape again
+                Shape upcoming = next < end ? slots[next] : null;
+                slotOf.remove(slots[last]);
+                tombstone(last);
+                last = -1;
+                expected = modCount;
+                next = upcoming == null ? end : slotOf.get(upcoming);
+            }
+
+            private int skip(int slot) {
+                while (slot < end && slots[slot] == null) {
+                    slot++;
+                }
+                return slot;
+            }
+        };
+    }
+
+    @Override
+    public Object[] toArray() {
+        Object[] array = new Object[size()];
+        int i = 0;
+        for (int slot = 0; slot < end; slot++) {
+            if (slots[slot] != null) {
+                array[i++] = slots[slot];
+            }
+        }
+        return array;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        int n = size();
+        T[] array = a.length >= n ? a : (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), n);
+        int i = 0;
+        for (int slot = 0; slot < end; slot++) {
+            if (slots[slot] != null) {
+                array[i++] = (T) slots[slot];
+            }
+        }
+        if (array.length > n) {
+            array[n] = null;
+        }
+        return array;
+    }
+
+    private void tombstone(int slot) {
+        slots[slot] = null;
+        change(slot, -1);
+        modCount++;
+        if (slot == end - 1) {
+            // Trailing tombstones are simply dropped
+            while (end > 0 && slots[end - 1] == null) {
+                end--;
+            }
+        } else if (size() * 2 < end && end > 64) {
+            compact();
+        }
+    }
+
+    /**
+     * Moves the live shapes to the front of the slot array, keeping their order.
+     */
+    private void compact() {
+        int to = 0;
+        for (int from = 0; from < end; from++) {
+            Shape shape = slots[from];
+            if (shape != null) {
+                if (to != from) {
+                    slots[to] = shape;
+                    slotOf.put(shape, to);
+                }
+                to++;
+            }
+        }
+        Arrays.fill(slots, to, end, null);
+        end = to;
+        rebuildCounts();
+    }
+
+    /**
+     * Rebuilds the Fenwick tree from the slots in O(n).
+     */
+    private void rebuildCounts() {
+        live = new int[slots.length + 1];
+        for (int i = 1; i <= slots.length; i++) {
+            if (i <= end && slots[i - 1] != null) {
+                live[i]++;
+            }
+            int parent = i + (i & -i);
+            if (parent <= slots.length) {
+                live[parent] += live[i];
+            }
+        }
+    }
+
+    private void change(int slot, int delta) {
+        for (int i = slot + 1; i < live.length; i += i & -i) {
+            live[i] += delta;
+        }
+    }
+
+    /**
+     * @return number of live shapes in the slots before the given one
+     */
+    private int liveBefore(int slot) {
+        int count = 0;
+        for (int i = slot; i > 0; i -= i & -i) {
+            count += live[i];
+        }
+        return count;
+    }
+
+    /**
+     * @return slot of the live shape with the given list index
+     */
+    private int slotAt(int index) {
+        // Descend the Fenwick tree to the first prefix holding index + 1 live slots
+        int position = 0;
+        int remaining = index + 1;
+        for (int step = Integer.highestOneBit(live.length - 1); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next < live.length && live[next] < remaining) {
+                position = next;
+                remaining -= live[next];
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,549 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.index;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import java.util.*;
+
+/**
+ * Dynamic R-tree over the bounding boxes of the top-level shapes in a drawing.
+ * Supports REQ11 (shapeAt) by narrowing a point query down to the shapes whose
+ * bounding boxes are near the point instead of scanning the whole draw order.
+ * Uses Guttman's insertion algorithm with a quadratic node split; large batches
+ * are instead packed into a new tree with Sort-Tile-Recursive (STR) loading.
+ */
+public class RTree implements SpatialIndex {
+    private static final int MAX_ENTRIES = 16;
+    private static final int MIN_ENTRIES = 6;
+
+    private Node root = new Node(true);
+    private final Map<Shape, Node> leafOf = new HashMap<>();
+    // Reused by insert() so that reading a bounding box allocates nothing
+    private final double[] scratch = new double[4];
+
+    /**
+     * Adds a shape to the index using its current bounding box.
+     * @param shape the shape to index
+     * @throws IllegalArgumentException if the shape is already indexed
+     */
+    public void insert(Shape shape) {
+        if (leafOf.containsKey(shape)) {
+            throw new IllegalArgumentException("Shape already indexed: " + shape.name());
+        }
+        shape.bounds(scratch);
+        insertEntry(shape, scratch[0], scratch[1], scratch[2], scratch[3]);
+    }
+
+    /**
+     * Removes a shape from the index.
+     * @param shape the shape to remove
+     * @return true if the shape was indexed
+     */
+    public boolean remove(Shape shape) {
+        Node leaf = leafOf.remove(shape);
+        if (leaf == null) {
+            return false;
+        }
+        leaf.removeAt(leaf.indexOf(shape));
+        condenseTree(leaf);
+        return true;
+    }
+
+    /**
+     * Adds many shapes at once. A batch at least half the size of the index
+     * replaces the tree with one packed from all shapes by STR, which sorts
+     * instead of descending the tree per shape and leaves the nodes full.
+     * Smaller batches are inserted one by one.
+     * @throws IllegalArgumentException if a shape is already indexed or appears
+     *         twice in the batch; the index is then unchanged
+     */
+    public void insertAll(Collection<? extends Shape> shapes) {
+        Set<Shape> batch = Collections.newSetFromMap(new IdentityHashMap<>(shapes.size() * 2));
+        for (Shape shape : shapes) {
+            if (leafOf.containsKey(shape) || !batch.add(shape)) {
+                throw new IllegalArgumentException("Shape already indexed: " + shape.name());
+            }
+        }
+        if (shapes.size() * 2 < size()) {
+            for (Shape shape : shapes) {
+                insert(shape);
+            }
+            return;
+        }
+        List<Shape> all = new ArrayList<>(size() + shapes.size());
+        all.addAll(leafOf.keySet());
+        all.addAll(shapes);
+        pack(all);
+    }
+
+    /**
+     * Removes many shapes at once. Removing at least half of the index repacks
+     * the remaining shapes by STR instead of condensing the tree per shape.
+     * Shapes that are not indexed are ignored.
+     */
+    public void removeAll(Collection<? extends Shape> shapes) {
+        if (shapes.size() * 2 < size()) {
+            for (Shape shape : shapes) {
+                remove(shape);
+            }
+            return;
+        }
+        Set<Shape> removed = Collections.newSetFromMap(new IdentityHashMap<>(shapes.size() * 2));
+        removed.addAll(shapes);
+        List<Shape> kept = new ArrayList<>(size());
+        for (Shape shape : leafOf.keySet()) {
+            if (!removed.contains(shape)) {
+                kept.add(shape);
+            }
+        }
+        pack(kept);
+    }
+
+    /**
+     * Re-indexes a shape whose bounding box has changed.
+     * Shapes that are not indexed are left alone.
+     */
+    public void update(Shape shape) {
+        if (remove(shape)) {
+            insert(shape);
+        }
+    }
+
+    /**
+     * Collects every indexed shape whose bounding box overlaps the query box.
+     * Boxes that only touch the query box on an edge are included.
+     */
+    public void search(double minX, double minY, double maxX, double maxY, List<Shape> out) {
+        if (root.size == 0) {
+            return;
+        }
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            for (int i = 0; i < node.size; i++) {
+                if (node.minX[i] > maxX || node.maxX[i] < minX
+                        || node.minY[i] > maxY || node.maxY[i] < minY) {
+                    continue;
+                }
+                if (node.leaf) {
+                    out.add((Shape) node.child[i]);
+                } else {
+                    pending.push((Node) node.child[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the shape is currently indexed
+     */
+    public boolean contains(Shape shape) {
+        return leafOf.containsKey(shape);
+    }
+
+    /**
+     * @return number of indexed shapes
+     */
+    public int size() {
+        return leafOf.size();
+    }
+
+    /**
+     * Removes every shape from the index.
+     */
+    public void clear() {
+        root = new Node(true);
+        leafOf.clear();
+    }
+
+    // ============================================================================
+    // INSERTION
+    // ============================================================================
+
+    private void insertEntry(Shape shape, double minX, double minY, double maxX, double maxY) {
+        Node leaf = chooseLeaf(minX, minY, maxX, maxY);
+        leaf.add(shape, minX, minY, maxX, maxY);
+        leafOf.put(shape, leaf);
+        adjustTree(leaf, leaf.size > MAX_ENTRIES ? split(leaf) : null);
+    }
+
+    private Node chooseLeaf(double minX, double minY, double maxX, double maxY) {
+        Node node = root;
+        while (!node.leaf) {
+            int best = 0;
+            double bestGrowth = Double.POSITIVE_INFINITY;
+            double bestArea = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < node.size; i++) {
+                double area = area(node.minX[i], node.minY[i], node.maxX[i], node.maxY[i]);
+                double growth = area(Math.min(minX, node.minX[i]), Math.min(minY, node.minY[i]),
+                        Math.max(maxX, node.maxX[i]), Math.max(maxY, node.maxY[i])) - area;
+                if (growth < bestGrowth || (growth == bestGrowth && area < bestArea)) {
+                    best = i;
+                    bestGrowth = growth;
+                    bestArea = area;
+                }
+            }
+            node = (Node) node.child[best];
+        }
+        return node;
+    }
+
+    /**
+     * Walks from a modified node up to the root, refreshing the bounds stored in
+     * each parent and installing split siblings, splitting parents as needed.
+     */
+    private void adjustTree(Node node, Node sibling) {
+        while (node != root) {
+            Node parent = node.parent;
+            parent.refreshEntry(parent.indexOf(node));
+            if (sibling != null) {
+                parent.addChild(sibling);
+                sibling = parent.size > MAX_ENTRIES ? split(parent) : null;
+            }
+            node = parent;
+        }
+        if (sibling != null) {
+            Node newRoot = new Node(false);
+            newRoot.addChild(node);
+            newRoot.addChild(sibling);
+            root = newRoot;
+        }
+    }
+
+    /**
+     * Splits an overfull node with Guttman's quadratic algorithm.
+     * @return the new sibling that received part of the entries
+     */
+    private Node split(Node node) {
+        int n = node.size;
+        double[] minX = Arrays.copyOf(node.minX, n);
+        double[] minY = Arrays.copyOf(node.minY, n);
+        double[] maxX = Arrays.copyOf(node.maxX, n);
+        double[] maxY = Arrays.copyOf(node.maxY, n);
+        Object[] child = Arrays.copyOf(node.child, n);
+
+        // Pick the two entries that would waste the most area if grouped together
+        int seedA = 0, seedB = 1;
+        double worst = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double waste = area(Math.min(minX[i], minX[j]), Math.min(minY[i], minY[j]),
+                        Math.max(maxX[i], maxX[j]), Math.max(maxY[i], maxY[j]))
+                        - area(minX[i], minY[i], maxX[i], maxY[i])
+                        - area(minX[j], minY[j], maxX[j], maxY[j]);
+                if (waste > worst) {
+                    worst = waste;
+                    seedA = i;
+                    seedB = j;
+                }
+            }
+        }
+
+        Node sibling = new Node(node.leaf);
+        sibling.parent = node.parent;
+        node.size = 0;
+        node.moveIn(child[seedA], minX[seedA], minY[seedA], maxX[seedA], maxY[seedA], leafOf);
+        sibling.moveIn(child[seedB], minX[seedB], minY[seedB], maxX[seedB], maxY[seedB], leafOf);
+
+        boolean[] assigned = new boolean[n];
+        assigned[seedA] = true;
+        assigned[seedB] = true;
+        int remaining = n - 2;
+
+        while (remaining > 0) {
+            // Make sure both halves end up with at least MIN_ENTRIES entries
+            Node forced = null;
+            if (node.size + remaining == MIN_ENTRIES) {
+                forced = node;
+            } else if (sibling.size + remaining == MIN_ENTRIES) {
+                forced = sibling;
+            }
+            if (forced != null) {
+                for (int i = 0; i < n; i++) {
+                    if (!assigned[i]) {
+                        forced.moveIn(child[i], minX[i], minY[i], maxX[i], maxY[i], leafOf);
+                        assigned[i] = true;
+                    }
+                }
+                break;
+            }
+
+            // Assign the entry with the strongest preference for one of the halves
+            int next = -1;
+            double nextPreference = Double.NEGATIVE_INFINITY;
+            double growthA = 0, growthB = 0;
+            for (int i = 0; i < n; i++) {
+                if (assigned[i]) {
+                    continue;
+                }
+                double a = node.growth(minX[i], minY[i], maxX[i], maxY[i]);
+                double b = sibling.growth(minX[i], minY[i], maxX[i], maxY[i]);
+                double preference = Math.abs(a - b);
+                if (preference > nextPreference) {
+                    nextPreference = preference;
+                    next = i;
+                    growthA = a;
+                    growthB = b;
+                }
+            }
+
+            Node target;
+            if (growthA != growthB) {
+                target = growthA < growthB ? node : sibling;
+            } else if (node.area() != sibling.area()) {
+                target = node.area() < sibling.area() ? node : sibling;
+            } else {
+                target = node.size <= sibling.size ? node : sibling;
+            }
+            target.moveIn(child[next], minX[next], minY[next], maxX[next], maxY[next], leafOf);
+            assigned[next] = true;
+            remaining--;
+        }
+
+        Arrays.fill(node.child, node.size, node.child.length, null);
+        return sibling;
+    }
+
+    // ============================================================================
+    // BULK LOADING
+    // ============================================================================
+
+    /**
+     * Replaces the tree with one packed bottom-up from the given shapes.
+     */
+    private void pack(List<Shape> shapes) {
+        clear();
+        int n = shapes.size();
+        if (n == 0) {
+            return;
+        }
+        Object[] entries = shapes.toArray();
+        double[] bounds = new double[n * 4];
+        for (int i = 0; i < n; i++) {
+            ((Shape) entries[i]).bounds(scratch);
+            System.arraycopy(scratch, 0, bounds, i * 4, 4);
+        }
+        boolean leaf = true;
+        while (true) {
+            Node[] level = packLevel(entries, bounds, n, leaf);
+            if (level.length == 1) {
+                root = level[0];
+                return;
+            }
+            n = level.length;
+            entries = level;
+            bounds = new double[n * 4];
+            for (int i = 0; i < n; i++) {
+                bounds[i * 4] = level[i].boundsMinX();
+                bounds[i * 4 + 1] = level[i].boundsMinY();
+                bounds[i * 4 + 2] = level[i].boundsMaxX();
+                bounds[i * 4 + 3] = level[i].boundsMaxY();
+            }
+            leaf = false;
+        }
+    }
+
+    /**
+     * Groups one level of entries into nodes: sorted by centre x, cut into
+     * vertical slices of whole nodes, then sorted by centre y within a slice
+     * and cut into nodes of nearly equal size.
+     */
+    private Node[] packLevel(Object[] entries, double[] bounds, int n, boolean leaf) {
+        int nodeCount = (n + MAX_ENTRIES - 1) / MAX_ENTRIES;
+        int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+        int sliceSize = (nodeCount + sliceCount - 1) / sliceCount * MAX_ENTRIES;
+
+        long[] byX = new long[n];
+        for (int i = 0; i < n; i++) {
+            byX[i] = sortKey(bounds[i * 4] + bounds[i * 4 + 2], i);
+        }
+        Arrays.sort(byX);
+
+        List<Node> nodes = new ArrayList<>(nodeCount + sliceCount);
+        for (int start = 0; start < n; start += sliceSize) {
+            int length = Math.min(sliceSize, n - start);
+            long[] byY = new long[length];
+            for (int k = 0; k < length; k++) {
+                int i = (int) byX[start + k];
+                byY[k] = sortKey(bounds[i * 4 + 1] + bounds[i * 4 + 3], i);
+            }
+            Arrays.sort(byY);
+            int parts = (length + MAX_ENTRIES - 1) / MAX_ENTRIES;
+            for (int part = 0; part < parts; part++) {
+                Node node = new Node(leaf);
+                for (int k = length * part / parts; k < length * (part + 1) / parts; k++) {
+                    int i = (int) byY[k];
+                    node.moveIn(entries[i], bounds[i * 4], bounds[i * 4 + 1],
+                            bounds[i * 4 + 2], bounds[i * 4 + 3], leafOf);
+                }
+                nodes.add(node);
+            }
+        }
+        return nodes.toArray(new Node[0]);
+    }
+
+    /**
+     * Packs a coordinate and an entry number into a long whose signed order
+     * follows the coordinate. The coordinate is narrowed to a float, which only
+     * coarsens the packing order and never loses an entry.
+     */
+    private static long sortKey(double coordinate, int i) {
+        int bits = Float.floatToIntBits((float) coordinate);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return ((long) bits << 32) | i;
+    }
+
+    // ============================================================================
+    // DELETION
+    // ============================================================================
+
+    /**
+     * Walks from a leaf that lost an entry up to the root, dissolving underfull
+     * nodes and re-inserting the shapes they held.
+     */
+    private void condenseTree(Node node) {
+        List<Node> orphans = new ArrayList<>();
+        while (node != root) {
+            Node parent = node.parent;
+            int slot = parent.indexOf(node);
+            if (node.size < MIN_ENTRIES) {
+                parent.removeAt(slot);
+                orphans.add(node);
+            } else {
+                parent.refreshEntry(slot);
+            }
+            node = parent;
+        }
+
+        if (!root.leaf && root.size == 1) {
+            root = (Node) root.child[0];
+            root.parent = null;
+        } else if (!root.leaf && root.size == 0) {
+            root = new Node(true);
+        }
+
+        for (Node orphan : orphans) {
+            reinsert(orphan);
+        }
+    }
+
+    private void reinsert(Node orphan) {
+        for (int i = 0; i < orphan.size; i++) {
+            if (orphan.leaf) {
+                insertEntry((Shape) orphan.child[i],
+                        orphan.minX[i], orphan.minY[i], orphan.maxX[i], orphan.maxY[i]);
+            } else {
+                reinsert((Node) orphan.child[i]);
+            }
+        }
+    }
+
+    private static double area(double minX, double minY, double maxX, double maxY) {
+        return (maxX - minX) * (maxY - minY);
+    }
+
+    /**
+     * A tree node. Entry bounds are kept in parallel arrays; children are either
+     * shapes (in leaves) or nodes (in internal nodes).
+     */
+    private static final class Node {
+        final boolean leaf;
+        Node parent;
+        int size;
+        final double[] minX = new double[MAX_ENTRIES + 1];
+        final double[] minY = new double[MAX_ENTRIES + 1];
+        final double[] maxX = new double[MAX_ENTRIES + 1];
+        final double[] maxY = new double[MAX_ENTRIES + 1];
+        final Object[] child = new Object[MAX_ENTRIES + 1];
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+        }
+
+        void add(Object entry, double x0, double y0, double x1, double y1) {
+            minX[size] = x0;
+            minY[size] = y0;
+            maxX[size] = x1;
+            maxY[size] = y1;
+            child[size] = entry;
+            size++;
+        }
+
+        void addChild(Node node) {
+            node.parent = this;
+            add(node, node.boundsMinX(), node.boundsMinY(), node.boundsMaxX(), node.boundsMaxY());
+        }
+
+        /**
+         * Adds an entry during a split, re-pointing its back-reference to this node.
+         */
+        void moveIn(Object entry, double x0, double y0, double x1, double y1, Map<Shape, Node> leafOf) {
+            add(entry, x0, y0, x1, y1);
+            if (leaf) {
+                leafOf.put((Shape) entry, this);
+            } else {
+                ((Node) entry).parent = this;
+            }
+        }
+
+        void removeAt(int i) {
+            int last = size - 1;
+            minX[i] = minX[last];
+            minY[i] = minY[last];
+            maxX[i] = maxX[last];
+            maxY[i] = maxY[last];
+            child[i] = child[last];
+            child[last] = null;
+            size--;
+        }
+
+        int indexOf(Object entry) {
+            for (int i = 0; i < size; i++) {
+                if (child[i] == entry) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("R-tree entry is missing from its node");
+        }
+
+        void refreshEntry(int i) {
+            Node node = (Node) child[i];
+            minX[i] = node.boundsMinX();
+            minY[i] = node.boundsMinY();
+            maxX[i] = node.boundsMaxX();
+            maxY[i] = node.boundsMaxY();
+        }
+
+        double growth(double x0, double y0, double x1, double y1) {
+            return RTree.area(Math.min(x0, boundsMinX()), Math.min(y0, boundsMinY()),
+                    Math.max(x1, boundsMaxX()), Math.max(y1, boundsMaxY())) - area();
+        }
+
+        double area() {
+            return RTree.area(boundsMinX(), boundsMinY(), boundsMaxX(), boundsMaxY());
+        }
+
+        double boundsMinX() {
+            double v = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < size; i++) v = Math.min(v, minX[i]);
+            return v;
+        }
+
+        double boundsMinY() {
+            double v = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < size; i++) v = Math.min(v, minY[i]);
+            return v;
+        }
+
+        double boundsMaxX() {
+            double v = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) v = Math.max(v, maxX[i]);
+            return v;
+        }
+
+        double boundsMaxY() {
+            double v = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) v = Math.max(v, maxY[i]);
+            return v;
+        }
+    }
+}
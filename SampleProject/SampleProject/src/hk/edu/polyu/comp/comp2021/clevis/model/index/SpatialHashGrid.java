@@ -0,0 +1,398 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.index;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Shape;
+import java.util.*;
+
+/**
+ * Uniform grid over the bounding boxes of the top-level shapes in a drawing.
+ * The plane is cut into square cells of a fixed size, and a shape is listed in
+ * every cell its bounding box overlaps. Only the cells that have held a shape
+ * are stored, in an open-addressing hash table keyed by the packed cell
+ * coordinates, so a cell lookup reads plain arrays without boxing.
+ * Inserting, removing and moving a shape touch only the cells it covers, with
+ * no rebalancing; a move only touches the cells the shape enters or leaves.
+ * The grid thus suits drawings whose shapes have similar sizes and move often.
+ * The cell size should be about the size of a typical shape: much smaller
+ * cells list each shape many times, much larger ones return many shapes per
+ * query. Shapes covering more than {@link #MAX_CELLS} cells are kept in a
+ * separate list that every search scans.
+ */
+public class SpatialHashGrid implements SpatialIndex {
+    public static final int MAX_CELLS = 64;
+    private static final int INITIAL_SLOTS = 64;
+
+    private final double cellSize;
+    // Hash table of cells: a slot is free while its list is null
+    private long[] keys = new long[INITIAL_SLOTS];
+    private Entry[][] listed = new Entry[INITIAL_SLOTS][];
+    private int[] counts = new int[INITIAL_SLOTS];
+    // Slots in use, including cells that have become empty
+    private int used;
+    private final List<Entry> oversized = new ArrayList<>();
+    private final Map<Shape, Entry> entryOf = new HashMap<>();
+    // Reused so that reading a bounding box allocates nothing
+    private final double[] scratch = new double[4];
+
+    /**
+     * A shape with the bounding box and the cell range it was indexed with.
+     */
+    private static final class Entry {
+        final Shape shape;
+        double minX, minY, maxX, maxY;
+        int cellMinX, cellMinY, cellMaxX, cellMaxY;
+        boolean large;
+
+        Entry(Shape shape) {
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * @param cellSize side length of a cell, in drawing units
+     * @throws IllegalArgumentException if the cell size is not positive and finite
+     */
+    public SpatialHashGrid(double cellSize) {
+        if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+        this.cellSize = cellSize;
+    }
+
+    public double cellSize() {
+        return cellSize;
+    }
+
+    @Override
+    public void insert(Shape shape) {
+        if (entryOf.containsKey(shape)) {
+            throw new IllegalArgumentException("Shape already indexed: " + shape.name());
+        }
+        Entry entry = new Entry(shape);
+        measure(entry);
+        link(entry);
+        entryOf.put(shape, entry);
+    }
+
+    @Override
+    public boolean remove(Shape shape) {
+        Entry entry = entryOf.remove(shape);
+        if (entry == null) {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    @Override
+    public void insertAll(Collection<? extends Shape> shapes) {
+        Set<Shape> batch = Collections.newSetFromMap(new IdentityHashMap<>(shapes.size() * 2));
+        for (Shape shape : shapes) {
+            if (entryOf.containsKey(shape) || !batch.add(shape)) {
+                throw new IllegalArgumentException("Shape already indexed: " + shape.name());
+            }
+        }
+        for (Shape shape : shapes) {
+            insert(shape);
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<? extends Shape> shapes) {
+        for (Shape shape : shapes) {
+            remove(shape);
+        }
+    }
+
+    /**
+     * Re-indexes a shape whose bounding box has changed. Only the cells the
+     * box leaves or enters are updated; when it still covers the same cells,
+     * only the stored box is refreshed.
+     */
+    @Override
+    public void update(Shape shape) {
+        Entry entry = entryOf.get(shape);
+        if (entry == null) {
+            return;
+        }
+        int oldMinX = entry.cellMinX, oldMinY = entry.cellMinY;
+        int oldMaxX = entry.cellMaxX, oldMaxY = entry.cellMaxY;
+        boolean wasLarge = entry.large;
+        measure(entry);
+        if (entry.cellMinX == oldMinX && entry.cellMinY == oldMinY
+                && entry.cellMaxX == oldMaxX && entry.cellMaxY == oldMaxY) {
+            return;
+        }
+        if (wasLarge || entry.large) {
+            if (wasLarge) {
+                removeFrom(oversized, entry);
+            } else {
+                forEachCell(entry, oldMinX, oldMinY, oldMaxX, oldMaxY, false, Integer.MAX_VALUE, 0, 0, 0);
+            }
+            link(entry);
+            return;
+        }
+        forEachCell(entry, oldMinX, oldMinY, oldMaxX, oldMaxY, false,
+                entry.cellMinX, entry.cellMinY, entry.cellMaxX, entry.cellMaxY);
+        forEachCell(entry, entry.cellMinX, entry.cellMinY, entry.cellMaxX, entry.cellMaxY, true,
+                oldMinX, oldMinY, oldMaxX, oldMaxY);
+    }
+
+    @Override
+    public void search(double minX, double minY, double maxX, double maxY, List<Shape> out) {
+        for (Entry entry : oversized) {
+            if (overlaps(entry, minX, minY, maxX, maxY)) {
+                out.add(entry.shape);
+            }
+        }
+        if (used == 0) {
+            return;
+        }
+        int fromX = cell(minX), fromY = cell(minY);
+        int toX = cell(maxX), toY = cell(maxY);
+        long queried = ((long) toX - fromX + 1) * ((long) toY - fromY + 1);
+        if (queried > used) {
+            // Fewer stored cells than cells under the query box: visit the stored ones
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (counts[slot] == 0) {
+                    continue;
+                }
+                int cellX = (int) (keys[slot] >> 32);
+                int cellY = (int) keys[slot];
+                if (cellX >= fromX && cellX <= toX && cellY >= fromY && cellY <= toY) {
+                    collect(slot, cellX, cellY, fromX, fromY, minX, minY, maxX, maxY, out);
+                }
+            }
+            return;
+        }
+        for (int cellX = fromX; cellX <= toX; cellX++) {
+            for (int cellY = fromY; cellY <= toY; cellY++) {
+                int slot = find(key(cellX, cellY));
+                if (slot >= 0) {
+                    collect(slot, cellX, cellY, fromX, fromY, minX, minY, maxX, maxY, out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the shapes of one cell that overlap the query box. A shape listed in
+     * several cells under the query box is reported only from the first of
+     * them, the one at its own lowest cell coordinates within the query.
+     */
+    private void collect(int slot, int cellX, int cellY, int fromX, int fromY,
+                         double minX, double minY, double maxX, double maxY, List<Shape> out) {
+        Entry[] entries = listed[slot];
+        for (int i = 0; i < counts[slot]; i++) {
+            Entry entry = entries[i];
+            if (Math.max(fromX, entry.cellMinX) == cellX && Math.max(fromY, entry.cellMinY) == cellY
+                    && overlaps(entry, minX, minY, maxX, maxY)) {
+                out.add(entry.shape);
+            }
+        }
+    }
+
+    private static boolean overlaps(Entry entry, double minX, double minY, double maxX, double maxY) {
+        return entry.minX <= maxX && entry.maxX >= minX && entry.minY <= maxY && entry.maxY >= minY;
+    }
+
+    @Override
+    public boolean contains(Shape shape) {
+        return entryOf.containsKey(shape);
+    }
+
+    @Override
+    public int size() {
+        return entryOf.size();
+    }
+
+    @Override
+    public void clear() {
+        keys = new long[INITIAL_SLOTS];
+        listed = new Entry[INITIAL_SLOTS][];
+        counts = new int[INITIAL_SLOTS];
+        used = 0;
+        oversized.clear();
+        entryOf.clear();
+    }
+
+    /**
+     * Reads the shape's current bounding box and the cells it covers into the entry.
+     */
+    private void measure(Entry entry) {
+        entry.shape.bounds(scratch);
+        entry.minX = scratch[0];
+        entry.minY = scratch[1];
+        entry.maxX = scratch[2];
+        entry.maxY = scratch[3];
+        entry.cellMinX = cell(scratch[0]);
+        entry.cellMinY = cell(scratch[1]);
+        entry.cellMaxX = cell(scratch[2]);
+        entry.cellMaxY = cell(scratch[3]);
+        entry.large = ((long) entry.cellMaxX - entry.cellMinX + 1)
+                * ((long) entry.cellMaxY - entry.cellMinY + 1) > MAX_CELLS;
+    }
+
+    private void link(Entry entry) {
+        if (entry.large) {
+            oversized.add(entry);
+        } else {
+            forEachCell(entry, entry.cellMinX, entry.cellMinY, entry.cellMaxX, entry.cellMaxY, true,
+                    Integer.MAX_VALUE, 0, 0, 0);
+        }
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.large) {
+            removeFrom(oversized, entry);
+        } else {
+            forEachCell(entry, entry.cellMinX, entry.cellMinY, entry.cellMaxX, entry.cellMaxY, false,
+                    Integer.MAX_VALUE, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Adds the entry to, or removes it from, every cell of a range except those
+     * also in a second, excluded range. An excluded range starting at
+     * Integer.MAX_VALUE excludes nothing.
+     */
+    private void forEachCell(Entry entry, int minX, int minY, int maxX, int maxY, boolean add,
+                             int skipMinX, int skipMinY, int skipMaxX, int skipMaxY) {
+        for (int cellX = minX; cellX <= maxX; cellX++) {
+            for (int cellY = minY; cellY <= maxY; cellY++) {
+                if (cellX >= skipMinX && cellX <= skipMaxX && cellY >= skipMinY && cellY <= skipMaxY) {
+                    continue;
+                }
+                if (add) {
+                    addTo(slotFor(key(cellX, cellY)), entry);
+                } else {
+                    removeFrom(find(key(cellX, cellY)), entry);
+                }
+            }
+        }
+    }
+
+    private void addTo(int slot, Entry entry) {
+        Entry[] entries = listed[slot];
+        if (counts[slot] == entries.length) {
+            entries = listed[slot] = Arrays.copyOf(entries, entries.length * 2);
+        }
+        entries[counts[slot]++] = entry;
+    }
+
+    /**
+     * Removes an entry from a cell by moving the cell's last entry into its
+     * place, as the order within a cell does not matter.
+     */
+    private void removeFrom(int slot, Entry entry) {
+        Entry[] entries = listed[slot];
+        for (int i = 0; i < counts[slot]; i++) {
+            if (entries[i] == entry) {
+                entries[i] = entries[--counts[slot]];
+                entries[counts[slot]] = null;
+                return;
+            }
+        }
+    }
+
+    private static void removeFrom(List<Entry> entries, Entry entry) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i) == entry) {
+                Entry last = entries.remove(entries.size() - 1);
+                if (i < entries.size()) {
+                    entries.set(i, last);
+                }
+                return;
+            }
+        }
+    }
+
+    // ============================================================================
+    // CELL TABLE
+    // ============================================================================
+
+    /**
+     * @return slot of the cell, or -1 if it has never held a shape
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key, mask); listed[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return slot of the cell, claiming a free slot for it if needed
+     */
+    private int slotFor(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key, mask);
+        for (; listed[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        if ((used + 1) * 2 > keys.length) {
+            rehash();
+            return slotFor(key);
+        }
+        keys[slot] = key;
+        listed[slot] = new Entry[2];
+        used++;
+        return slot;
+    }
+
+    /**
+     * Rebuilds the table, dropping the cells that have become empty, with at
+     * least twice as many slots as non-empty cells.
+     */
+    private void rehash() {
+        long[] oldKeys = keys;
+        Entry[][] oldListed = listed;
+        int[] oldCounts = counts;
+        int live = 0;
+        for (int count : oldCounts) {
+            live += count > 0 ? 1 : 0;
+        }
+        int slots = INITIAL_SLOTS;
+        while (slots < (live + 1) * 4) {
+            slots *= 2;
+        }
+        keys = new long[slots];
+        listed = new Entry[slots][];
+        counts = new int[slots];
+        used = 0;
+        int mask = slots - 1;
+        for (int old = 0; old < oldKeys.length; old++) {
+            if (oldCounts[old] == 0) {
+                continue;
+            }
+            int slot = hash(oldKeys[old], mask);
+            while (listed[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[old];
+            listed[slot] = oldListed[old];
+            counts[slot] = oldCounts[old];
+            used++;
+        }
+    }
+
+    private static int hash(long key, int mask) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32)) & mask;
+    }
+
+    private int cell(double coordinate) {
+        // Casting saturates, so coordinates far outside the int range share the edge cells.
+        // The last cell is one below Integer.MAX_VALUE, so that loops up to a cell end
+        // and an excluded range starting at Integer.MAX_VALUE never matches a cell.
+        return Math.min((int) Math.floor(coordinate / cellSize), Integer.MAX_VALUE - 1);
+    }
+
+    private static long key(int cellX, int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,70 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.index;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Shape;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Index over the bounding boxes of the top-level shapes in a drawing, used to
+ * narrow point and box queries down to the shapes near them.
+ * A drawing chooses its implementation when it is created:
+ * <ul>
+ *   <li>{@link RTree}: adapts to any mix of shape sizes and placements</li>
+ *   <li>{@link SpatialHashGrid}: fixed cells, cheapest to update when the
+ *       shapes have similar sizes and move often</li>
+ *   <li>{@link DensityPyramid}: a quadtree by shape size that can also count
+ *       the small shapes per cell, for drawing at a level of detail</li>
+ * </ul>
+ */
+public interface SpatialIndex {
+    /**
+     * Adds a shape to the index using its current bounding box.
+     * @throws IllegalArgumentException if the shape is already indexed
+     */
+    void insert(Shape shape);
+
+    /**
+     * Removes a shape from the index.
+     * @return true if the shape was indexed
+     */
+    boolean remove(Shape shape);
+
+    /**
+     * Adds many shapes at once.
+     * @throws IllegalArgumentException if a shape is already indexed; the index
+     *         is then unchanged
+     */
+    void insertAll(Collection<? extends Shape> shapes);
+
+    /**
+     * Removes many shapes at once. Shapes that are not indexed are ignored.
+     */
+    void removeAll(Collection<? extends Shape> shapes);
+
+    /**
+     * Re-indexes a shape whose bounding box has changed.
+     * Shapes that are not indexed are left alone.
+     */
+    void update(Shape shape);
+
+    /**
+     * Collects every indexed shape whose bounding box overlaps the query box,
+     * each once. Boxes that only touch the query box on an edge are included.
+     */
+    void search(double minX, double minY, double maxX, double maxY, List<Shape> out);
+
+    /**
+     * @return true if the shape is currently indexed
+     */
+    boolean contains(Shape shape);
+
+    /**
+     * @return number of indexed shapes
+     */
+    int size();
+
+    /**
+     * Removes every shape from the index.
+     */
+    void clear();
+}
@@ -0,0 +1,76 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.operations;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Undo and redo stacks of a drawing.
+ * Every edit knows how to reverse itself and how to apply itself again, so
+ * stepping through the history costs as much as the edit itself instead of a
+ * copy or a replay of the whole drawing.
+ */
+public class EditHistory {
+    /**
+     * One reversible change to the drawing.
+     */
+    public interface Edit {
+        void undo();
+        void redo();
+    }
+
+    private final Deque<Edit> done = new ArrayDeque<>();
+    private final Deque<Edit> undone = new ArrayDeque<>();
+
+    /**
+     * Records an edit that has just been applied. Edits undone before it can
+     * no longer be redone.
+     */
+    public void record(Edit edit) {
+        done.push(edit);
+        undone.clear();
+    }
+
+    /**
+     * Reverses the latest applied edit.
+     * @return false if there is nothing to undo
+     */
+    public boolean undo() {
+        Edit edit = done.peek();
+        if (edit == null) {
+            return false;
+        }
+        edit.undo();
+        undone.push(done.pop());
+        return true;
+    }
+
+    /**
+     * Applies again the latest undone edit.
+     * @return false if there is nothing to redo
+     */
+    public boolean redo() {
+        Edit edit = undone.peek();
+        if (edit == null) {
+            return false;
+        }
+        edit.redo();
+        done.push(undone.pop());
+        return true;
+    }
+
+    public boolean canUndo() {
+        return !done.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !undone.isEmpty();
+    }
+
+    /**
+     * Forgets every edit, such as when the whole drawing is replaced.
+     */
+    public void clear() {
+        done.clear();
+        undone.clear();
+    }
+}
@@ -1,5 +1,6 @@
 package hk.edu.polyu.comp.comp2021.clevis.model.operations;
 
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialIndex;
 import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
 import java.util.*;
 
@@ -12,17 +13,22 @@ public class GroupManager {
     private final List<Shape> drawOrder;
     private final Map<String, Group> groups;
     private final ShapeFactory factory;
+    private final SpatialIndex index;
 
     // Track which shapes are hidden because they're in groups
     private final Set<String> hiddenShapeNames;
+    // Direct enclosing group of every hidden shape
+    private final Map<Shape, Group> parents;
 
     public GroupManager(Map<String, Shape> shapes, List<Shape> drawOrder,
-                        Map<String, Group> groups, ShapeFactory factory) {
+                        Map<String, Group> groups, ShapeFactory factory, SpatialIndex index) {
         this.shapes = shapes;
         this.drawOrder = drawOrder;
         this.groups = groups;
         this.factory = factory;
+        this.index = index;
         this.hiddenShapeNames = new HashSet<>();
+        this.parents = new HashMap<>();
     }
 
     /**
@@ -46,7 +52,11 @@ public class GroupManager {
         }
 
         List<Shape> groupShapes = new ArrayList<>();
+        Set<String> listed = new HashSet<>();
         for (String name : shapeNames) {
+            if (!listed.add(name)) {
+                throw new IllegalArgumentException("Shape is listed more than once: " + name);
+            }
             // Check if shape is already hidden (in another group)
             if (hiddenShapeNames.contains(name)) {
                 throw new IllegalArgumentException("Shape is already in a group: " + name);
@@ -63,21 +73,46 @@ public class GroupManager {
         // Create group with highest z-index
         Group group = new Group(groupName, factory.getNextZ(), groupShapes);
         factory.setNextZ(factory.getNextZ() + 1);
+        attach(group, -1);
+        return group;
+    }
 
-        // Add group to collections
-        shapes.put(groupName, group);
-        drawOrder.add(group);
-        groups.put(groupName, group);
+    /**
+     * Puts a dissolved group back together with its own z-index, such as when
+     * an ungroup is undone. The members must be top-level shapes again.
+     * @param position index of the group in the drawing order, or -1 to append it
+     * @throws IllegalArgumentException if the group's name is already used, or a
+     *         member is no longer a top-level shape of the drawing
+     */
+    public void regroup(Group group, int position) {
+        if (shapes.containsKey(group.name())) {
+            throw new IllegalArgumentException("Name already used: " + group.name());
+        }
+        for (Shape member : group.members()) {
+            if (shapes.get(member.name()) != member || hiddenShapeNames.contains(member.name())) {
+                throw new IllegalArgumentException("Shape is not available for grouping: " + member.name());
+            }
+        }
+        group.invalidateBounds();
+        attach(group, position);
+    }
 
+    private void attach(Group group, int position) {
+        group.attachMembers();
         // Hide member shapes - they can't be accessed individually anymore
-        for (String name : shapeNames) {
-            hiddenShapeNames.add(name);
+        for (Shape shape : group.members()) {
+            hiddenShapeNames.add(shape.name());
+            parents.put(shape, group);
             // Remove from drawOrder so they don't render individually
-            Shape shape = shapes.get(name);
             drawOrder.remove(shape);
+            index.remove(shape);
         }
 
-        return group;
+        // Add group to collections
+        shapes.put(group.name(), group);
+        drawOrder.add(position < 0 ? drawOrder.size() : position, group);
+        groups.put(group.name(), group);
+        index.insert(group);
     }
 
     /**
@@ -101,17 +136,121 @@ public class GroupManager {
 
         Group group = (Group) shape;
 
-        // Restore member shapes to individual access
-        for (Shape member : group.getShapes()) {
+        // Restore member shapes to individual access, in drawing coordinates.
+        // The group is left without an offset so that it can be put back as it was.
+        group.flatten();
+        group.detachMembers();
+        for (Shape member : group.members()) {
             hiddenShapeNames.remove(member.name());
+            parents.remove(member);
             // Re-add to drawOrder with their original z-index
             drawOrder.add(member);
+            if (!index.contains(member)) {
+                index.insert(member);
+            }
         }
 
         // Remove group
         shapes.remove(groupName);
         drawOrder.remove(group);
         groups.remove(groupName);
+        index.remove(group);
+    }
+
+    /**
+     * @return the group directly containing the shape, or null if it is top-level
+     */
+    public Group parentOf(Shape shape) {
+        return parents.get(shape);
+    }
+
+    /**
+     * @return the outermost group containing the shape, or the shape itself if it is top-level
+     */
+    public Shape topLevelAncestor(Shape shape) {
+        Shape current = shape;
+        for (Group parent = parents.get(current); parent != null; parent = parents.get(current)) {
+            current = parent;
+        }
+        return current;
+    }
+
+    /**
+     * @return sum of the horizontal offsets of the groups enclosing the shape
+     */
+    public double offsetX(Shape shape) {
+        double offset = 0;
+        for (Group parent = parents.get(shape); parent != null; parent = parents.get(parent)) {
+            offset += parent.offsetX();
+        }
+        return offset;
+    }
+
+    /**
+     * @return sum of the vertical offsets of the groups enclosing the shape
+     */
+    public double offsetY(Shape shape) {
+        double offset = 0;
+        for (Group parent = parents.get(shape); parent != null; parent = parents.get(parent)) {
+            offset += parent.offsetY();
+        }
+        return offset;
+    }
+
+    /**
+     * Folds a group's pending offset into its members (see {@link Group#flatten()}).
+     * The drawing does not change.
+     * @throws IllegalArgumentException if the shape doesn't exist or isn't a group
+     */
+    public void flatten(String groupName) {
+        Shape shape = shapes.get(groupName);
+        if (shape == null) {
+            throw new IllegalArgumentException("Shape not found: " + groupName);
+        }
+        if (!(shape instanceof Group)) {
+            throw new IllegalArgumentException("Shape is not a group: " + groupName);
+        }
+        ((Group) shape).flatten();
+    }
+
+    /**
+     * Marks the cached bounding box of every group enclosing the shape as stale.
+     */
+    public void invalidateAncestors(Shape shape) {
+        for (Group parent = parents.get(shape); parent != null; parent = parents.get(parent)) {
+            parent.invalidateBounds();
+        }
+    }
+
+    /**
+     * Registers the members of a restored group, recursively, as hidden in it.
+     * The group itself must already be in the shape and group maps.
+     */
+    public void adopt(Group group) {
+        for (Shape member : group.members()) {
+            hiddenShapeNames.add(member.name());
+            parents.put(member, group);
+            if (member instanceof Group) {
+                groups.put(member.name(), (Group) member);
+                adopt((Group) member);
+            }
+        }
+    }
+
+    /**
+     * Drops all grouping state.
+     */
+    public void clear() {
+        hiddenShapeNames.clear();
+        parents.clear();
+    }
+
+    /**
+     * Drops all grouping state of a deleted shape.
+     */
+    public void forget(Shape shape) {
+        parents.remove(shape);
+        hiddenShapeNames.remove(shape.name());
     }
 
     /**
@@ -0,0 +1,20 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.operations;
+
+/**
+ * Immutable value object naming two shapes that intersect.
+ * Produced by the intersectAll query, which extends REQ12 to the whole drawing.
+ * The first shape is always the one with the lower z-index.
+ */
+public final class IntersectionPair {
+    public final String first, second;
+
+    public IntersectionPair(String first, String second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public String toString() {
+        return first + " " + second;
+    }
+}
@@ -1,5 +1,6 @@
 package hk.edu.polyu.comp.comp2021.clevis.model.operations;
 
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialIndex;
 import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
 import java.util.*;
 
@@ -10,11 +11,13 @@ import java.util.*;
 public class ShapeFactory {
     private final Map<String, Shape> shapes;
     private final List<Shape> drawOrder;
+    private final SpatialIndex index;
     private int nextZ = 1;
     
-    public ShapeFactory(Map<String, Shape> shapes, List<Shape> drawOrder) {
+    public ShapeFactory(Map<String, Shape> shapes, List<Shape> drawOrder, SpatialIndex index) {
         this.shapes = shapes;
         this.drawOrder = drawOrder;
+        this.index = index;
     }
     
     /**
@@ -38,6 +41,7 @@ public class ShapeFactory {
         Rectangle r = new Rectangle(n, nextZ++, x, y, w, h);
         shapes.put(n, r);
         drawOrder.add(r);
+        index.insert(r);
         return r;
     }
     
@@ -49,6 +53,7 @@ public class ShapeFactory {
         Line l = new Line(n, nextZ++, x1, y1, x2, y2);
         shapes.put(n, l);
         drawOrder.add(l);
+        index.insert(l);
         return l;
     }
     
@@ -60,6 +65,7 @@ public class ShapeFactory {
         Circle c = new Circle(n, nextZ++, x, y, r);
         shapes.put(n, c);
         drawOrder.add(c);
+        index.insert(c);
         return c;
     }
     
@@ -71,9 +77,101 @@ public class ShapeFactory {
         Square s = new Square(n, nextZ++, x, y, sideLength);
         shapes.put(n, s);
         drawOrder.add(s);
+        index.insert(s);
         return s;
     }
     
+    // =============================
+    // Batch creation
+    // =============================
+
+    /**
+     * Creates rectangles from packed values, four per shape: x, y, width, height.
+     * Like every batch method, either all shapes are created or, if a name or
+     * a value is invalid, none is; the shapes get consecutive z-indexes in order.
+     */
+    public List<Rectangle> createRectangles(String[] names, double[] values) {
+        ensureUnique(names, values, 4);
+        List<Rectangle> created = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            int v = i * 4;
+            created.add(new Rectangle(names[i], nextZ + i, values[v], values[v + 1], values[v + 2], values[v + 3]));
+        }
+        addAll(created);
+        return created;
+    }
+
+    /**
+     * Creates lines from packed values, four per shape: x1, y1, x2, y2.
+     */
+    public List<Line> createLines(String[] names, double[] values) {
+        ensureUnique(names, values, 4);
+        List<Line> created = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            int v = i * 4;
+            created.add(new Line(names[i], nextZ + i, values[v], values[v + 1], values[v + 2], values[v + 3]));
+        }
+        addAll(created);
+        return created;
+    }
+
+    /**
+     * Creates circles from packed values, three per shape: centre x, centre y, radius.
+     */
+    public List<Circle> createCircles(String[] names, double[] values) {
+        ensureUnique(names, values, 3);
+        List<Circle> created = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            int v = i * 3;
+            created.add(new Circle(names[i], nextZ + i, values[v], values[v + 1], values[v + 2]));
+        }
+        addAll(created);
+        return created;
+    }
+
+    /**
+     * Creates squares from packed values, three per shape: x, y, side length.
+     */
+    public List<Square> createSquares(String[] names, double[] values) {
+        ensureUnique(names, values, 3);
+        List<Square> created = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            int v = i * 3;
+            created.add(new Square(names[i], nextZ + i, values[v], values[v + 1], values[v + 2]));
+        }
+        addAll(created);
+        return created;
+    }
+
+    /**
+     * Checks a batch of names against each other and the drawing, and the
+     * number of packed values, before anything is created.
+     */
+    private void ensureUnique(String[] names, double[] values, int valuesPerShape) {
+        if (values.length != names.length * valuesPerShape) {
+            throw new IllegalArgumentException("Expected " + valuesPerShape + " values per shape");
+        }
+        Set<String> batch = new HashSet<>(names.length * 2);
+        for (String n : names) {
+            ensureUnique(n);
+            if (!batch.add(n)) {
+                throw new IllegalArgumentException("Name already used: " + n);
+            }
+        }
+    }
+
+    /**
+     * Adds validated new shapes to the drawing, indexing them in one pass.
+     */
+    private void addAll(List<? extends Shape> created) {
+        for (Shape shape : created) {
+            shapes.put(shape.name(), shape);
+            drawOrder.add(shape);
+        }
+        index.insertAll(created);
+        nextZ += created.size();
+    }
+
     public int getNextZ() {
         return nextZ;
     }
@@ -1,5 +1,7 @@
 package hk.edu.polyu.comp.comp2021.clevis.model.operations;
 
+import hk.edu.polyu.comp.comp2021.clevis.model.index.DrawOrder;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialIndex;
 import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
 import java.util.*;
 
@@ -12,13 +14,15 @@ public class ShapeManager {
     private final List<Shape> drawOrder;
     private final Map<String, Group> groups;
     private final GroupManager groupManager;
+    private final SpatialIndex index;
     
     public ShapeManager(Map<String, Shape> shapes, List<Shape> drawOrder,
-                        Map<String, Group> groups, GroupManager groupManager) {
+                        Map<String, Group> groups, GroupManager groupManager, SpatialIndex index) {
         this.shapes = shapes;
         this.drawOrder = drawOrder;
         this.groups = groups;
         this.groupManager = groupManager;
+        this.index = index;
     }
     
     /**
@@ -39,24 +43,148 @@ public class ShapeManager {
 //        }
 
         Shape shape = shapes.get(name);
-        System.out.println("Deleting shape " + shape.listInfo());
 
         if (shape == null) {
             throw new IllegalArgumentException("Shape not found: " + name);
         }
 
+        List<Shape> indexed = new ArrayList<>(1);
+        detach(shape, indexed);
+        for (Shape removed : indexed) {
+            index.remove(removed);
+        }
+    }
+
+    /**
+     * Deletes several shapes (REQ8 for many names at once). The names are
+     * checked before anything is deleted, a shape listed together with one
+     * of its groups goes with the group, and the spatial index is updated
+     * once for the whole batch.
+     * @return the deleted shapes that were not inside another deleted shape,
+     *         in the order they were listed
+     * @throws IllegalArgumentException if a name is missing or listed twice
+     */
+    public List<Shape> deleteAll(List<String> names) {
+        Set<Shape> listed = Collections.newSetFromMap(new IdentityHashMap<>(names.size() * 2));
+        for (String name : names) {
+            Shape shape = name == null ? null : shapes.get(name);
+            if (shape == null) {
+                throw new IllegalArgumentException("Shape not found: " + name);
+            }
+            if (!listed.add(shape)) {
+                throw new IllegalArgumentException("Shape is listed more than once: " + name);
+            }
+        }
+        List<Shape> roots = new ArrayList<>(names.size());
+        for (String name : names) {
+            Shape shape = shapes.get(name);
+            if (!insideListedGroup(shape, listed)) {
+                roots.add(shape);
+            }
+        }
+        List<Shape> indexed = new ArrayList<>(roots.size());
+        for (Shape shape : roots) {
+            detach(shape, indexed);
+        }
+        index.removeAll(indexed);
+        return roots;
+    }
+
+    private boolean insideListedGroup(Shape shape, Set<Shape> listed) {
+        for (Group parent = groupManager.parentOf(shape); parent != null; parent = groupManager.parentOf(parent)) {
+            if (listed.contains(parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes a shape and, for a group, its members from the maps and the draw
+     * order, collecting the removed top-level shapes for the spatial index.
+     */
+    private void detach(Shape shape, List<Shape> indexed) {
+        shapes.remove(shape.name());
+        if (drawOrder.remove(shape)) {
+            indexed.add(shape);
+        }
+        if (shape instanceof Group group) {
+            groups.remove(group.name());
+            for (Shape member : group.members()) {
+                // A member deleted on its own earlier is only left in the member list
+                if (shapes.get(member.name()) == member) {
+                    detach(member, indexed);
+                }
+                groupManager.forget(member);
+            }
+        }
+    }
+
+    /**
+     * Puts a deleted shape back, with all of its members if it is a group,
+     * such as when a delete is undone.
+     * @param position index of the shape in the drawing order, or -1 for a member
+     *        of a group, which stays in its group's member list when deleted
+     * @throws IllegalArgumentException if a name of the shape is already used
+     */
+    public void reinsert(Shape shape, int position) {
+        if (shapes.containsKey(shape.name())) {
+            throw new IllegalArgumentException("Name already used: " + shape.name());
+        }
+        register(shape);
         if (shape instanceof Group group) {
-            groups.remove(name);
-            shapes.remove(name);
-            drawOrder.remove(shape);
+            groupManager.adopt(group);
+        }
+        if (position >= 0) {
+            drawOrder.add(position, shape);
+            index.insert(shape);
+        }
+    }
 
-            for (Shape shape1 : group.getShapes()) {
-                deleteShape(shape1.name());
+    /**
+     * Puts back several deleted shapes, such as when a bulk delete is undone,
+     * merging them into the draw order and the spatial index in one pass.
+     * @param positions index of each shape in the drawing order once all are
+     *        back, ascending, or -1 for members of groups
+     * @throws IllegalArgumentException if a name of a shape is already used
+     */
+    public void reinsertAll(List<Shape> restored, int[] positions) {
+        for (Shape shape : restored) {
+            if (shapes.containsKey(shape.name())) {
+                throw new IllegalArgumentException("Name already used: " + shape.name());
+            }
+        }
+        List<Shape> topLevel = new ArrayList<>();
+        int[] indexes = new int[positions.length];
+        for (int i = 0; i < restored.size(); i++) {
+            Shape shape = restored.get(i);
+            register(shape);
+            if (shape instanceof Group group) {
+                groupManager.adopt(group);
             }
+            if (positions[i] >= 0) {
+                indexes[topLevel.size()] = positions[i];
+                topLevel.add(shape);
+            }
+        }
+        indexes = Arrays.copyOf(indexes, topLevel.size());
+        if (drawOrder instanceof DrawOrder order) {
+            order.insertAll(indexes, topLevel);
         } else {
-            shapes.remove(name);
-            drawOrder.remove(shape);
+            for (int i = 0; i < indexes.length; i++) {
+                drawOrder.add(indexes[i], topLevel.get(i));
+            }
         }
+        index.insertAll(topLevel);
+    }
 
+    private void register(Shape shape) {
+        shapes.put(shape.name(), shape);
+        if (shape instanceof Group group) {
+            groups.put(shape.name(), group);
+            for (Shape member : group.members()) {
+                register(member);
+            }
+        }
     }
 }
\ No newline at end of file
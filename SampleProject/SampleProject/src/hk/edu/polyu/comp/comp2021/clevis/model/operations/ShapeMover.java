@@ -1,5 +1,6 @@
 package hk.edu.polyu.comp.comp2021.clevis.model.operations;
 
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialIndex;
 import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
 import java.util.*;
 
@@ -9,90 +10,42 @@ import java.util.*;
  */
 public class ShapeMover {
     private final Map<String, Shape> shapes;
-    private final List<Shape> drawOrder;
-    private final Map<String, Group> groups;
+    private final SpatialIndex index;
+    private final GroupManager groupManager;
     
-    public ShapeMover(Map<String, Shape> shapes, List<Shape> drawOrder, 
-                     Map<String, Group> groups) {
+    public ShapeMover(Map<String, Shape> shapes, SpatialIndex index, GroupManager groupManager) {
         this.shapes = shapes;
-        this.drawOrder = drawOrder;
-        this.groups = groups;
+        this.index = index;
+        this.groupManager = groupManager;
     }
     
     /**
      * Moves a shape by the specified deltas (REQ10).
      * If the shape is a group, all its component shapes are moved.
+     * Coordinates are updated in place, so the cost is proportional to the number
+     * of primitives moved and no shape objects are created.
      * @param shapeName name of the shape to move
      * @param dx horizontal displacement
      * @param dy vertical displacement
      * @throws IllegalArgumentException if shapeName is null/empty or shape doesn't exist
      */
     public void move(String shapeName, double dx, double dy) {
-//        System.out.println("01" + !shapes.containsKey(shapeName));
-//        System.out.println("02" + shapeName.isBlank());
-
         if (shapeName == null || !shapes.containsKey(shapeName)|| shapeName.isBlank()) {
-            System.out.println("nono");
             throw new IllegalArgumentException("Shape name must be non-empty");
         }
-        System.out.println("yesbye");
         if (dx == 0 && dy == 0) {
             return;
         }
 
-        if (shapes.containsKey(shapeName)) {
-            if (shapes.get(shapeName) == null) {
-                throw new IllegalArgumentException("Shape not found: " + shapeName);
-            }
-            moveShape(shapes.get(shapeName), dx, dy, new HashSet<>());
-        }
-    }
-    
-    private void moveShape(Shape shape, double dx, double dy, Set<Shape> visited) {
-        if (!visited.add(shape)) {
-            return;
-        }
-        
-        if (shape instanceof Group group) {
-            for (Shape member : group.getShapes()) {
-                moveShape(member, dx, dy, visited);
-            }
-            return;
-        }
-        
-        if (shape instanceof Rectangle rect) {
-            Rectangle moved = new Rectangle(rect.name(), rect.z(), 
-                rect.x + dx, rect.y + dy, rect.w, rect.h);
-            replaceShapeInCollections(rect, moved);
-        } else if (shape instanceof Line line) {
-            Line moved = new Line(line.name(), line.z(), 
-                line.x1 + dx, line.y1 + dy, line.x2 + dx, line.y2 + dy);
-            replaceShapeInCollections(line, moved);
-        } else if (shape instanceof Circle circle) {
-            Circle moved = new Circle(circle.name(), circle.z, 
-                circle.centerX + dx, circle.centerY + dy, circle.radius);
-            replaceShapeInCollections(circle, moved);
-        } else if (shape instanceof Square square) {
-            Square moved = new Square(square.name(), square.z, 
-                square.x + dx, square.y + dy, square.length);
-            replaceShapeInCollections(square, moved);
-        }
-    }
-    
-    private void replaceShapeInCollections(Shape oldShape, Shape newShape) {
-        shapes.put(newShape.name(), newShape);
-        int index = drawOrder.indexOf(oldShape);
-        if (index >= 0) {
-            drawOrder.set(index, newShape);
-        }
-        
-        for (Group group : groups.values()) {
-            List<Shape> members = group.getShapes();
-            for (int i = 0; i < members.size(); i++) {
-                if (members.get(i) == oldShape) {
-                    members.set(i, newShape);
-                }
-            }
+        Shape shape = shapes.get(shapeName);
+        if (shape == null) {
+            throw new IllegalArgumentException("Shape not found: " + shapeName);
         }
+        shape.translate(dx, dy);
+
+        // The groups enclosing the moved shape need their bounding boxes refreshed,
+        // and the top-level shape its index entry
+        groupManager.invalidateAncestors(shape);
+        index.update(groupManager.topLevelAncestor(shape));
     }
-}
\ No newline at end of file
+}
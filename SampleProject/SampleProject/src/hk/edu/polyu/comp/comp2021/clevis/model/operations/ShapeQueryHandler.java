@@ -1,20 +1,36 @@
 package hk.edu.polyu.comp.comp2021.clevis.model.operations;
 
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialIndex;
 import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeStore;
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeView;
 import hk.edu.polyu.comp.comp2021.clevis.model.util.ShapeDistanceCalculator;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 /**
  * Handles queries about shapes.
- * Implements REQ9 (boundingbox), REQ11 (shapeAt), and REQ12 (intersect).
+ * Implements REQ9 (boundingbox), REQ11 (shapeAt), and REQ12 (intersect),
+ * and region queries over the drawing (shapesIn).
  */
 public class ShapeQueryHandler {
+    /** A point is covered by a shape closer than this to its outline (REQ11). */
+    private static final double TOLERANCE = 0.05;
+
     private final Map<String, Shape> shapes;
     private final List<Shape> drawOrder;
+    private final SpatialIndex index;
+    private final GroupManager groupManager;
 
-    public ShapeQueryHandler(Map<String, Shape> shapes, List<Shape> drawOrder) {
+    public ShapeQueryHandler(Map<String, Shape> shapes, List<Shape> drawOrder, SpatialIndex index,
+                             GroupManager groupManager) {
         this.shapes = shapes;
         this.drawOrder = drawOrder;
+        this.index = index;
+        this.groupManager = groupManager;
     }
 
     /**
@@ -33,7 +49,14 @@ public class ShapeQueryHandler {
             throw new IllegalArgumentException("Shape not found: " + name);
         }
 
-        return shape.bbox();
+        BoundingBox box = shape.bbox();
+        // Members of moved groups are stored relative to their enclosing groups
+        double dx = groupManager.offsetX(shape);
+        double dy = groupManager.offsetY(shape);
+        if (dx == 0 && dy == 0) {
+            return box;
+        }
+        return new BoundingBox(box.x + dx, box.y + dy, box.w, box.h);
     }
 
     /**
@@ -41,44 +64,510 @@ public class ShapeQueryHandler {
      * Returns the shape with the HIGHEST z-index that covers the point.
      * A shape covers a point if the minimum distance from the point to the shape's
      * outline is less than 0.05.
+     * Only shapes whose bounding box, grown by that tolerance, contains the point
+     * are tested, from the highest z-index down.
      * @param x x-coordinate of the point
      * @param y y-coordinate of the point
      * @return name of the topmost shape covering the point, or null if none
      */
     public String shapeAt(double x, double y) {
-        Shape topmost = null;
-        int highestZ = 0;
-
-        // Check all shapes in drawOrder and find the one with highest z-index
-        for (Shape shape : drawOrder) {
-//            System.out.println(shape);
-//            System.out.println(covers(shape, x, y));
-            if (covers(shape, x, y)) {
-                int z = shape.z();
-                if (z > highestZ) {
-                    highestZ = z;
-                    topmost = shape;
-                }
+        List<Shape> candidates = new ArrayList<>();
+        index.search(x - TOLERANCE, y - TOLERANCE, x + TOLERANCE, y + TOLERANCE, candidates);
+        candidates.sort(TOPMOST_FIRST);
+
+        double[] box = new double[4];
+        for (Shape shape : candidates) {
+            if (covers(shape, x, y, box)) {
+                return shape.name();
             }
         }
-
-        return topmost != null ? topmost.name() : null;
+        return null;
     }
 
-    private boolean covers(Shape shape, double x, double y) {
+    private boolean covers(Shape shape, double x, double y, double[] box) {
         if (shape instanceof Group) {
             Group group = (Group) shape;
-            for (Shape member : group.getShapes()) {
-                if (covers(member, x, y)) {
+            // Skip the whole group when the point is clear of its cached bounding box,
+            // read into the caller's scratch array before descending
+            group.bounds(box);
+            if (x < box[0] - TOLERANCE || x > box[2] + TOLERANCE
+                    || y < box[1] - TOLERANCE || y > box[3] + TOLERANCE) {
+                return false;
+            }
+            // Members are relative to the group's pending offset
+            double localX = x - group.offsetX();
+            double localY = y - group.offsetY();
+            for (Shape member : group.members()) {
+                if (covers(member, localX, localY, box)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        return ShapeDistanceCalculator.distanceToShape(shape, x, y) < TOLERANCE;
+    }
+
+    /**
+     * Finds the topmost shape at each of many points (REQ11 over a point stream).
+     * The points are visited in Hilbert-curve order, so that consecutive points
+     * lie close together. Each run of up to {@link PointRuns#RUN} consecutive
+     * points that lie within {@link PointRuns#SPAN} of each other, as the
+     * samples of a pointer trace do, shares one index search over the union of
+     * their query boxes; the candidates it returns, sorted by z-index once,
+     * serve every point of the run. Runs are spread across a fork-join pool like
+     * {@link #intersectAll(int)}.
+     * @param parallelism number of worker threads; 1 runs on the calling thread
+     * @return for each point, the name of the topmost shape covering it, or null
+     * @throws IllegalArgumentException if the coordinate arrays differ in length
+     *         or parallelism is less than 1
+     */
+    public String[] shapeAtBatch(double[] xs, double[] ys, int parallelism) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Expected as many y as x coordinates");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        int[] order = hilbertOrder(xs, ys);
+        String[] names = new String[xs.length];
+        PointRuns all = new PointRuns(xs, ys, order, names, 0, order.length);
+        if (parallelism == 1 || order.length <= PointRuns.SLICE) {
+            all.compute();
+        } else {
+            // Fill the lazily cached group bounds before the workers read them
+            double[] box = new double[4];
+            for (Shape shape : drawOrder) {
+                shape.bounds(box);
+            }
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(all);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return names;
+    }
+
+    private static final Comparator<Shape> TOPMOST_FIRST = Comparator.comparingInt(Shape::z).reversed();
+
+    /**
+     * Resolves a range of points, taken in Hilbert order, a run at a time.
+     */
+    private final class PointRuns extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        static final int SLICE = 4096;
+        static final int RUN = 64;
+        // Widest run; a wider search box would return more candidates than
+        // the points of the run can share
+        static final double SPAN = 2.0;
+
+        private final double[] xs, ys;
+        private final int[] order;
+        private final String[] names;
+        private final int from, to;
+
+        PointRuns(double[] xs, double[] ys, int[] order, String[] names, int from, int to) {
+            this.xs = xs;
+            this.ys = ys;
+            this.order = order;
+            this.names = names;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SLICE && getPool() != null) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new PointRuns(xs, ys, order, names, from, mid),
+                        new PointRuns(xs, ys, order, names, mid, to));
+                return;
+            }
+            List<Shape> candidates = new ArrayList<>();
+            double[] bounds = new double[RUN * 4];
+            double[] box = new double[4];
+            for (int start = from, end; start < to; start = end) {
+                // Grow the run while its points stay within SPAN of each other
+                double minX = xs[order[start]], minY = ys[order[start]];
+                double maxX = minX, maxY = minY;
+                for (end = start + 1; end < to && end - start < RUN; end++) {
+                    double x = xs[order[end]], y = ys[order[end]];
+                    if (Math.max(maxX, x) - Math.min(minX, x) > SPAN || Math.max(maxY, y) - Math.min(minY, y) > SPAN) {
+                        break;
+                    }
+                    minX = Math.min(minX, x);
+                    minY = Math.min(minY, y);
+                    maxX = Math.max(maxX, x);
+                    maxY = Math.max(maxY, y);
+                }
+                candidates.clear();
+                index.search(minX - TOLERANCE, minY - TOLERANCE, maxX + TOLERANCE, maxY + TOLERANCE, candidates);
+                candidates.sort(TOPMOST_FIRST);
+                if (bounds.length < candidates.size() * 4) {
+                    bounds = new double[candidates.size() * 4];
+                }
+                for (int c = 0; c < candidates.size(); c++) {
+                    candidates.get(c).bounds(box);
+                    System.arraycopy(box, 0, bounds, c * 4, 4);
+                }
+
+                for (int k = start; k < end; k++) {
+                    int point = order[k];
+                    double x = xs[point], y = ys[point];
+                    for (int c = 0; c < candidates.size(); c++) {
+                        if (x < bounds[c * 4] - TOLERANCE || x > bounds[c * 4 + 2] + TOLERANCE
+                                || y < bounds[c * 4 + 1] - TOLERANCE || y > bounds[c * 4 + 3] + TOLERANCE) {
+                            continue;
+                        }
+                        if (covers(candidates.get(c), x, y, box)) {
+                            names[point] = candidates.get(c).name();
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts point numbers along a Hilbert curve over the points' bounding box,
+     * on a grid of 2^15 by 2^15 cells.
+     */
+    private static int[] hilbertOrder(double[] xs, double[] ys) {
+        int n = xs.length;
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        int cells = 1 << 15;
+        double scaleX = (cells - 1) / Math.max(maxX - minX, Double.MIN_NORMAL);
+        double scaleY = (cells - 1) / Math.max(maxY - minY, Double.MIN_NORMAL);
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int cellX = (int) ((xs[i] - minX) * scaleX);
+            int cellY = (int) ((ys[i] - minY) * scaleY);
+            keys[i] = ((long) hilbertIndex(cells, cellX, cellY) << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    /**
+     * @return distance of cell (x, y) along the Hilbert curve filling a grid of
+     *         cells by cells, a power of two
+     */
+    private static int hilbertIndex(int cells, int x, int y) {
+        int d = 0;
+        for (int s = cells / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant so that the curve continues where it left off
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = cells - 1 - x;
+                    y = cells - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * How a shape has to relate to the region of {@link #shapesIn}.
+     */
+    public enum RegionMode {
+        /** The whole shape lies inside the region, edges included. */
+        CONTAINED,
+        /** The shape shares at least one point with the region, taken as filled. */
+        TOUCHING
+    }
+
+    /**
+     * Finds the top-level shapes inside or touching a rectangular region, such
+     * as a viewport. The index narrows the drawing down to the shapes whose
+     * bounding boxes overlap the region; a shape is contained when its bounding
+     * box is, and touching is decided with the exact circle and line tests
+     * against the region. A group touches the region when one of its members does.
+     * @param sink receives the matching shapes one at a time, in ascending
+     *        z-index order, that is, in the order they are drawn
+     * @throws IllegalArgumentException if the width or height is negative or
+     *         any value is not a number
+     */
+    public void shapesIn(double x, double y, double w, double h, RegionMode mode, Consumer<Shape> sink) {
+        if (Double.isNaN(x) || Double.isNaN(y) || !(w >= 0) || !(h >= 0)) {
+            throw new IllegalArgumentException("Region width and height must not be negative");
+        }
+        Objects.requireNonNull(mode, "mode");
+        List<Shape> candidates = new ArrayList<>();
+        index.search(x, y, x + w, y + h, candidates);
+        candidates.sort(Comparator.comparingInt(Shape::z));
+
+        double[] box = new double[4];
+        for (Shape shape : candidates) {
+            boolean matches;
+            if (mode == RegionMode.CONTAINED) {
+                shape.bounds(box);
+                matches = box[0] >= x && box[1] >= y && box[2] <= x + w && box[3] <= y + h;
+            } else {
+                matches = touches(shape, x, y, w, h, box);
+            }
+            if (matches) {
+                sink.accept(shape);
+            }
+        }
+    }
+
+    // box is the caller's scratch array, overwritten at each level before descending
+    private static boolean touches(Shape shape, double x, double y, double w, double h, double[] box) {
+        if (shape instanceof Group group) {
+            group.bounds(box);
+            if (box[0] > x + w || box[2] < x || box[1] > y + h || box[3] < y) {
+                return false;
+            }
+            // Members are stored relative to the group's pending offset
+            double localX = x - group.offsetX();
+            double localY = y - group.offsetY();
+            for (Shape member : group.members()) {
+                if (touches(member, localX, localY, w, h, box)) {
+                    return true;
+                }
+            }
+            return false;
+        } else if (shape instanceof Circle c) {
+            return circleIntersectsRectangle(c.centerX, c.centerY, c.radius, x, y, w, h);
+        } else if (shape instanceof Line l) {
+            return lineIntersectsRectangle(l.x1, l.y1, l.x2, l.y2, x, y, w, h);
+        }
+        // Rectangles and squares touch the region exactly when their boxes overlap it
+        shape.bounds(box);
+        return box[0] <= x + w && box[2] >= x && box[1] <= y + h && box[3] >= y;
+    }
+
+    /**
+     * Finds the topmost shape covering a point in a {@link PrimitiveShapeView}, such as a
+     * {@link PrimitiveShapeStore} or a mapped snapshot (REQ11).
+     * Reads the coordinate columns directly and allocates nothing. As for
+     * {@link #shapeAt(double, double)}, a group member that covers the point reports
+     * its outermost group.
+     * @return id of the topmost shape covering the point, or NO_SHAPE if none
+     */
+    public static int shapeAt(PrimitiveShapeView store, double x, double y) {
+        int topmost = PrimitiveShapeStore.NO_SHAPE;
+        int highestZ = Integer.MIN_VALUE;
+        for (int id = 0; id < store.capacity(); id++) {
+            byte type = store.type(id);
+            if (type == PrimitiveShapeStore.NONE || type == PrimitiveShapeStore.GROUP) {
+                continue;
+            }
+            int root = store.root(id);
+            if (store.z(root) <= highestZ) {
+                continue;
+            }
+            if (ShapeDistanceCalculator.distanceToShape(store, id, x, y) < TOLERANCE) {
+                topmost = root;
+                highestZ = store.z(root);
+            }
+        }
+        return topmost;
+    }
+
+    /**
+     * Calculates the bounding box of a shape in a {@link PrimitiveShapeView} (REQ9).
+     * @throws IllegalArgumentException if name is null/empty or shape doesn't exist
+     */
+    public static BoundingBox boundingBox(PrimitiveShapeView store, String name) {
+        double[] box = new double[4];
+        store.bounds(requireId(store, name), box);
+        return new BoundingBox(box[0], box[1], box[2] - box[0], box[3] - box[1]);
+    }
+
+    /**
+     * Checks if two shapes in a {@link PrimitiveShapeView} intersect (REQ12), with the
+     * same geometry as the shapes' own intersects methods: a group intersects a shape
+     * when any of its members does.
+     * @throws IllegalArgumentException if either name is null/empty or shape doesn't exist
+     */
+    public static boolean intersect(PrimitiveShapeView store, String name1, String name2) {
+        return intersectsAny(store, requireId(store, name1), requireId(store, name2));
+    }
+
+    /**
+     * Finds the top-level shapes of a {@link PrimitiveShapeView} inside or touching a
+     * rectangular region, with the same geometry as {@link #shapesIn}. Every top-level
+     * shape is checked, as a view has no spatial index.
+     * @param sink receives the ids of the matching shapes, in ascending z-index order
+     * @throws IllegalArgumentException if the width or height is negative or
+     *         any value is not a number
+     */
+    public static void shapesIn(PrimitiveShapeView store, double x, double y, double w, double h,
+                                RegionMode mode, IntConsumer sink) {
+        if (Double.isNaN(x) || Double.isNaN(y) || !(w >= 0) || !(h >= 0)) {
+            throw new IllegalArgumentException("Region width and height must not be negative");
+        }
+        Objects.requireNonNull(mode, "mode");
+        double[] box = new double[4];
+        for (int id : topLevelByZ(store)) {
+            store.bounds(id, box);
+            boolean matches;
+            if (mode == RegionMode.CONTAINED) {
+                matches = box[0] >= x && box[1] >= y && box[2] <= x + w && box[3] <= y + h;
+            } else {
+                matches = box[0] <= x + w && box[2] >= x && box[1] <= y + h && box[3] >= y
+                        && touches(store, id, x, y, w, h, box);
+            }
+            if (matches) {
+                sink.accept(id);
+            }
+        }
+    }
+
+    private static boolean touches(PrimitiveShapeView store, int id, double x, double y, double w, double h, double[] box) {
+        switch (store.type(id)) {
+            case PrimitiveShapeStore.GROUP:
+                for (int child = store.firstChild(id); child != PrimitiveShapeStore.NO_SHAPE; child = store.nextSibling(child)) {
+                    if (touches(store, child, x, y, w, h, box)) {
+                        return true;
+                    }
+                }
+                return false;
+            case PrimitiveShapeStore.CIRCLE:
+                return circleIntersectsRectangle(store.x(id), store.y(id), store.p(id), x, y, w, h);
+            case PrimitiveShapeStore.LINE:
+                return lineIntersectsRectangle(store.x(id), store.y(id), store.p(id), store.q(id), x, y, w, h);
+            default:
+                store.bounds(id, box);
+                return box[0] <= x + w && box[2] >= x && box[1] <= y + h && box[3] >= y;
+        }
+    }
+
+    /**
+     * Finds every pair of top-level shapes of a {@link PrimitiveShapeView} that
+     * intersect, with the same sweep and order as {@link #intersectAll()}. The
+     * exact tests run on the calling thread.
+     * @return intersecting pairs, ordered by the z-index of the lower shape, then of the upper one
+     */
+    public static List<IntersectionPair> intersectAll(PrimitiveShapeView store) {
+        int[] byZ = topLevelByZ(store);
+        int n = byZ.length;
+        double[] minX = new double[n], minY = new double[n];
+        double[] maxX = new double[n], maxY = new double[n];
+        double[] box = new double[4];
+        for (int i = 0; i < n; i++) {
+            store.bounds(byZ[i], box);
+            minX[i] = box[0];
+            minY[i] = box[1];
+            maxX[i] = box[2];
+            maxY[i] = box[3];
+        }
+        List<IntersectionPair> result = new ArrayList<>();
+        for (long pair : candidatePairs(minX, minY, maxX, maxY)) {
+            int lower = byZ[(int) (pair >>> 32)];
+            int upper = byZ[(int) pair];
+            if (intersectsAny(store, lower, upper)) {
+                result.add(new IntersectionPair(store.name(lower), store.name(upper)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return ids of the top-level shapes of the view, by ascending z-index
+     */
+    private static int[] topLevelByZ(PrimitiveShapeView store) {
+        // Packed as (z << 32 | id) so that sorting the longs sorts by z
+        long[] packed = new long[store.size()];
+        int count = 0;
+        for (int id = 0; id < store.capacity(); id++) {
+            if (store.isLive(id) && store.parent(id) == PrimitiveShapeStore.NO_SHAPE) {
+                packed[count++] = ((long) store.z(id) << 32) | id;
+            }
+        }
+        Arrays.sort(packed, 0, count);
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = (int) packed[i];
+        }
+        return ids;
+    }
+
+    private static int requireId(PrimitiveShapeView store, String name) {
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("Shape name cannot be null or empty");
+        }
+        int id = store.id(name);
+        if (id == PrimitiveShapeStore.NO_SHAPE) {
+            throw new IllegalArgumentException("Shape not found: " + name);
+        }
+        return id;
+    }
+
+    private static boolean intersectsAny(PrimitiveShapeView store, int a, int b) {
+        if (store.type(a) == PrimitiveShapeStore.GROUP) {
+            for (int child = store.firstChild(a); child != PrimitiveShapeStore.NO_SHAPE; child = store.nextSibling(child)) {
+                if (intersectsAny(store, child, b)) {
                     return true;
                 }
             }
             return false;
         }
+        if (store.type(b) == PrimitiveShapeStore.GROUP) {
+            return intersectsAny(store, b, a);
+        }
+        return primitivesIntersect(store, a, b);
+    }
 
-        double distance = ShapeDistanceCalculator.distanceToShape(shape, x, y);
-        System.out.println("distance " + distance);
-        return distance < 0.05;
+    private static boolean primitivesIntersect(PrimitiveShapeView store, int a, int b) {
+        byte typeA = store.type(a), typeB = store.type(b);
+        // Order the pair as box < circle < line so each combination is handled once
+        if (rank(typeA) > rank(typeB)) {
+            return primitivesIntersect(store, b, a);
+        }
+        double ax = store.x(a), ay = store.y(a), ap = store.p(a);
+        double aq = typeA == PrimitiveShapeStore.SQUARE ? ap : store.q(a);
+        double bx = store.x(b), by = store.y(b), bp = store.p(b);
+        double bq = typeB == PrimitiveShapeStore.SQUARE ? bp : store.q(b);
+        switch (rank(typeA) * 3 + rank(typeB)) {
+            case 0: // box, box
+                return Math.max(ax, bx) <= Math.min(ax + ap, bx + bp)
+                        && Math.max(ay, by) <= Math.min(ay + aq, by + bq);
+            case 1: // box, circle
+                return circleIntersectsRectangle(bx, by, bp, ax, ay, ap, aq);
+            case 2: // box, line
+                return lineIntersectsRectangle(bx, by, bp, bq, ax, ay, ap, aq);
+            case 4: { // circle, circle
+                double distance = Math.hypot(ax - bx, ay - by);
+                return distance <= ap + bp && distance + Math.min(ap, bp) >= Math.max(ap, bp);
+            }
+            case 5: // circle, line
+                return lineIntersectsCircle(bx, by, bp, bq, ax, ay, ap);
+            default: // line, line
+                return lineSegmentsIntersect(ax, ay, ap, aq, bx, by, bp, bq);
+        }
+    }
+
+    private static int rank(byte type) {
+        switch (type) {
+            case PrimitiveShapeStore.CIRCLE:
+                return 1;
+            case PrimitiveShapeStore.LINE:
+                return 2;
+            default:
+                return 0;
+        }
     }
 
     /**
@@ -105,8 +594,176 @@ public class ShapeQueryHandler {
         if (shape2 == null) {
             throw new IllegalArgumentException("Shape not found: " + name2);
         }
-        // Use the shape's own intersects method for proper geometric intersection
-        return shape1.intersects(shape2);
+        // Use the shape's own intersects method for proper geometric intersection,
+        // with shape2 moved into shape1's coordinates when either is a group member
+        return shape1.intersects(shape2,
+                groupManager.offsetX(shape2) - groupManager.offsetX(shape1),
+                groupManager.offsetY(shape2) - groupManager.offsetY(shape1));
+    }
+
+    /**
+     * Finds every pair of top-level shapes that intersect (REQ12 over the whole drawing).
+     * A sort-and-sweep pass over the x-intervals of the bounding boxes finds the pairs
+     * whose boxes overlap; only those pairs get the exact geometric test.
+     * @return intersecting pairs, ordered by the z-index of the lower shape, then of the upper one
+     */
+    public List<IntersectionPair> intersectAll() {
+        return intersectAll(1);
+    }
+
+    /**
+     * Same as {@link #intersectAll()}, but runs the exact tests on the candidate pairs
+     * across a fork-join pool. The result order does not depend on the parallelism.
+     * @param parallelism number of worker threads; 1 runs on the calling thread
+     * @return intersecting pairs, ordered by the z-index of the lower shape, then of the upper one
+     * @throws IllegalArgumentException if parallelism is less than 1
+     */
+    public List<IntersectionPair> intersectAll(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        Shape[] byZ = drawOrder.toArray(new Shape[0]);
+        Arrays.sort(byZ, Comparator.comparingInt(Shape::z));
+
+        long[] candidates = candidatePairs(byZ);
+        boolean[] hits = new boolean[candidates.length];
+        NarrowPhase all = new NarrowPhase(byZ, candidates, hits, 0, candidates.length);
+        if (parallelism == 1 || candidates.length <= NarrowPhase.SLICE) {
+            all.compute();
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(all);
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        List<IntersectionPair> result = new ArrayList<>();
+        for (int i = 0; i < candidates.length; i++) {
+            if (hits[i]) {
+                Shape lower = byZ[(int) (candidates[i] >>> 32)];
+                Shape upper = byZ[(int) candidates[i]];
+                result.add(new IntersectionPair(lower.name(), upper.name()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Narrow phase of intersectAll. Splits a range of candidate pairs in half until
+     * it is small enough, then runs the exact intersection test on each pair and
+     * records the outcome at the pair's own position.
+     */
+    private static final class NarrowPhase extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        static final int SLICE = 2048;
+
+        private final Shape[] byZ;
+        private final long[] candidates;
+        private final boolean[] hits;
+        private final int from, to;
+
+        NarrowPhase(Shape[] byZ, long[] candidates, boolean[] hits, int from, int to) {
+            this.byZ = byZ;
+            this.candidates = candidates;
+            this.hits = hits;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SLICE && getPool() != null) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new NarrowPhase(byZ, candidates, hits, from, mid),
+                        new NarrowPhase(byZ, candidates, hits, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                Shape lower = byZ[(int) (candidates[i] >>> 32)];
+                Shape upper = byZ[(int) candidates[i]];
+                hits[i] = lower.intersects(upper);
+            }
+        }
+    }
+
+    /**
+     * Broad phase of intersectAll. Sweeps the shapes left to right by the x-interval
+     * of their bounding boxes, keeping the boxes that are still open, and pairs each
+     * new box with every open box it also overlaps on y.
+     * @param byZ shapes sorted by z-index
+     * @return candidate pairs packed as (lower index &lt;&lt; 32 | upper index) into byZ, sorted
+     */
+    private static long[] candidatePairs(Shape[] byZ) {
+        int n = byZ.length;
+        double[] minX = new double[n], minY = new double[n];
+        double[] maxX = new double[n], maxY = new double[n];
+        double[] box = new double[4];
+        for (int i = 0; i < n; i++) {
+            byZ[i].bounds(box);
+            minX[i] = box[0];
+            minY[i] = box[1];
+            maxX[i] = box[2];
+            maxY[i] = box[3];
+        }
+        return candidatePairs(minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Sweeps bounding boxes given as columns, in the order of the shapes they belong to.
+     * The sweep order is a primitive sort of each box's minX, rounded down to a float
+     * and packed above its index; boxes stay open until the rounded sweep line passes
+     * them, so the coarser order never loses a pair.
+     * @return candidate pairs packed as (lower index &lt;&lt; 32 | upper index), sorted
+     */
+    private static long[] candidatePairs(double[] minX, double[] minY, double[] maxX, double[] maxY) {
+        int n = minX.length;
+        float[] sweepX = new float[n];
+        long[] sweepOrder = new long[n];
+        for (int i = 0; i < n; i++) {
+            float x = (float) minX[i];
+            if (x > minX[i]) {
+                x = Math.nextDown(x);
+            }
+            sweepX[i] = x;
+            int bits = Float.floatToIntBits(x);
+            bits ^= (bits >> 31) & 0x7fffffff; // orders negative floats as ints
+            sweepOrder[i] = ((long) bits << 32) | i;
+        }
+        Arrays.sort(sweepOrder);
+
+        long[] pairs = new long[Math.max(16, n)];
+        int count = 0;
+        int[] open = new int[n];
+        int openCount = 0;
+
+        for (long packed : sweepOrder) {
+            int current = (int) packed;
+            int kept = 0;
+            for (int k = 0; k < openCount; k++) {
+                int other = open[k];
+                if (maxX[other] < sweepX[current]) {
+                    continue; // closed before the sweep line reached this box
+                }
+                open[kept++] = other;
+                if (minX[current] <= maxX[other] && minX[other] <= maxX[current]
+                        && minY[current] <= maxY[other] && minY[other] <= maxY[current]) {
+                    if (count == pairs.length) {
+                        pairs = Arrays.copyOf(pairs, count * 2);
+                    }
+                    int lower = Math.min(current, other);
+                    int upper = Math.max(current, other);
+                    pairs[count++] = ((long) lower << 32) | upper;
+                }
+            }
+            openCount = kept;
+            open[openCount++] = current;
+        }
+
+        long[] result = Arrays.copyOf(pairs, count);
+        Arrays.sort(result);
+        return result;
     }
 
     // ============================================================================
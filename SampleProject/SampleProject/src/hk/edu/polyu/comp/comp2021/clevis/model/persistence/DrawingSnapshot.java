@@ -0,0 +1,378 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.persistence;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary snapshot of a drawing, written and read through a {@link FileChannel}
+ * with bulk {@link ByteBuffer} transfers. All numbers are little-endian.
+ * <pre>
+ * header      magic "CLVS", version, record count, member count, top-level count,
+ *             name bytes, nextZ                                  (7 ints)
+ * names       UTF-8 bytes of every name, back to back
+ * records     one fixed-size record per shape, members before their group:
+ *             tag (byte), z, name offset, name length, parent, next sibling,
+ *             member start, member count (ints), a, b, c, d (doubles)
+ * members     record numbers of group members, per group from member start
+ * top level   record numbers of the top-level shapes in drawing order
+ * </pre>
+ * The meaning of a..d depends on the tag: rectangle x, y, w, h; line x1, y1, x2, y2;
+ * circle centre x, centre y, radius; square x, y, side length; group pending
+ * offset x, offset y. Parent and next sibling are record numbers, -1 for none;
+ * they let {@link MappedSnapshot} walk groups without decoding the member table.
+ * Version 1 files lack those two fields and can still be read.
+ */
+public final class DrawingSnapshot {
+    public static final int MAGIC = 0x53564C43; // "CLVS" read little-endian
+    public static final int VERSION = 2;
+    public static final byte RECTANGLE = 1, LINE = 2, CIRCLE = 3, SQUARE = 4, GROUP = 5;
+
+    public static final int NONE = -1;
+
+    static final int HEADER_BYTES = 7 * Integer.BYTES;
+    static final int RECORD_BYTES = 1 + 7 * Integer.BYTES + 4 * Double.BYTES;
+    private static final int V1_RECORD_BYTES = 1 + 5 * Integer.BYTES + 4 * Double.BYTES;
+    // Offsets of the fields within a record
+    static final int TAG = 0, Z = 1, NAME_OFFSET = 5, NAME_LENGTH = 9, PARENT = 13, NEXT_SIBLING = 17,
+            MEMBER_START = 21, MEMBER_COUNT = 25, A = 29, B = 37, C = 45, D = 53;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private final List<Shape> topLevel;
+    private final int nextZ;
+
+    private DrawingSnapshot(List<Shape> topLevel, int nextZ) {
+        this.topLevel = topLevel;
+        this.nextZ = nextZ;
+    }
+
+    /**
+     * @return the top-level shapes in drawing order; groups hold their members
+     */
+    public List<Shape> topLevel() {
+        return topLevel;
+    }
+
+    /**
+     * @return the z-index the next created shape receives
+     */
+    public int nextZ() {
+        return nextZ;
+    }
+
+    // =============================
+    // Writing
+    // =============================
+
+    /**
+     * Writes the top-level shapes, their group members and nextZ to a file,
+     * replacing it if it exists.
+     */
+    public static void write(Path file, Collection<Shape> topLevel, int nextZ) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, topLevel, nextZ);
+        }
+    }
+
+    /**
+     * Writes a snapshot to any channel, such as an in-memory one.
+     */
+    public static void write(WritableByteChannel channel, Collection<Shape> topLevel, int nextZ) throws IOException {
+        // Number the records so that members come before their group
+        List<Shape> records = new ArrayList<>();
+        for (Shape shape : topLevel) {
+            collect(shape, records);
+        }
+        Map<Shape, Integer> number = new IdentityHashMap<>(records.size() * 2);
+        int[] parent = new int[records.size()];
+        int[] nextSibling = new int[records.size()];
+        Arrays.fill(parent, NONE);
+        Arrays.fill(nextSibling, NONE);
+        byte[][] names = new byte[records.size()][];
+        int nameBytes = 0;
+        int memberCount = 0;
+        for (int i = 0; i < records.size(); i++) {
+            Shape shape = records.get(i);
+            number.put(shape, i);
+            names[i] = shape.name().getBytes(StandardCharsets.UTF_8);
+            nameBytes += names[i].length;
+            if (shape instanceof Group group) {
+                memberCount += group.members().size();
+                int previous = NONE;
+                for (Shape member : group.members()) {
+                    int m = number.get(member);
+                    parent[m] = i;
+                    if (previous != NONE) {
+                        nextSibling[previous] = m;
+                    }
+                    previous = m;
+                }
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(records.size()).putInt(memberCount)
+                .putInt(topLevel.size()).putInt(nameBytes).putInt(nextZ);
+
+        for (byte[] name : names) {
+            int done = 0;
+            while (done < name.length) {
+                if (!buffer.hasRemaining()) {
+                    drain(channel, buffer);
+                }
+                int n = Math.min(buffer.remaining(), name.length - done);
+                buffer.put(name, done, n);
+                done += n;
+            }
+        }
+
+        int nameOffset = 0;
+        int memberStart = 0;
+        for (int i = 0; i < records.size(); i++) {
+            if (buffer.remaining() < RECORD_BYTES) {
+                drain(channel, buffer);
+            }
+            Shape shape = records.get(i);
+            int members = shape instanceof Group group ? group.members().size() : 0;
+            putRecord(buffer, shape, nameOffset, names[i].length, parent[i], nextSibling[i],
+                    memberStart, members);
+            nameOffset += names[i].length;
+            memberStart += members;
+        }
+
+        for (Shape shape : records) {
+            if (shape instanceof Group group) {
+                for (Shape member : group.members()) {
+                    putInt(channel, buffer, number.get(member));
+                }
+            }
+        }
+        for (Shape shape : topLevel) {
+            putInt(channel, buffer, number.get(shape));
+        }
+        drain(channel, buffer);
+    }
+
+    private static void collect(Shape shape, List<Shape> records) {
+        if (shape instanceof Group group) {
+            for (Shape member : group.members()) {
+                collect(member, records);
+            }
+        }
+        records.add(shape);
+    }
+
+    private static void putRecord(ByteBuffer buffer, Shape shape, int nameOffset, int nameLength,
+                                  int parent, int nextSibling, int memberStart, int memberCount) {
+        byte tag;
+        double a, b, c = 0, d = 0;
+        if (shape instanceof Rectangle r) {
+            tag = RECTANGLE; a = r.x; b = r.y; c = r.w; d = r.h;
+        } else if (shape instanceof Line l) {
+            tag = LINE; a = l.x1; b = l.y1; c = l.x2; d = l.y2;
+        } else if (shape instanceof Circle ci) {
+            tag = CIRCLE; a = ci.centerX; b = ci.centerY; c = ci.radius;
+        } else if (shape instanceof Square s) {
+            tag = SQUARE; a = s.x; b = s.y; c = s.length;
+        } else if (shape instanceof Group g) {
+            tag = GROUP; a = g.offsetX(); b = g.offsetY();
+        } else {
+            throw new IllegalArgumentException("Unsupported shape type");
+        }
+        buffer.put(tag).putInt(shape.z()).putInt(nameOffset).putInt(nameLength)
+                .putInt(parent).putInt(nextSibling).putInt(memberStart).putInt(memberCount)
+                .putDouble(a).putDouble(b).putDouble(c).putDouble(d);
+    }
+
+    private static void putInt(WritableByteChannel channel, ByteBuffer buffer, int value) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) {
+            drain(channel, buffer);
+        }
+        buffer.putInt(value);
+    }
+
+    private static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // =============================
+    // Reading
+    // =============================
+
+    /**
+     * Reads a snapshot written by {@link #write}.
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static DrawingSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(channel, file.toString());
+        }
+    }
+
+    /**
+     * Reads a snapshot from any channel, such as an in-memory one.
+     * @throws IOException if the channel cannot be read or does not hold a valid snapshot
+     */
+    public static DrawingSnapshot read(ReadableByteChannel channel) throws IOException {
+        return read(channel, "channel");
+    }
+
+    private static DrawingSnapshot read(ReadableByteChannel channel, String source) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.limit(0);
+        fill(channel, buffer, HEADER_BYTES);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a Clevis snapshot: " + source);
+        }
+        int version = buffer.getInt();
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        int recordBytes = version == 1 ? V1_RECORD_BYTES : RECORD_BYTES;
+        int recordCount = buffer.getInt();
+        int memberCount = buffer.getInt();
+        int topLevelCount = buffer.getInt();
+        int nameBytes = buffer.getInt();
+        int nextZ = buffer.getInt();
+        if (recordCount < 0 || memberCount < 0 || topLevelCount < 0 || nameBytes < 0) {
+            throw new IOException("Corrupt snapshot header: " + source);
+        }
+
+        byte[] names = new byte[nameBytes];
+        for (int done = 0; done < nameBytes; ) {
+            fill(channel, buffer, 1);
+            int n = Math.min(buffer.remaining(), nameBytes - done);
+            buffer.get(names, done, n);
+            done += n;
+        }
+
+        byte[] tags = new byte[recordCount];
+        int[] z = new int[recordCount];
+        int[] nameOffset = new int[recordCount];
+        int[] nameLength = new int[recordCount];
+        int[] memberStart = new int[recordCount];
+        int[] members = new int[recordCount];
+        double[] values = new double[recordCount * 4];
+        for (int i = 0; i < recordCount; i++) {
+            fill(channel, buffer, recordBytes);
+            tags[i] = buffer.get();
+            z[i] = buffer.getInt();
+            nameOffset[i] = buffer.getInt();
+            nameLength[i] = buffer.getInt();
+            if (version > 1) {
+                buffer.getInt(); // parent and next sibling follow from the member table
+                buffer.getInt();
+            }
+            memberStart[i] = buffer.getInt();
+            members[i] = buffer.getInt();
+            for (int k = 0; k < 4; k++) {
+                values[i * 4 + k] = buffer.getDouble();
+            }
+        }
+        int[] memberTable = readInts(channel, buffer, memberCount);
+        int[] topTable = readInts(channel, buffer, topLevelCount);
+
+        Shape[] shapes = new Shape[recordCount];
+        for (int i = 0; i < recordCount; i++) {
+            if (nameOffset[i] < 0 || nameLength[i] < 0 || nameOffset[i] + nameLength[i] > nameBytes) {
+                throw new IOException("Corrupt name in record " + i);
+            }
+            String name = new String(names, nameOffset[i], nameLength[i], StandardCharsets.UTF_8);
+            double a = values[i * 4], b = values[i * 4 + 1], c = values[i * 4 + 2], d = values[i * 4 + 3];
+            try {
+                switch (tags[i]) {
+                    case RECTANGLE:
+                        shapes[i] = new Rectangle(name, z[i], a, b, c, d);
+                        break;
+                    case LINE:
+                        shapes[i] = new Line(name, z[i], a, b, c, d);
+                        break;
+                    case CIRCLE:
+                        shapes[i] = new Circle(name, z[i], a, b, c);
+                        break;
+                    case SQUARE:
+                        shapes[i] = new Square(name, z[i], a, b, c);
+                        break;
+                    case GROUP:
+                        shapes[i] = readGroup(name, z[i], a, b, shapes, memberTable,
+                                memberStart[i], members[i], i);
+                        break;
+                    default:
+                        throw new IOException("Unknown shape tag " + tags[i] + " in record " + i);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid record " + i + ": " + e.getMessage(), e);
+            }
+        }
+
+        List<Shape> topLevel = new ArrayList<>(topLevelCount);
+        for (int id : topTable) {
+            topLevel.add(record(shapes, id, recordCount));
+        }
+        return new DrawingSnapshot(topLevel, nextZ);
+    }
+
+    private static Group readGroup(String name, int z, double offsetX, double offsetY, Shape[] shapes,
+                                   int[] memberTable, int start, int count, int self) throws IOException {
+        if (start < 0 || count < 0 || start + count > memberTable.length) {
+            throw new IOException("Corrupt member range in record " + self);
+        }
+        List<Shape> members = new ArrayList<>(count);
+        for (int k = start; k < start + count; k++) {
+            // Members are written before their group
+            members.add(record(shapes, memberTable[k], self));
+        }
+        Group group = new Group(name, z, members);
+        group.translate(offsetX, offsetY);
+        return group;
+    }
+
+    private static Shape record(Shape[] shapes, int id, int limit) throws IOException {
+        if (id < 0 || id >= limit || shapes[id] == null) {
+            throw new IOException("Corrupt record reference " + id);
+        }
+        return shapes[id];
+    }
+
+    private static int[] readInts(ReadableByteChannel channel, ByteBuffer buffer, int count) throws IOException {
+        int[] values = new int[count];
+        for (int done = 0; done < count; ) {
+            fill(channel, buffer, Integer.BYTES);
+            int n = Math.min(buffer.remaining() / Integer.BYTES, count - done);
+            buffer.asIntBuffer().get(values, done, n);
+            buffer.position(buffer.position() + n * Integer.BYTES);
+            done += n;
+        }
+        return values;
+    }
+
+    /**
+     * Makes at least {@code needed} bytes available in buffer, reading the next
+     * chunk of the channel behind any bytes still unread.
+     */
+    private static void fill(ReadableByteChannel channel, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() >= needed) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < needed) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Snapshot ends unexpectedly");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,521 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.persistence;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.Clevis;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.RTree;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialIndex;
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.Shape;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the mutating calls on a {@link Clevis}, with periodic checkpoints,
+ * kept in one directory so that a drawing survives a crash without replaying
+ * the whole command log.
+ * <p>
+ * Every successful mutation is appended as one binary record to the current
+ * journal segment before the call returns:
+ * payload length, CRC-32 of the payload (ints), then the payload: sequence
+ * number (long), operation (byte) and its arguments, names as UTF-8 with an
+ * int length. Undoing a delete or an ungroup has records of its own, as it
+ * puts back shapes with their original z-indexes; a deleted top-level shape
+ * travels as an embedded {@link DrawingSnapshot}. Every {@code checkpointInterval} records the drawing is encoded
+ * as a {@link DrawingSnapshot}, a new segment is started, and a background
+ * thread writes the snapshot as {@code checkpoint-<seq>.clv} and then deletes
+ * the checkpoints and segments it makes obsolete.
+ * <p>
+ * {@link #recover()} loads the newest checkpoint and replays only the records
+ * after it. A record cut short by a crash ends its segment.
+ */
+public final class Journal implements Closeable {
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+
+    static final byte RECTANGLE = 1, LINE = 2, CIRCLE = 3, SQUARE = 4, GROUP = 5,
+            UNGROUP = 6, FLATTEN = 7, DELETE = 8, MOVE = 9, REINSERT = 10, REINSERT_MEMBER = 11,
+            REGROUP = 12;
+
+    private static final String SEGMENT = "journal-", CHECKPOINT = "checkpoint-";
+    private static final String SEGMENT_SUFFIX = ".log", CHECKPOINT_SUFFIX = ".clv";
+    private static final int RECORD_HEADER = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final int checkpointInterval;
+    private final boolean forceEachRecord;
+    private final ExecutorService checkpointer;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer record = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel segment;
+    private Clevis clevis;
+    private long lastSeq;
+    private int sinceCheckpoint;
+    private volatile IOException failure;
+
+    private Journal(Path directory, int checkpointInterval, boolean forceEachRecord) {
+        this.directory = directory;
+        this.checkpointInterval = checkpointInterval;
+        this.forceEachRecord = forceEachRecord;
+        this.checkpointer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "clevis-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the journal in a directory, creating the directory if needed.
+     * Call {@link #recover()} next to obtain the drawing.
+     * @param checkpointInterval number of records between checkpoints
+     * @param forceEachRecord whether every record is forced to the storage device
+     *        before the mutating call returns, rather than left to the operating system
+     */
+    public static Journal open(Path directory, int checkpointInterval, boolean forceEachRecord) throws IOException {
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be at least 1");
+        }
+        Files.createDirectories(directory);
+        return new Journal(directory, checkpointInterval, forceEachRecord);
+    }
+
+    /**
+     * Rebuilds the drawing from the newest checkpoint and the records after it,
+     * then attaches this journal to it so that further mutations are recorded.
+     * @throws IOException if a file cannot be read or a record cannot be replayed
+     */
+    public Clevis recover() throws IOException {
+        return recover(new RTree());
+    }
+
+    /**
+     * Same as {@link #recover()}, but the recovered drawing is indexed with the
+     * given empty spatial index.
+     */
+    public Clevis recover(SpatialIndex index) throws IOException {
+        if (clevis != null) {
+            throw new IllegalStateException("Journal already recovered");
+        }
+        Clevis recovered = new Clevis(index);
+        List<Path> checkpoints = list(CHECKPOINT, CHECKPOINT_SUFFIX);
+        if (!checkpoints.isEmpty()) {
+            Path latest = checkpoints.get(checkpoints.size() - 1);
+            DrawingSnapshot snapshot = DrawingSnapshot.read(latest);
+            recovered.restore(snapshot.topLevel(), snapshot.nextZ());
+            lastSeq = sequenceOf(latest, CHECKPOINT, CHECKPOINT_SUFFIX);
+        }
+        for (Path file : list(SEGMENT, SEGMENT_SUFFIX)) {
+            replay(file, recovered);
+        }
+        clevis = recovered;
+        startSegment();
+        recovered.attachJournal(this);
+        return recovered;
+    }
+
+    /**
+     * @return sequence number of the last recorded mutation
+     */
+    public long lastSequence() {
+        return lastSeq;
+    }
+
+    // =============================
+    // Recording, called by Clevis after a successful mutation
+    // =============================
+
+    public void rectangle(String name, double x, double y, double w, double h) {
+        begin(RECTANGLE).putString(name).putDoubles(x, y, w, h).commit();
+    }
+
+    public void line(String name, double x1, double y1, double x2, double y2) {
+        begin(LINE).putString(name).putDoubles(x1, y1, x2, y2).commit();
+    }
+
+    public void circle(String name, double x, double y, double r) {
+        begin(CIRCLE).putString(name).putDoubles(x, y, r).commit();
+    }
+
+    public void square(String name, double x, double y, double sideLength) {
+        begin(SQUARE).putString(name).putDoubles(x, y, sideLength).commit();
+    }
+
+    public void group(String groupName, List<String> shapeNames) {
+        begin(GROUP).putString(groupName);
+        ensure(Integer.BYTES);
+        record.putInt(shapeNames.size());
+        for (String name : shapeNames) {
+            putString(name);
+        }
+        commit();
+    }
+
+    public void ungroup(String groupName) {
+        begin(UNGROUP).putString(groupName).commit();
+    }
+
+    public void flatten(String groupName) {
+        begin(FLATTEN).putString(groupName).commit();
+    }
+
+    public void delete(String name) {
+        begin(DELETE).putString(name).commit();
+    }
+
+    public void move(String name, double dx, double dy) {
+        begin(MOVE).putString(name).putDoubles(dx, dy).commit();
+    }
+
+    public void reinsert(Shape shape, int position) {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        try {
+            DrawingSnapshot.write(Channels.newChannel(image), List.of(shape), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        begin(REINSERT);
+        ensure(2 * Integer.BYTES + image.size());
+        record.putInt(position).putInt(image.size()).put(image.toByteArray());
+        commit();
+    }
+
+    public void reinsertMember(String groupName, String name) {
+        begin(REINSERT_MEMBER).putString(groupName).putString(name).commit();
+    }
+
+    public void regroup(String groupName, int z, List<String> shapeNames, int position) {
+        begin(REGROUP).putString(groupName);
+        ensure(3 * Integer.BYTES);
+        record.putInt(z).putInt(position).putInt(shapeNames.size());
+        for (String name : shapeNames) {
+            putString(name);
+        }
+        commit();
+    }
+
+    /**
+     * Records that the whole drawing was replaced, by writing a checkpoint
+     * before returning; the replacement cannot be expressed as a record.
+     */
+    public void restored() {
+        lastSeq++;
+        try {
+            ByteArrayOutputStream image = encode();
+            startSegment();
+            writeCheckpoint(lastSeq, image);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Journal begin(byte operation) {
+        checkFailure();
+        if (segment == null) {
+            throw new IllegalStateException("Journal is not open for recording");
+        }
+        record.clear();
+        record.position(RECORD_HEADER);
+        record.putLong(lastSeq + 1).put(operation);
+        return this;
+    }
+
+    private Journal putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(Integer.BYTES + bytes.length);
+        record.putInt(bytes.length).put(bytes);
+        return this;
+    }
+
+    private Journal putDoubles(double... values) {
+        ensure(values.length * Double.BYTES);
+        for (double value : values) {
+            record.putDouble(value);
+        }
+        return this;
+    }
+
+    private void ensure(int bytes) {
+        if (record.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            record.flip();
+            larger.put(record);
+            record = larger;
+        }
+    }
+
+    private void commit() {
+        int length = record.position() - RECORD_HEADER;
+        crc.reset();
+        crc.update(record.array(), RECORD_HEADER, length);
+        record.putInt(0, length).putInt(Integer.BYTES, (int) crc.getValue());
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                segment.write(record);
+            }
+            if (forceEachRecord) {
+                segment.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastSeq++;
+        if (++sinceCheckpoint >= checkpointInterval) {
+            checkpoint();
+        }
+    }
+
+    // =============================
+    // Checkpoints
+    // =============================
+
+    /**
+     * Starts a checkpoint of the current drawing. The drawing is encoded on the
+     * calling thread; the file is written in the background.
+     */
+    public void checkpoint() {
+        checkFailure();
+        long seq = lastSeq;
+        try {
+            ByteArrayOutputStream image = encode();
+            startSegment();
+            checkpointer.execute(() -> {
+                try {
+                    writeCheckpoint(seq, image);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ByteArrayOutputStream encode() throws IOException {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        DrawingSnapshot.write(Channels.newChannel(image), clevis.drawOrder, clevis.nextZ());
+        return image;
+    }
+
+    /**
+     * Closes the current segment and starts the one whose first record follows lastSeq.
+     */
+    private void startSegment() throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+        // A segment of that name can only hold a record cut short by a crash
+        segment = FileChannel.open(directory.resolve(name(SEGMENT, lastSeq + 1, SEGMENT_SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        sinceCheckpoint = 0;
+    }
+
+    private synchronized void writeCheckpoint(long seq, ByteArrayOutputStream image) throws IOException {
+        Path target = directory.resolve(name(CHECKPOINT, seq, CHECKPOINT_SUFFIX));
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            image.writeTo(Channels.newOutputStream(channel));
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // Everything up to seq is now in the checkpoint
+        for (Path file : list(CHECKPOINT, CHECKPOINT_SUFFIX)) {
+            if (sequenceOf(file, CHECKPOINT, CHECKPOINT_SUFFIX) < seq) {
+                Files.deleteIfExists(file);
+            }
+        }
+        for (Path file : list(SEGMENT, SEGMENT_SUFFIX)) {
+            if (sequenceOf(file, SEGMENT, SEGMENT_SUFFIX) <= seq) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Waits for pending checkpoints, then closes the current segment.
+     * @throws IOException if a checkpoint failed
+     */
+    @Override
+    public void close() throws IOException {
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+            segment = null;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException("Checkpoint failed", failure);
+        }
+    }
+
+    // =============================
+    // Recovery
+    // =============================
+
+    private void replay(Path file, Clevis target) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // Read the whole segment
+            }
+            data.flip();
+        }
+        while (data.remaining() >= RECORD_HEADER) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length < Long.BYTES + 1 || length > data.remaining()) {
+                return;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                return;
+            }
+            ByteBuffer payload = data.slice(data.position(), length).order(ByteOrder.LITTLE_ENDIAN);
+            data.position(data.position() + length);
+            long seq = payload.getLong();
+            if (seq <= lastSeq) {
+                continue; // already in the checkpoint
+            }
+            if (seq != lastSeq + 1) {
+                throw new IOException("Journal is missing records " + (lastSeq + 1) + " to " + (seq - 1));
+            }
+            try {
+                apply(payload.get(), payload, target);
+            } catch (RuntimeException e) {
+                throw new IOException("Cannot replay journal record " + seq + ": " + e.getMessage(), e);
+            }
+            lastSeq = seq;
+        }
+    }
+
+    private static void apply(byte operation, ByteBuffer payload, Clevis target) {
+        switch (operation) {
+            case RECTANGLE:
+                target.rectangle(getString(payload), payload.getDouble(), payload.getDouble(),
+                        payload.getDouble(), payload.getDouble());
+                break;
+            case LINE:
+                target.line(getString(payload), payload.getDouble(), payload.getDouble(),
+                        payload.getDouble(), payload.getDouble());
+                break;
+            case CIRCLE:
+                target.circle(getString(payload), payload.getDouble(), payload.getDouble(), payload.getDouble());
+                break;
+            case SQUARE:
+                target.square(getString(payload), payload.getDouble(), payload.getDouble(), payload.getDouble());
+                break;
+            case GROUP: {
+                String groupName = getString(payload);
+                target.group(groupName, getStrings(payload, payload.getInt()));
+                break;
+            }
+            case UNGROUP:
+                target.ungroup(getString(payload));
+                break;
+            case FLATTEN:
+                target.flatten(getString(payload));
+                break;
+            case DELETE:
+                target.deleteShape(getString(payload));
+                break;
+            case MOVE:
+                target.move(getString(payload), payload.getDouble(), payload.getDouble());
+                break;
+            case REINSERT: {
+                int position = payload.getInt();
+                byte[] image = new byte[payload.getInt()];
+                payload.get(image);
+                try {
+                    DrawingSnapshot snapshot = DrawingSnapshot.read(
+                            Channels.newChannel(new ByteArrayInputStream(image)));
+                    target.reinsert(snapshot.topLevel().get(0), position);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                break;
+            }
+            case REINSERT_MEMBER:
+                target.reinsertMember(getString(payload), getString(payload));
+                break;
+            case REGROUP: {
+                String groupName = getString(payload);
+                int z = payload.getInt();
+                int position = payload.getInt();
+                target.regroup(groupName, z, getStrings(payload, payload.getInt()), position);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown journal operation " + operation);
+        }
+    }
+
+    private static List<String> getStrings(ByteBuffer payload, int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(getString(payload));
+        }
+        return names;
+    }
+
+    private static String getString(ByteBuffer payload) {
+        int length = payload.getInt();
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // =============================
+    // File names
+    // =============================
+
+    private static String name(String prefix, long seq, String suffix) {
+        return String.format(Locale.ROOT, "%s%020d%s", prefix, seq, suffix);
+    }
+
+    private static long sequenceOf(Path file, String prefix, String suffix) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    /**
+     * @return files named prefix + sequence number + suffix, in sequence order
+     */
+    private List<Path> list(String prefix, String suffix) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        // Fixed-width numbers sort by name
+        files.sort(Comparator.comparing(file -> file.getFileName().toString()));
+        return files;
+    }
+}
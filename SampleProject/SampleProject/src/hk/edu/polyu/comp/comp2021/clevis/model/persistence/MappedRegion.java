@@ -0,0 +1,55 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.persistence;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only, little-endian memory mapping of a file region that may be larger
+ * than one {@link MappedByteBuffer} can cover. The region is mapped in chunks
+ * whose size is a multiple of the element size, so that no element crosses a
+ * chunk boundary; only {@link #get(long, byte[], int, int)} may span two chunks.
+ */
+final class MappedRegion {
+    private static final long MAX_CHUNK = 1L << 30;
+
+    private final MappedByteBuffer[] chunks;
+    private final long chunkSize;
+
+    MappedRegion(FileChannel channel, long position, long size, int elementBytes) throws IOException {
+        this.chunkSize = MAX_CHUNK - MAX_CHUNK % elementBytes;
+        int count = (int) ((size + chunkSize - 1) / chunkSize);
+        this.chunks = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * chunkSize;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + start,
+                    Math.min(chunkSize, size - start));
+            chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    byte getByte(long offset) {
+        return chunks[(int) (offset / chunkSize)].get((int) (offset % chunkSize));
+    }
+
+    int getInt(long offset) {
+        return chunks[(int) (offset / chunkSize)].getInt((int) (offset % chunkSize));
+    }
+
+    double getDouble(long offset) {
+        return chunks[(int) (offset / chunkSize)].getDouble((int) (offset % chunkSize));
+    }
+
+    void get(long offset, byte[] dst, int from, int length) {
+        while (length > 0) {
+            MappedByteBuffer chunk = chunks[(int) (offset / chunkSize)];
+            int at = (int) (offset % chunkSize);
+            int n = Math.min(length, chunk.capacity() - at);
+            chunk.get(at, dst, from, n);
+            offset += n;
+            from += n;
+            length -= n;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.persistence;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeStore;
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeView;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a version 2 {@link DrawingSnapshot} file that is memory-mapped
+ * rather than loaded. Opening only maps the file; every query reads the records
+ * straight from the mapping, so no shape objects are created and the pages are
+ * shared with other processes mapping the same file.
+ * Ids are record numbers. Coordinates are returned with the pending offsets of
+ * enclosing groups applied. The first lookup by name builds a hash index over
+ * the records.
+ */
+public final class MappedSnapshot implements PrimitiveShapeView, Closeable {
+    private static final int EMPTY = -1;
+
+    private final FileChannel channel;
+    private final int recordCount;
+    private final int topLevelCount;
+    private final int nextZ;
+    private final MappedRegion names;
+    private final MappedRegion records;
+    private final MappedRegion members;
+    private final MappedRegion topLevel;
+    private int[] slots;
+
+    private MappedSnapshot(FileChannel channel) throws IOException {
+        this.channel = channel;
+        if (channel.size() < DrawingSnapshot.HEADER_BYTES) {
+            throw new IOException("Not a Clevis snapshot");
+        }
+        MappedRegion header = new MappedRegion(channel, 0, DrawingSnapshot.HEADER_BYTES, Integer.BYTES);
+        if (header.getInt(0) != DrawingSnapshot.MAGIC) {
+            throw new IOException("Not a Clevis snapshot");
+        }
+        int version = header.getInt(4);
+        if (version != DrawingSnapshot.VERSION) {
+            throw new IOException("Unsupported snapshot version for mapping: " + version);
+        }
+        recordCount = header.getInt(8);
+        int memberCount = header.getInt(12);
+        topLevelCount = header.getInt(16);
+        int nameBytes = header.getInt(20);
+        nextZ = header.getInt(24);
+
+        long position = DrawingSnapshot.HEADER_BYTES;
+        long recordBytes = (long) recordCount * DrawingSnapshot.RECORD_BYTES;
+        long end = position + nameBytes + recordBytes + (long) (memberCount + topLevelCount) * Integer.BYTES;
+        if (recordCount < 0 || memberCount < 0 || topLevelCount < 0 || nameBytes < 0 || end > channel.size()) {
+            throw new IOException("Corrupt snapshot header");
+        }
+        names = new MappedRegion(channel, position, nameBytes, 1);
+        position += nameBytes;
+        records = new MappedRegion(channel, position, recordBytes, DrawingSnapshot.RECORD_BYTES);
+        position += recordBytes;
+        members = new MappedRegion(channel, position, (long) memberCount * Integer.BYTES, Integer.BYTES);
+        position += (long) memberCount * Integer.BYTES;
+        topLevel = new MappedRegion(channel, position, (long) topLevelCount * Integer.BYTES, Integer.BYTES);
+    }
+
+    /**
+     * Maps a snapshot file for reading.
+     * @throws IOException if the file cannot be mapped or is not a version 2 snapshot
+     */
+    public static MappedSnapshot open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new MappedSnapshot(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the file. The mapping itself stays valid until it is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return number of top-level shapes
+     */
+    public int topLevelCount() {
+        return topLevelCount;
+    }
+
+    /**
+     * @return id of the i-th top-level shape in drawing order
+     */
+    public int topLevel(int i) {
+        return topLevel.getInt((long) i * Integer.BYTES);
+    }
+
+    /**
+     * @return the z-index the next created shape would receive
+     */
+    public int nextZ() {
+        return nextZ;
+    }
+
+    // =============================
+    // PrimitiveShapeView
+    // =============================
+
+    @Override
+    public int capacity() {
+        return recordCount;
+    }
+
+    @Override
+    public int size() {
+        return recordCount;
+    }
+
+    @Override
+    public byte type(int id) {
+        // Snapshot tags equal the store's type constants
+        return records.getByte(field(id, DrawingSnapshot.TAG));
+    }
+
+    @Override
+    public int z(int id) {
+        return records.getInt(field(id, DrawingSnapshot.Z));
+    }
+
+    @Override
+    public double x(int id) {
+        return type(id) == PrimitiveShapeStore.GROUP ? 0 : raw(id, DrawingSnapshot.A) + offset(id, DrawingSnapshot.A);
+    }
+
+    @Override
+    public double y(int id) {
+        return type(id) == PrimitiveShapeStore.GROUP ? 0 : raw(id, DrawingSnapshot.B) + offset(id, DrawingSnapshot.B);
+    }
+
+    @Override
+    public double p(int id) {
+        byte type = type(id);
+        if (type == PrimitiveShapeStore.GROUP) {
+            return 0;
+        }
+        // Only a line's second endpoint is a position; other shapes keep sizes here
+        return raw(id, DrawingSnapshot.C) + (type == PrimitiveShapeStore.LINE ? offset(id, DrawingSnapshot.A) : 0);
+    }
+
+    @Override
+    public double q(int id) {
+        byte type = type(id);
+        if (type == PrimitiveShapeStore.GROUP) {
+            return 0;
+        }
+        return raw(id, DrawingSnapshot.D) + (type == PrimitiveShapeStore.LINE ? offset(id, DrawingSnapshot.B) : 0);
+    }
+
+    @Override
+    public int parent(int id) {
+        return records.getInt(field(id, DrawingSnapshot.PARENT));
+    }
+
+    @Override
+    public int firstChild(int id) {
+        if (records.getInt(field(id, DrawingSnapshot.MEMBER_COUNT)) == 0) {
+            return PrimitiveShapeStore.NO_SHAPE;
+        }
+        long start = records.getInt(field(id, DrawingSnapshot.MEMBER_START));
+        return members.getInt(start * Integer.BYTES);
+    }
+
+    @Override
+    public int nextSibling(int id) {
+        return records.getInt(field(id, DrawingSnapshot.NEXT_SIBLING));
+    }
+
+    @Override
+    public String name(int id) {
+        int offset = records.getInt(field(id, DrawingSnapshot.NAME_OFFSET));
+        int length = records.getInt(field(id, DrawingSnapshot.NAME_LENGTH));
+        byte[] bytes = new byte[length];
+        names.get(offset, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int id(String name) {
+        int[] table = slots();
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        int mask = table.length - 1;
+        byte[] scratch = new byte[encoded.length];
+        for (int slot = hash(encoded, encoded.length) & mask; table[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int id = table[slot];
+            if (records.getInt(field(id, DrawingSnapshot.NAME_LENGTH)) == encoded.length) {
+                names.get(records.getInt(field(id, DrawingSnapshot.NAME_OFFSET)), scratch, 0, encoded.length);
+                if (Arrays.equals(scratch, encoded)) {
+                    return id;
+                }
+            }
+        }
+        return PrimitiveShapeStore.NO_SHAPE;
+    }
+
+    private synchronized int[] slots() {
+        if (slots == null) {
+            int capacity = Integer.highestOneBit(Math.max(1, recordCount) * 2 - 1) << 1;
+            int[] table = new int[capacity];
+            Arrays.fill(table, EMPTY);
+            byte[] scratch = new byte[64];
+            for (int id = 0; id < recordCount; id++) {
+                int length = records.getInt(field(id, DrawingSnapshot.NAME_LENGTH));
+                if (scratch.length < length) {
+                    scratch = new byte[length];
+                }
+                names.get(records.getInt(field(id, DrawingSnapshot.NAME_OFFSET)), scratch, 0, length);
+                int slot = hash(scratch, length) & (capacity - 1);
+                while (table[slot] != EMPTY) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                table[slot] = id;
+            }
+            slots = table;
+        }
+        return slots;
+    }
+
+    private static int hash(byte[] data, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + data[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private long field(int id, int offset) {
+        if (id < 0 || id >= recordCount) {
+            throw new IllegalArgumentException("Shape not found: " + id);
+        }
+        return (long) id * DrawingSnapshot.RECORD_BYTES + offset;
+    }
+
+    private double raw(int id, int offset) {
+        return records.getDouble(field(id, offset));
+    }
+
+    /**
+     * @return sum of the pending offsets (field A for x, B for y) of the groups enclosing id
+     */
+    private double offset(int id, int axis) {
+        double sum = 0;
+        for (int owner = parent(id); owner != PrimitiveShapeStore.NO_SHAPE; owner = parent(owner)) {
+            sum += raw(owner, axis);
+        }
+        return sum;
+    }
+}
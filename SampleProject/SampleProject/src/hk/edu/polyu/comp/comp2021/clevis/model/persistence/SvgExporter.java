@@ -0,0 +1,226 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.persistence;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Writes a drawing as an SVG document of black outlines, element by element,
+ * straight to a buffered {@link Writer}; the document is never held in memory.
+ * <pre>
+ * rectangle, square   &lt;rect id x y width height/&gt;
+ * line                &lt;line id x1 y1 x2 y2/&gt;
+ * circle              &lt;circle id cx cy r/&gt;
+ * group               &lt;g id transform="translate(offset x offset y)"&gt; members &lt;/g&gt;
+ * </pre>
+ * Top-level shapes are written by ascending z-index and group members in group
+ * order, so later elements paint over earlier ones as in the viewer. The view
+ * box is the drawing's bounding box grown by the outline width.
+ * Numbers are written by a fixed-point formatter with at most
+ * {@link #DECIMALS} decimals and no trailing zeros, into a reused buffer.
+ */
+public final class SvgExporter {
+    /** Decimals kept in every number. */
+    public static final int DECIMALS = 4;
+    /** Width of every outline, in drawing units. */
+    public static final double STROKE_WIDTH = 2;
+
+    private static final long SCALE = 10_000; // 10^DECIMALS
+    // Largest magnitude whose scaled value still fits a long with room to spare
+    private static final double FIXED_LIMIT = 1e14;
+    private static final int BUFFER_CHARS = 1 << 16;
+
+    private final Writer out;
+    private final char[] digits = new char[32];
+    private final double[] box = new double[4];
+
+    private SvgExporter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the top-level shapes to an SVG file, replacing it if it exists.
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path file, Collection<Shape> topLevel) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file),
+                StandardCharsets.UTF_8), BUFFER_CHARS)) {
+            write(out, topLevel);
+        }
+    }
+
+    /**
+     * Writes the top-level shapes as an SVG document and flushes the writer,
+     * leaving it open. Writers that are not buffered are wrapped in one.
+     * @throws IOException if the writer fails
+     */
+    public static void write(Writer out, Collection<Shape> topLevel) throws IOException {
+        Writer buffered = out instanceof BufferedWriter ? out : new BufferedWriter(out, BUFFER_CHARS);
+        // Only the references are copied, to put them in z order
+        Shape[] byZ = topLevel.toArray(new Shape[0]);
+        Arrays.sort(byZ, Comparator.comparingInt(Shape::z));
+        new SvgExporter(buffered).document(byZ);
+        buffered.flush();
+    }
+
+    private void document(Shape[] byZ) throws IOException {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (Shape shape : byZ) {
+            shape.bounds(box);
+            minX = Math.min(minX, box[0]);
+            minY = Math.min(minY, box[1]);
+            maxX = Math.max(maxX, box[2]);
+            maxY = Math.max(maxY, box[3]);
+        }
+        if (minX > maxX) {
+            minX = minY = maxX = maxY = 0;
+        }
+        double width = maxX - minX + 2 * STROKE_WIDTH, height = maxY - minY + 2 * STROKE_WIDTH;
+
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"");
+        number(minX - STROKE_WIDTH);
+        out.write(' ');
+        number(minY - STROKE_WIDTH);
+        out.write(' ');
+        number(width);
+        out.write(' ');
+        number(height);
+        out.write('"');
+        attribute("width", width);
+        attribute("height", height);
+        out.write(">\n<g fill=\"none\" stroke=\"black\"");
+        attribute("stroke-width", STROKE_WIDTH);
+        out.write(">\n");
+        for (Shape shape : byZ) {
+            element(shape);
+        }
+        out.write("</g>\n</svg>\n");
+    }
+
+    private void element(Shape s) throws IOException {
+        if (s instanceof Rectangle) {
+            Rectangle r = (Rectangle) s;
+            rect(r, r.x(), r.y(), r.w(), r.h());
+        } else if (s instanceof Square) {
+            Square sq = (Square) s;
+            rect(sq, sq.x(), sq.y(), sq.s(), sq.s());
+        } else if (s instanceof Line) {
+            Line l = (Line) s;
+            start("line", l);
+            attribute("x1", l.x1());
+            attribute("y1", l.y1());
+            attribute("x2", l.x2());
+            attribute("y2", l.y2());
+            out.write("/>\n");
+        } else if (s instanceof Circle) {
+            Circle c = (Circle) s;
+            start("circle", c);
+            attribute("cx", c.cx());
+            attribute("cy", c.cy());
+            attribute("r", c.r());
+            out.write("/>\n");
+        } else if (s instanceof Group) {
+            // Members are relative to the group's pending offset, which the transform applies
+            Group group = (Group) s;
+            start("g", group);
+            if (group.offsetX() != 0 || group.offsetY() != 0) {
+                out.write(" transform=\"translate(");
+                number(group.offsetX());
+                out.write(' ');
+                number(group.offsetY());
+                out.write(")\"");
+            }
+            out.write(">\n");
+            for (Shape member : group.members()) {
+                element(member);
+            }
+            out.write("</g>\n");
+        }
+    }
+
+    private void rect(Shape s, double x, double y, double w, double h) throws IOException {
+        start("rect", s);
+        attribute("x", x);
+        attribute("y", y);
+        attribute("width", w);
+        attribute("height", h);
+        out.write("/>\n");
+    }
+
+    private void start(String element, Shape s) throws IOException {
+        out.write('<');
+        out.write(element);
+        out.write(" id=\"");
+        String name = s.name();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            switch (c) {
+                case '&': out.write("&amp;"); break;
+                case '<': out.write("&lt;"); break;
+                case '>': out.write("&gt;"); break;
+                case '"': out.write("&quot;"); break;
+                default: out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    private void attribute(String name, double value) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        number(value);
+        out.write('"');
+    }
+
+    /**
+     * Writes a number rounded to {@link #DECIMALS} decimals, without trailing
+     * zeros or a trailing point; zero is never written with a sign. Magnitudes
+     * of {@link #FIXED_LIMIT} and more, which have no decimals to keep, fall
+     * back to {@link Double#toString}.
+     */
+    private void number(double value) throws IOException {
+        if (!(Math.abs(value) < FIXED_LIMIT)) {
+            if (Math.abs(value) < Long.MAX_VALUE && value == Math.rint(value)) {
+                out.write(Long.toString((long) value));
+            } else {
+                out.write(Double.toString(value));
+            }
+            return;
+        }
+        long scaled = Math.round(Math.abs(value) * SCALE);
+        int at = digits.length;
+        long fraction = scaled % SCALE;
+        if (fraction != 0) {
+            int places = DECIMALS;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                places--;
+            }
+            while (places-- > 0) {
+                digits[--at] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            digits[--at] = '.';
+        }
+        long whole = scaled / SCALE;
+        do {
+            digits[--at] = (char) ('0' + whole % 10);
+            whole /= 10;
+        } while (whole != 0);
+        if (value < 0 && scaled != 0) {
+            digits[--at] = '-';
+        }
+        out.write(digits, at, digits.length - at);
+    }
+}
@@ -12,6 +12,8 @@ public final class Circle implements Shape {
     private final String name;
     public int z;
     public double centerX, centerY, radius;
+    // Group directly containing this shape, kept up to date by Group
+    Group parent;
     
     /**
      * Creates a circle.
@@ -38,6 +40,7 @@ public final class Circle implements Shape {
     
     @Override public String name() { return name; }
     @Override public int z() { return z; }
+    @Override public Group parent() { return parent; }
     
     @Override 
     public BoundingBox bbox() {
@@ -47,21 +50,35 @@ public final class Circle implements Shape {
         double height = 2 * radius;
         return new BoundingBox(x, y, width, height);
     }
+
+    @Override
+    public void bounds(double[] sink) {
+        sink[0] = centerX - radius;
+        sink[1] = centerY - radius;
+        sink[2] = centerX + radius;
+        sink[3] = centerY + radius;
+    }
+    
+    @Override
+    public void translate(double dx, double dy) {
+        centerX += dx;
+        centerY += dy;
+    }
     
     @Override 
-    public String listInfo() {
-        return String.format(Locale.US, "%s circle %.2f %.2f %.2f", name, centerX, centerY, radius);
+    public String listInfo(double dx, double dy) {
+        return String.format(Locale.US, "%s circle %.2f %.2f %.2f", name, centerX + dx, centerY + dy, radius);
     }
     public double cx() { return centerX; }
     public double cy() { return centerY; }
     public double r()  { return radius; }
     @Override
-    public boolean intersects(Shape other) {
+    public boolean intersects(Shape other, double dx, double dy) {
         if (other instanceof Circle) {
             Circle c = (Circle) other;
-            double dx = this.centerX - c.centerX;
-            double dy = this.centerY - c.centerY;
-            double distance = Math.hypot(dx, dy);
+            double gapX = this.centerX - (c.centerX + dx);
+            double gapY = this.centerY - (c.centerY + dy);
+            double distance = Math.hypot(gapX, gapY);
 
             double sumRadii = this.radius + c.radius;
 
@@ -75,7 +92,7 @@ public final class Circle implements Shape {
             Rectangle r = (Rectangle) other;
             return ShapeQueryHandler.circleIntersectsRectangle(
                     this.centerX, this.centerY, this.radius,
-                    r.x(), r.y(), r.w(), r.h()
+                    r.x() + dx, r.y() + dy, r.w(), r.h()
             );
         }
 
@@ -83,20 +100,20 @@ public final class Circle implements Shape {
             Square s = (Square) other;
             return ShapeQueryHandler.circleIntersectsRectangle(
                     this.centerX, this.centerY, this.radius,
-                    s.x(), s.y(), s.length, s.length);
+                    s.x() + dx, s.y() + dy, s.length, s.length);
 
         }
 
         if (other instanceof Line) {
             Line line = (Line) other;
             return ShapeQueryHandler.lineIntersectsCircle(
-                    line.x1(), line.y1(), line.x2(), line.y2(),
+                    line.x1() + dx, line.y1() + dy, line.x2() + dx, line.y2() + dy,
                     this.centerX, this.centerY, this.radius
             );
         }
 
         if (other instanceof Group) {
-            return other.intersects(this);
+            return other.intersects(this, -dx, -dy);
         }
 
         return false;
@@ -1,16 +1,34 @@
 package hk.edu.polyu.comp.comp2021.clevis.model.shapes;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Represents a group of shapes.
  * Implements REQ6 (group n n1 n2 ...) and supports REQ7 (ungroup n).
+ * A group of at most {@link #EAGER_MEMBERS} members moves them at once. A
+ * larger group only accumulates an offset, and its members' coordinates are
+ * relative to the group until the offset is folded into them by
+ * {@link #flatten()}. Bounding boxes and {@link Shape#listInfo()} always
+ * include the offsets of the enclosing groups.
  */
 public final class Group implements Shape {
+    /** Most members a group moves one by one instead of accumulating an offset. */
+    public static final int EAGER_MEMBERS = 64;
+
     private final String name;
     private final int z;
     private final List<Shape> shapes;
+
+    // Translation applied to every member but not yet folded into their coordinates
+    private double offsetX, offsetY;
+    // Group directly containing this one, kept up to date by the enclosing group
+    Group parent;
+
+    // Cached bounding box, offset included; recomputed when invalidated
+    private final double[] cachedBounds = new double[4];
+    private boolean boundsValid;
     
     /**
      * Creates a group of shapes.
@@ -29,10 +47,12 @@ public final class Group implements Shape {
         this.name = name;
         this.z = z;
         this.shapes = new ArrayList<>(shapes); 
+        attachMembers();
     }
     
     @Override public String name() { return name; }
     @Override public int z() { return z; }
+    @Override public Group parent() { return parent; }
     
     /**
      * Calculates the minimum bounding box that contains all shapes in the group.
@@ -40,29 +60,170 @@ public final class Group implements Shape {
      */
     @Override 
     public BoundingBox bbox() {
+        double[] box = new double[4];
+        bounds(box);
+        return new BoundingBox(box[0], box[1], box[2] - box[0], box[3] - box[1]);
+    }
+
+    /**
+     * Writes the union of the members' bounding boxes into sink.
+     * The union is cached until {@link #invalidateBounds()} is called, so repeated
+     * calls on an unchanged group are O(1).
+     */
+    @Override
+    public void bounds(double[] sink) {
+        if (!boundsValid) {
+            computeBounds(sink);
+            System.arraycopy(sink, 0, cachedBounds, 0, 4);
+            boundsValid = true;
+        }
+        System.arraycopy(cachedBounds, 0, sink, 0, 4);
+    }
+
+    /**
+     * Marks the cached bounding box as stale. Callers that move a member or change
+     * the membership must invalidate this group and every group enclosing it.
+     */
+    public void invalidateBounds() {
+        boundsValid = false;
+    }
+
+    /**
+     * Unions the members' bounding boxes, using sink as scratch space for each member.
+     */
+    private void computeBounds(double[] sink) {
         if (shapes.isEmpty()) {
             throw new IllegalStateException("Group is empty!");
         }
-        
-        BoundingBox first = shapes.get(0).bbox();
-        double minX = first.x;
-        double minY = first.y;
-        double maxX = first.x + first.w;
-        double maxY = first.y + first.h;
-        
-        for (int i = 1; i < shapes.size(); i++) {
-            BoundingBox box = shapes.get(i).bbox();
-            minX = Math.min(minX, box.x);
-            minY = Math.min(minY, box.y);
-            maxX = Math.max(maxX, box.x + box.w);
-            maxY = Math.max(maxY, box.y + box.h);
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < shapes.size(); i++) {
+            shapes.get(i).bounds(sink);
+            minX = Math.min(minX, sink[0]);
+            minY = Math.min(minY, sink[1]);
+            maxX = Math.max(maxX, sink[2]);
+            maxY = Math.max(maxY, sink[3]);
+        }
+
+        sink[0] = minX + offsetX;
+        sink[1] = minY + offsetY;
+        sink[2] = maxX + offsetX;
+        sink[3] = maxY + offsetY;
+    }
+    
+    /**
+     * Moves the group. Up to {@link #EAGER_MEMBERS} members are moved in place;
+     * larger groups move in O(1) by adding to their pending offset. A valid
+     * cached bounding box is shifted along with it instead of being recomputed.
+     */
+    @Override
+    public void translate(double dx, double dy) {
+        if (shapes.size() <= EAGER_MEMBERS) {
+            for (Shape member : shapes) {
+                member.translate(dx, dy);
+            }
+        } else {
+            offsetX += dx;
+            offsetY += dy;
+        }
+        cachedBounds[0] += dx;
+        cachedBounds[1] += dy;
+        cachedBounds[2] += dx;
+        cachedBounds[3] += dy;
+    }
+
+    /**
+     * Folds the pending offset into the members, recursively for nested groups,
+     * so that every member's own coordinates are drawing coordinates again.
+     * The group does not move.
+     */
+    public void flatten() {
+        for (Shape member : shapes) {
+            if (offsetX != 0 || offsetY != 0) {
+                member.translate(offsetX, offsetY);
+            }
+            if (member instanceof Group nested) {
+                nested.flatten();
+            }
+        }
+        offsetX = 0;
+        offsetY = 0;
+    }
+
+    /**
+     * Makes this group the parent of each of its members. Called on creation,
+     * and to put a dissolved group back together.
+     */
+    public void attachMembers() {
+        for (Shape member : shapes) {
+            setParent(member, this);
+        }
+    }
+
+    /**
+     * Leaves the members that still belong to this group without a parent,
+     * when the group is dissolved.
+     */
+    public void detachMembers() {
+        for (Shape member : shapes) {
+            if (member.parent() == this) {
+                setParent(member, null);
+            }
         }
-        
-        return new BoundingBox(minX, minY, maxX - minX, maxY - minY);
     }
+
+    private static void setParent(Shape shape, Group parent) {
+        if (shape instanceof Rectangle r) {
+            r.parent = parent;
+        } else if (shape instanceof Line l) {
+            l.parent = parent;
+        } else if (shape instanceof Circle c) {
+            c.parent = parent;
+        } else if (shape instanceof Square s) {
+            s.parent = parent;
+        } else if (shape instanceof Group g) {
+            g.parent = parent;
+        }
+    }
+
+    /**
+     * @return sum of the horizontal offsets of the groups enclosing the shape
+     */
+    static double enclosingOffsetX(Shape shape) {
+        double offset = 0;
+        for (Group group = shape.parent(); group != null; group = group.parent) {
+            offset += group.offsetX;
+        }
+        return offset;
+    }
+
+    /**
+     * @return sum of the vertical offsets of the groups enclosing the shape
+     */
+    static double enclosingOffsetY(Shape shape) {
+        double offset = 0;
+        for (Group group = shape.parent(); group != null; group = group.parent) {
+            offset += group.offsetY;
+        }
+        return offset;
+    }
+
+    /**
+     * @return pending horizontal offset of the members
+     */
+    public double offsetX() { return offsetX; }
+
+    /**
+     * @return pending vertical offset of the members
+     */
+    public double offsetY() { return offsetY; }
     
     @Override 
-    public String listInfo() {
+    public String listInfo(double dx, double dy) {
         StringBuilder sb = new StringBuilder();
         sb.append(name).append(" group");
         for (Shape s : shapes) {
@@ -77,25 +238,23 @@ public final class Group implements Shape {
     public List<Shape> getShapes() {
         return new ArrayList<>(shapes);
     }
-    @Override
-    public boolean intersects(Shape other) {
-        if (other instanceof Group) {
-            Group otherGroup = (Group) other;
-
-            // Check if any shape in this group intersects with any shape in the other group
-            for (Shape thisShape : this.shapes) {
-                for (Shape otherShape : otherGroup.shapes) {
-                    if (thisShape.intersects(otherShape)) {
-                        return true;
-                    }
-                }
-            }
-            return false;
-        }
 
-        // For non-group shapes, check if any member of this group intersects with it
+    /**
+     * @return a read-only view of the shapes in this group, for iteration without copying
+     */
+    public List<Shape> members() {
+        return Collections.unmodifiableList(shapes);
+    }
+
+    /**
+     * Checks if any member intersects the other shape. The other shape is moved into
+     * the members' coordinates by removing this group's offset; when it is a group
+     * itself, its members are compared in turn.
+     */
+    @Override
+    public boolean intersects(Shape other, double dx, double dy) {
         for (Shape shape : this.shapes) {
-            if (shape.intersects(other)) {
+            if (shape.intersects(other, dx - offsetX, dy - offsetY)) {
                 return true;
             }
         }
@@ -12,6 +12,8 @@ public final class Line implements Shape {
     private final String name;
     public int z;
     public double x1, y1, x2, y2;
+    // Group directly containing this shape, kept up to date by Group
+    Group parent;
     
     /**
      * Creates a line segment.
@@ -40,6 +42,7 @@ public final class Line implements Shape {
     
     @Override public String name() { return name; }
     @Override public int z() { return z; }
+    @Override public Group parent() { return parent; }
     
     @Override 
     public BoundingBox bbox() {
@@ -47,10 +50,26 @@ public final class Line implements Shape {
         double maxX = Math.max(x1, x2), maxY = Math.max(y1, y2);
         return new BoundingBox(minX, minY, maxX - minX, maxY - minY);
     }
+
+    @Override
+    public void bounds(double[] sink) {
+        sink[0] = Math.min(x1, x2);
+        sink[1] = Math.min(y1, y2);
+        sink[2] = Math.max(x1, x2);
+        sink[3] = Math.max(y1, y2);
+    }
+    
+    @Override
+    public void translate(double dx, double dy) {
+        x1 += dx;
+        y1 += dy;
+        x2 += dx;
+        y2 += dy;
+    }
     
     @Override 
-    public String listInfo() {
-        return String.format(Locale.US, "%s line %.2f %.2f %.2f %.2f", name, x1, y1, x2, y2);
+    public String listInfo(double dx, double dy) {
+        return String.format(Locale.US, "%s line %.2f %.2f %.2f %.2f", name, x1 + dx, y1 + dy, x2 + dx, y2 + dy);
     }
     
     public double x1() { return x1; }
@@ -58,12 +77,12 @@ public final class Line implements Shape {
     public double x2() { return x2; }
     public double y2() { return y2; }
     @Override
-    public boolean intersects(Shape other) {
+    public boolean intersects(Shape other, double dx, double dy) {
         if (other instanceof Line) {
             Line line = (Line) other;
             return ShapeQueryHandler.lineSegmentsIntersect(
                     this.x1, this.y1, this.x2, this.y2,
-                    line.x1, line.y1, line.x2, line.y2
+                    line.x1 + dx, line.y1 + dy, line.x2 + dx, line.y2 + dy
             );
         }
 
@@ -71,7 +90,7 @@ public final class Line implements Shape {
             Circle c = (Circle) other;
             return ShapeQueryHandler.lineIntersectsCircle(
                     this.x1, this.y1, this.x2, this.y2,
-                    c.centerX, c.centerY, c.radius
+                    c.centerX + dx, c.centerY + dy, c.radius
             );
         }
 
@@ -79,7 +98,7 @@ public final class Line implements Shape {
             Rectangle r = (Rectangle) other;
             return ShapeQueryHandler.lineIntersectsRectangle(
                     this.x1, this.y1, this.x2, this.y2,
-                    r.x(), r.y(), r.w(), r.h()
+                    r.x() + dx, r.y() + dy, r.w(), r.h()
             );
         }
 
@@ -87,12 +106,12 @@ public final class Line implements Shape {
             Square s = (Square) other;
             return ShapeQueryHandler.lineIntersectsRectangle(
                     this.x1, this.y1, this.x2, this.y2,
-                    s.x(), s.y(), s.length, s.length);
+                    s.x() + dx, s.y() + dy, s.length, s.length);
 
         }
 
         if (other instanceof Group) {
-            return other.intersects(this);
+            return other.intersects(this, -dx, -dy);
         }
 
         return false;
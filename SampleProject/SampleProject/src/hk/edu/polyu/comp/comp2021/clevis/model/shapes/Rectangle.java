@@ -11,7 +11,10 @@ import java.util.Locale;
 public final class Rectangle implements Shape {
     private final String name;
     private final int z;
-    public final double x, y, w, h;
+    public double x, y;
+    public final double w, h;
+    // Group directly containing this shape, kept up to date by Group
+    Group parent;
 
     /**
      * Creates a rectangle.
@@ -40,11 +43,26 @@ public final class Rectangle implements Shape {
 
     @Override public String name() { return name; }
     @Override public int z() { return z; }
+    @Override public Group parent() { return parent; }
     @Override public BoundingBox bbox() { return new BoundingBox(x, y, w, h); }
 
     @Override
-    public String listInfo() {
-        return String.format(Locale.US, "%s rectangle %.2f %.2f %.2f %.2f", name, x, y, w, h);
+    public void bounds(double[] sink) {
+        sink[0] = x;
+        sink[1] = y;
+        sink[2] = x + w;
+        sink[3] = y + h;
+    }
+
+    @Override
+    public void translate(double dx, double dy) {
+        x += dx;
+        y += dy;
+    }
+
+    @Override
+    public String listInfo(double dx, double dy) {
+        return String.format(Locale.US, "%s rectangle %.2f %.2f %.2f %.2f", name, x + dx, y + dy, w, h);
     }
 
     public double x() { return x; }
@@ -52,20 +70,25 @@ public final class Rectangle implements Shape {
     public double w() { return w; }
     public double h() { return h; }
     @Override
-    public boolean intersects(Shape other) {
-        if (other instanceof Rectangle || other instanceof Square) {
+    public boolean intersects(Shape other, double dx, double dy) {
+        if (other instanceof Rectangle) {
             Rectangle r = (Rectangle) other;
+            double rx = r.x + dx, ry = r.y + dy;
 
-            boolean xOverlap = Math.max(this.x, r.x) <= Math.min(this.x + this.w, r.x + r.w);
-            boolean yOverlap = Math.max(this.y, r.y) <= Math.min(this.y + this.h, r.y + r.h);
+            boolean xOverlap = Math.max(this.x, rx) <= Math.min(this.x + this.w, rx + r.w);
+            boolean yOverlap = Math.max(this.y, ry) <= Math.min(this.y + this.h, ry + r.h);
 
             return xOverlap && yOverlap;
         }
 
+        if (other instanceof Square) {
+            return other.intersects(this, -dx, -dy);
+        }
+
         if (other instanceof Circle) {
             Circle c = (Circle) other;
             return ShapeQueryHandler.circleIntersectsRectangle(
-                    c.centerX, c.centerY, c.radius,
+                    c.centerX + dx, c.centerY + dy, c.radius,
                     this.x, this.y, this.w, this.h
             );
         }
@@ -73,13 +96,13 @@ public final class Rectangle implements Shape {
         if (other instanceof Line) {
             Line line = (Line) other;
             return ShapeQueryHandler.lineIntersectsRectangle(
-                    line.x1(), line.y1(), line.x2(), line.y2(),
+                    line.x1() + dx, line.y1() + dy, line.x2() + dx, line.y2() + dy,
                     this.x, this.y, this.w, this.h
             );
         }
 
         if (other instanceof Group) {
-            return other.intersects(this);
+            return other.intersects(this, -dx, -dy);
         }
 
         return false;
@@ -19,11 +19,52 @@ public interface Shape {
      * @return the minimum bounding box of this shape (REQ9)
      */
     BoundingBox bbox();
+
+    /**
+     * Writes the minimum bounding box of this shape into sink as
+     * minX, minY, maxX, maxY, without allocating.
+     * Used on hot paths such as hit testing and intersection queries.
+     * @param sink array of at least four elements
+     */
+    void bounds(double[] sink);
     
     /**
-     * @return formatted string containing basic shape information (REQ13)
+     * @return the group directly containing this shape, or null if it is in none
+     */
+    Group parent();
+
+    /**
+     * @return formatted string containing basic shape information (REQ13), in
+     *         drawing coordinates: the offsets of the enclosing groups are applied
+     */
+    default String listInfo() {
+        return listInfo(Group.enclosingOffsetX(this), Group.enclosingOffsetY(this));
+    }
+
+    /**
+     * Formats this shape as if it were translated by (dx, dy).
+     * Used to list group members in drawing coordinates when their groups carry
+     * a pending offset.
      */
-    String listInfo();
+    String listInfo(double dx, double dy);
 
-    boolean intersects(Shape other);
+    /**
+     * Moves this shape in place by the given deltas (REQ10).
+     * Groups move all of their members.
+     */
+    void translate(double dx, double dy);
+
+    /**
+     * @return true if this shape and the other shape share at least one point (REQ12)
+     */
+    default boolean intersects(Shape other) {
+        return intersects(other, 0, 0);
+    }
+
+    /**
+     * Checks this shape against the other shape translated by (dx, dy).
+     * Groups use the translation to compare their members with shapes outside the
+     * group without applying their pending offsets.
+     */
+    boolean intersects(Shape other, double dx, double dy);
 }
\ No newline at end of file
@@ -12,6 +12,8 @@ public final class Square implements Shape {
     private final String name;
     public int z;
     public double x, y, length;
+    // Group directly containing this shape, kept up to date by Group
+    Group parent;
 
     /**
      * Creates a square.
@@ -38,6 +40,7 @@ public final class Square implements Shape {
 
     @Override public String name() { return name; }
     @Override public int z() { return z; }
+    @Override public Group parent() { return parent; }
 
     @Override
     public BoundingBox bbox() {
@@ -45,29 +48,45 @@ public final class Square implements Shape {
     }
 
     @Override
-    public String listInfo() {
-        return String.format(Locale.US, "%s square %.2f %.2f %.2f", name, x, y, length);
+    public void bounds(double[] sink) {
+        sink[0] = x;
+        sink[1] = y;
+        sink[2] = x + length;
+        sink[3] = y + length;
+    }
+
+    @Override
+    public void translate(double dx, double dy) {
+        x += dx;
+        y += dy;
+    }
+
+    @Override
+    public String listInfo(double dx, double dy) {
+        return String.format(Locale.US, "%s square %.2f %.2f %.2f", name, x + dx, y + dy, length);
     }
 
     public double x() { return x; }
     public double y() { return y; }
     public double s() { return length; }
     @Override
-    public boolean intersects(Shape other) {
+    public boolean intersects(Shape other, double dx, double dy) {
         if (other instanceof Square) {
             Square s = (Square) other;
+            double sx = s.x + dx, sy = s.y + dy;
 
-            boolean xOverlap = Math.max(this.x, s.x) <= Math.min(this.x + this.length, s.x + s.length);
-            boolean yOverlap = Math.max(this.y, s.y) <= Math.min(this.y + this.length, s.y + s.length);
+            boolean xOverlap = Math.max(this.x, sx) <= Math.min(this.x + this.length, sx + s.length);
+            boolean yOverlap = Math.max(this.y, sy) <= Math.min(this.y + this.length, sy + s.length);
 
             return xOverlap && yOverlap;
         }
 
         if (other instanceof Rectangle) {
             Rectangle r = (Rectangle) other;
+            double rx = r.x() + dx, ry = r.y() + dy;
 
-            boolean xOverlap = Math.max(this.x, r.x()) <= Math.min(this.x + this.length, r.x() + r.w());
-            boolean yOverlap = Math.max(this.y, r.y()) <= Math.min(this.y + this.length, r.y() + r.h());
+            boolean xOverlap = Math.max(this.x, rx) <= Math.min(this.x + this.length, rx + r.w());
+            boolean yOverlap = Math.max(this.y, ry) <= Math.min(this.y + this.length, ry + r.h());
 
             return xOverlap && yOverlap;
         }
@@ -75,7 +94,7 @@ public final class Square implements Shape {
         if (other instanceof Circle) {
             Circle c = (Circle) other;
             return ShapeQueryHandler.circleIntersectsRectangle(
-                    c.centerX, c.centerY, c.radius,
+                    c.centerX + dx, c.centerY + dy, c.radius,
                     this.x, this.y, this.length, this.length
             );
         }
@@ -83,13 +102,13 @@ public final class Square implements Shape {
         if (other instanceof Line) {
             Line line = (Line) other;
             return ShapeQueryHandler.lineIntersectsRectangle(
-                    line.x1(), line.y1(), line.x2(), line.y2(),
+                    line.x1() + dx, line.y1() + dy, line.x2() + dx, line.y2() + dy,
                     this.x, this.y, this.length, this.length
             );
         }
 
         if (other instanceof Group) {
-            return other.intersects(this);
+            return other.intersects(this, -dx, -dy);
         }
 
         return false;
@@ -0,0 +1,130 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact map from shape names to dense int ids.
+ * Names are stored as UTF-8 bytes in one shared array rather than as String
+ * objects, and looked up through an open-addressing table of ids.
+ */
+final class NameTable {
+    private static final int EMPTY = -1;
+
+    private byte[] bytes = new byte[1024];
+    private int used;
+    private int[] start = new int[64];
+    private int[] length = new int[64];
+    private int[] slots = newSlots(128);
+    private int count;
+
+    /**
+     * Records the name of a new id.
+     * @throws IllegalArgumentException if the name is already in the table
+     */
+    void put(String name, int id) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        if (find(encoded) != EMPTY) {
+            throw new IllegalArgumentException("Name already used: " + name);
+        }
+        if (id >= start.length) {
+            int capacity = Math.max(start.length * 2, id + 1);
+            start = Arrays.copyOf(start, capacity);
+            length = Arrays.copyOf(length, capacity);
+        }
+        if (used + encoded.length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, used + encoded.length));
+        }
+        System.arraycopy(encoded, 0, bytes, used, encoded.length);
+        start[id] = used;
+        length[id] = encoded.length;
+        used += encoded.length;
+
+        if ((count + 1) * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        insertSlot(id);
+        count++;
+    }
+
+    /**
+     * @return id of the name, or -1 if it is not in the table
+     */
+    int get(String name) {
+        return find(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Forgets the name of an id. The bytes stay in the shared array.
+     */
+    void remove(int id) {
+        int mask = slots.length - 1;
+        int slot = hash(bytes, start[id], length[id]) & mask;
+        while (slots[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        // Backward-shift deletion keeps every probe chain unbroken
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (slots[next] != EMPTY) {
+            int home = hash(bytes, start[slots[next]], length[slots[next]]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                slots[hole] = slots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[hole] = EMPTY;
+        count--;
+    }
+
+    String name(int id) {
+        return new String(bytes, start[id], length[id], StandardCharsets.UTF_8);
+    }
+
+    private int find(byte[] encoded) {
+        int mask = slots.length - 1;
+        int slot = hash(encoded, 0, encoded.length) & mask;
+        while (slots[slot] != EMPTY) {
+            int id = slots[slot];
+            if (Arrays.equals(bytes, start[id], start[id] + length[id], encoded, 0, encoded.length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    private void insertSlot(int id) {
+        int mask = slots.length - 1;
+        int slot = hash(bytes, start[id], length[id]) & mask;
+        while (slots[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = id;
+    }
+
+    private void rehash(int capacity) {
+        int[] old = slots;
+        slots = newSlots(capacity);
+        for (int id : old) {
+            if (id != EMPTY) {
+                insertSlot(id);
+            }
+        }
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static int hash(byte[] data, int from, int len) {
+        int h = 0;
+        for (int i = from; i < from + len; i++) {
+            h = 31 * h + data[i];
+        }
+        return h ^ (h >>> 16);
+    }
+}
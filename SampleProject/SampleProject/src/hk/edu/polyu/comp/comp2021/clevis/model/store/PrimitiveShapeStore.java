@@ -0,0 +1,290 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.store;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import java.util.*;
+
+/**
+ * Alternative shape store that keeps a drawing in parallel primitive arrays
+ * indexed by a dense int id, instead of one object per shape.
+ * Covers the same shape kinds as REQ2-REQ6. The meaning of the coordinate
+ * columns depends on the type tag:
+ * <ul>
+ *   <li>RECTANGLE: x, y = top-left corner, p = width, q = height</li>
+ *   <li>SQUARE: x, y = top-left corner, p = side length</li>
+ *   <li>LINE: x, y = first endpoint, p, q = second endpoint</li>
+ *   <li>CIRCLE: x, y = centre, p = radius</li>
+ *   <li>GROUP: no coordinates; members are linked through firstChild/nextSibling</li>
+ * </ul>
+ * Ids of removed shapes are not reused; their type becomes NONE.
+ */
+public class PrimitiveShapeStore implements PrimitiveShapeView {
+    public static final byte NONE = 0, RECTANGLE = 1, LINE = 2, CIRCLE = 3, SQUARE = 4, GROUP = 5;
+    public static final int NO_SHAPE = -1;
+
+    private byte[] type = new byte[64];
+    private double[] x = new double[64];
+    private double[] y = new double[64];
+    private double[] p = new double[64];
+    private double[] q = new double[64];
+    private int[] z = new int[64];
+    private int[] parent = new int[64];
+    private int[] firstChild = new int[64];
+    private int[] nextSibling = new int[64];
+    private final NameTable names = new NameTable();
+    private int capacity;
+    private int size;
+
+    // =============================
+    // Creation
+    // =============================
+
+    public int addRectangle(String name, int z, double x, double y, double w, double h) {
+        if (w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("width and height must be positive!!");
+        }
+        return add(name, RECTANGLE, z, x, y, w, h);
+    }
+
+    public int addLine(String name, int z, double x1, double y1, double x2, double y2) {
+        if (x1 == x2 && y1 == y2) {
+            throw new IllegalArgumentException("a line needs two distinct points!!");
+        }
+        return add(name, LINE, z, x1, y1, x2, y2);
+    }
+
+    public int addCircle(String name, int z, double centerX, double centerY, double radius) {
+        if (radius <= 0) {
+            throw new IllegalArgumentException("radius must be positive!!");
+        }
+        return add(name, CIRCLE, z, centerX, centerY, radius, 0);
+    }
+
+    public int addSquare(String name, int z, double x, double y, double length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("side length must be positive!!");
+        }
+        return add(name, SQUARE, z, x, y, length, 0);
+    }
+
+    /**
+     * Groups top-level shapes under a new group id.
+     * @throws IllegalArgumentException if no members are given, or a member is
+     *         missing or already in a group
+     */
+    public int addGroup(String name, int z, int... members) {
+        if (members == null || members.length == 0) {
+            throw new IllegalArgumentException("group must contain at least one shape!");
+        }
+        for (int member : members) {
+            if (!isLive(member)) {
+                throw new IllegalArgumentException("Shape not found: " + member);
+            }
+            if (parent[member] != NO_SHAPE) {
+                throw new IllegalArgumentException("Shape is already in a group: " + names.name(member));
+            }
+        }
+        int id = add(name, GROUP, z, 0, 0, 0, 0);
+        // Link in reverse so that firstChild walks the members in the given order
+        for (int i = members.length - 1; i >= 0; i--) {
+            parent[members[i]] = id;
+            nextSibling[members[i]] = firstChild[id];
+            firstChild[id] = members[i];
+        }
+        return id;
+    }
+
+    /**
+     * Copies an object-model shape, and for groups all of its members, into the store.
+     * Pending group offsets are folded into the copied coordinates.
+     * @return id of the copied shape
+     */
+    public int add(Shape shape) {
+        return add(shape, 0, 0);
+    }
+
+    private int add(Shape shape, double dx, double dy) {
+        if (shape instanceof Rectangle r) {
+            return addRectangle(r.name(), r.z(), r.x + dx, r.y + dy, r.w, r.h);
+        } else if (shape instanceof Line l) {
+            return addLine(l.name(), l.z(), l.x1 + dx, l.y1 + dy, l.x2 + dx, l.y2 + dy);
+        } else if (shape instanceof Circle c) {
+            return addCircle(c.name(), c.z(), c.centerX + dx, c.centerY + dy, c.radius);
+        } else if (shape instanceof Square s) {
+            return addSquare(s.name(), s.z(), s.x + dx, s.y + dy, s.length);
+        } else if (shape instanceof Group g) {
+            List<Shape> members = g.getShapes();
+            int[] ids = new int[members.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = add(members.get(i), dx + g.offsetX(), dy + g.offsetY());
+            }
+            return addGroup(g.name(), g.z(), ids);
+        }
+        throw new IllegalArgumentException("Unsupported shape type");
+    }
+
+    private int add(String name, byte kind, int zIndex, double a, double b, double c, double d) {
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("name is required!");
+        }
+        if (capacity == type.length) {
+            grow();
+        }
+        int id = capacity;
+        names.put(name, id);
+        type[id] = kind;
+        z[id] = zIndex;
+        x[id] = a;
+        y[id] = b;
+        p[id] = c;
+        q[id] = d;
+        parent[id] = NO_SHAPE;
+        firstChild[id] = NO_SHAPE;
+        nextSibling[id] = NO_SHAPE;
+        capacity++;
+        size++;
+        return id;
+    }
+
+    private void grow() {
+        int n = type.length * 2;
+        type = Arrays.copyOf(type, n);
+        x = Arrays.copyOf(x, n);
+        y = Arrays.copyOf(y, n);
+        p = Arrays.copyOf(p, n);
+        q = Arrays.copyOf(q, n);
+        z = Arrays.copyOf(z, n);
+        parent = Arrays.copyOf(parent, n);
+        firstChild = Arrays.copyOf(firstChild, n);
+        nextSibling = Arrays.copyOf(nextSibling, n);
+    }
+
+    // =============================
+    // Mutation
+    // =============================
+
+    /**
+     * Removes a shape; removing a group removes all of its members too.
+     */
+    public void remove(int id) {
+        requireLive(id);
+        detach(id);
+        removeTree(id);
+    }
+
+    private void removeTree(int id) {
+        for (int child = firstChild[id]; child != NO_SHAPE; child = nextSibling[child]) {
+            removeTree(child);
+        }
+        names.remove(id);
+        type[id] = NONE;
+        size--;
+    }
+
+    /**
+     * Dissolves a group, making its members top-level again.
+     * @throws IllegalArgumentException if the id is not a group
+     */
+    public void ungroup(int id) {
+        requireLive(id);
+        if (type[id] != GROUP) {
+            throw new IllegalArgumentException("Shape is not a group: " + names.name(id));
+        }
+        for (int child = firstChild[id]; child != NO_SHAPE; ) {
+            int next = nextSibling[child];
+            parent[child] = NO_SHAPE;
+            nextSibling[child] = NO_SHAPE;
+            child = next;
+        }
+        firstChild[id] = NO_SHAPE;
+        remove(id);
+    }
+
+    /**
+     * Moves a shape, or every member of a group, by the given deltas.
+     */
+    public void move(int id, double dx, double dy) {
+        requireLive(id);
+        translate(id, dx, dy);
+    }
+
+    private void translate(int id, double dx, double dy) {
+        switch (type[id]) {
+            case GROUP:
+                for (int child = firstChild[id]; child != NO_SHAPE; child = nextSibling[child]) {
+                    translate(child, dx, dy);
+                }
+                break;
+            case LINE:
+                x[id] += dx;
+                y[id] += dy;
+                p[id] += dx;
+                q[id] += dy;
+                break;
+            default:
+                x[id] += dx;
+                y[id] += dy;
+        }
+    }
+
+    private void detach(int id) {
+        int owner = parent[id];
+        if (owner == NO_SHAPE) {
+            return;
+        }
+        if (firstChild[owner] == id) {
+            firstChild[owner] = nextSibling[id];
+        } else {
+            int prev = firstChild[owner];
+            while (nextSibling[prev] != id) {
+                prev = nextSibling[prev];
+            }
+            nextSibling[prev] = nextSibling[id];
+        }
+        parent[id] = NO_SHAPE;
+        nextSibling[id] = NO_SHAPE;
+    }
+
+    // =============================
+    // Queries
+    // =============================
+
+    /**
+     * @return id of the named shape, or NO_SHAPE if there is none
+     */
+    @Override
+    public int id(String name) {
+        return names.get(name);
+    }
+
+    @Override
+    public boolean isLive(int id) {
+        return id >= 0 && id < capacity && type[id] != NONE;
+    }
+
+    private void requireLive(int id) {
+        if (!isLive(id)) {
+            throw new IllegalArgumentException("Shape not found: " + id);
+        }
+    }
+
+    @Override public String name(int id) { return names.name(id); }
+    @Override public byte type(int id) { return type[id]; }
+    @Override public int z(int id) { return z[id]; }
+    @Override public double x(int id) { return x[id]; }
+    @Override public double y(int id) { return y[id]; }
+    @Override public double p(int id) { return p[id]; }
+    @Override public double q(int id) { return q[id]; }
+    @Override public int parent(int id) { return parent[id]; }
+    @Override public int firstChild(int id) { return firstChild[id]; }
+    @Override public int nextSibling(int id) { return nextSibling[id]; }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
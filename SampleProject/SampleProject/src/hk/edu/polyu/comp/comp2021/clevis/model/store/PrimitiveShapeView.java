@@ -0,0 +1,95 @@
+package hk.edu.polyu.comp.comp2021.clevis.model.store;
+
+/**
+ * Read-only access to a drawing kept as primitive columns indexed by a dense
+ * int id, whatever holds the columns. Type tags and the meaning of x, y, p and
+ * q are those of {@link PrimitiveShapeStore}; coordinates are drawing
+ * coordinates. Members of a group are reached from firstChild through
+ * nextSibling, ending at {@link PrimitiveShapeStore#NO_SHAPE}.
+ */
+public interface PrimitiveShapeView {
+
+    /**
+     * @return one past the highest id; ids below it may be NONE
+     */
+    int capacity();
+
+    /**
+     * @return number of live shapes, group members included
+     */
+    int size();
+
+    byte type(int id);
+    int z(int id);
+    double x(int id);
+    double y(int id);
+    double p(int id);
+    double q(int id);
+    int parent(int id);
+    int firstChild(int id);
+    int nextSibling(int id);
+    String name(int id);
+
+    /**
+     * @return id of the named shape, or NO_SHAPE if there is none
+     */
+    int id(String name);
+
+    default boolean isLive(int id) {
+        return id >= 0 && id < capacity() && type(id) != PrimitiveShapeStore.NONE;
+    }
+
+    /**
+     * @return the outermost group containing the shape, or the shape itself
+     */
+    default int root(int id) {
+        for (int owner = parent(id); owner != PrimitiveShapeStore.NO_SHAPE; owner = parent(id)) {
+            id = owner;
+        }
+        return id;
+    }
+
+    /**
+     * Writes the minimum bounding box of a shape into sink as minX, minY, maxX, maxY.
+     * Allocates nothing, also for groups.
+     * @throws IllegalArgumentException if the id is not a live shape
+     */
+    default void bounds(int id, double[] sink) {
+        if (!isLive(id)) {
+            throw new IllegalArgumentException("Shape not found: " + id);
+        }
+        sink[0] = Double.POSITIVE_INFINITY;
+        sink[1] = Double.POSITIVE_INFINITY;
+        sink[2] = Double.NEGATIVE_INFINITY;
+        sink[3] = Double.NEGATIVE_INFINITY;
+        accumulateBounds(id, sink);
+    }
+
+    private void accumulateBounds(int id, double[] sink) {
+        double minX, minY, maxX, maxY;
+        double x = x(id), y = y(id), p = p(id), q = q(id);
+        switch (type(id)) {
+            case PrimitiveShapeStore.GROUP:
+                for (int child = firstChild(id); child != PrimitiveShapeStore.NO_SHAPE; child = nextSibling(child)) {
+                    accumulateBounds(child, sink);
+                }
+                return;
+            case PrimitiveShapeStore.RECTANGLE:
+                minX = x; minY = y; maxX = x + p; maxY = y + q;
+                break;
+            case PrimitiveShapeStore.SQUARE:
+                minX = x; minY = y; maxX = x + p; maxY = y + p;
+                break;
+            case PrimitiveShapeStore.CIRCLE:
+                minX = x - p; minY = y - p; maxX = x + p; maxY = y + p;
+                break;
+            default:
+                minX = Math.min(x, p); minY = Math.min(y, q);
+                maxX = Math.max(x, p); maxY = Math.max(y, q);
+        }
+        sink[0] = Math.min(sink[0], minX);
+        sink[1] = Math.min(sink[1], minY);
+        sink[2] = Math.max(sink[2], maxX);
+        sink[3] = Math.max(sink[3], maxY);
+    }
+}
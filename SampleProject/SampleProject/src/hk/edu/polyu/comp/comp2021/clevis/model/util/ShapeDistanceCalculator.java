@@ -1,6 +1,8 @@
 package hk.edu.polyu.comp.comp2021.clevis.model.util;
 
 import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeStore;
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeView;
 
 /**
  * Utility class for calculating distances from points to shapes.
@@ -10,27 +12,56 @@ public class ShapeDistanceCalculator {
     
     /**
      * Calculates the minimum distance from a point to a shape's outline.
+     * For a group, this is the minimum over its members, with the group's pending
+     * offset applied.
      * @param shape the shape
      * @param x x-coordinate of the point
      * @param y y-coordinate of the point
      * @return minimum distance to the shape's outline
      */
     public static double distanceToShape(Shape shape, double x, double y) {
-        if (shape instanceof Line) {
-            return distanceToLine((Line) shape, x, y);
-        } else if (shape instanceof Rectangle rectangle) {
-            return distanceToRectangle(rectangle, x, y);
+        if (shape instanceof Line line) {
+            return distanceToSegment(line.x1, line.y1, line.x2, line.y2, x, y);
+        } else if (shape instanceof Rectangle rect) {
+            return distanceToBox(rect.x, rect.y, rect.w, rect.h, x, y);
         } else if (shape instanceof Circle circle) {
-            return distanceToCircle(circle, x, y);
+            return distanceToCircle(circle.centerX, circle.centerY, circle.radius, x, y);
         } else if (shape instanceof Square square) {
-            return distanceToSquare(square, x, y);
+            return distanceToBox(square.x, square.y, square.length, square.length, x, y);
+        } else if (shape instanceof Group group) {
+            double min = Double.POSITIVE_INFINITY;
+            for (Shape member : group.members()) {
+                min = Math.min(min, distanceToShape(member, x - group.offsetX(), y - group.offsetY()));
+            }
+            return min;
         }
         throw new IllegalArgumentException("Unsupported shape type");
     }
+
+    /**
+     * Same as {@link #distanceToShape}, for a primitive held in a {@link PrimitiveShapeView}.
+     * @param store the store or snapshot holding the shape
+     * @param id id of a non-group shape
+     */
+    public static double distanceToShape(PrimitiveShapeView store, int id, double x, double y) {
+        switch (store.type(id)) {
+            case PrimitiveShapeStore.LINE:
+                return distanceToSegment(store.x(id), store.y(id), store.p(id), store.q(id), x, y);
+            case PrimitiveShapeStore.RECTANGLE:
+                return distanceToBox(store.x(id), store.y(id), store.p(id), store.q(id), x, y);
+            case PrimitiveShapeStore.CIRCLE:
+                return distanceToCircle(store.x(id), store.y(id), store.p(id), x, y);
+            case PrimitiveShapeStore.SQUARE:
+                return distanceToBox(store.x(id), store.y(id), store.p(id), store.p(id), x, y);
+            default:
+                throw new IllegalArgumentException("Unsupported shape type");
+        }
+    }
     
-    private static double distanceToLine(Line line, double x, double y) {
-        double x1 = line.x1, y1 = line.y1, x2 = line.x2, y2 = line.y2;
-        
+    /**
+     * Distance from a point to the line segment (x1, y1)-(x2, y2).
+     */
+    public static double distanceToSegment(double x1, double y1, double x2, double y2, double x, double y) {
         double lineLength = (x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1);
         if (lineLength == 0) {
             return Math.sqrt((x - x1) * (x - x1) + (y - y1) * (y - y1));
@@ -45,12 +76,10 @@ public class ShapeDistanceCalculator {
         return Math.sqrt((x - px) * (x - px) + (y - py) * (y - py));
     }
     
-    private static double distanceToRectangle(Rectangle rect, double x, double y) {
-        double rx = rect.x;
-        double ry = rect.y;
-        double rw = rect.w;
-        double rh = rect.h;
-
+    /**
+     * Distance from a point to the filled box with top-left corner (rx, ry); 0 inside it.
+     */
+    public static double distanceToBox(double rx, double ry, double rw, double rh, double x, double y) {
         boolean inside = x >= rx && x <= rx + rw && y >= ry && y <= ry + rh;
         if (inside) {
             return 0.0;
@@ -63,18 +92,13 @@ public class ShapeDistanceCalculator {
         return Math.hypot(dx, dy);
     }
     
-    private static double distanceToCircle(Circle circle, double x, double y) {
-        double dx = x - circle.centerX;
-        double dy = y - circle.centerY;
+    /**
+     * Distance from a point to the filled circle around (cx, cy); 0 inside it.
+     */
+    public static double distanceToCircle(double cx, double cy, double radius, double x, double y) {
+        double dx = x - cx;
+        double dy = y - cy;
         double centerDistance = Math.hypot(dx, dy);
-        return Math.max(0.0, centerDistance - circle.radius);
-    }
-    
-    private static double distanceToSquare(Square square, double x, double y) {
-        return distanceToRectangle(
-            new Rectangle(square.name(), square.z(), square.x, square.y, 
-                          square.length, square.length),
-            x, y
-        );
+        return Math.max(0.0, centerDistance - radius);
     }
-}
\ No newline at end of file
+}
@@ -2,6 +2,8 @@ package hk.edu.polyu.comp.comp2021.clevis.model.util;
 
 import hk.edu.polyu.comp.comp2021.clevis.model.operations.GroupManager;
 import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeStore;
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeView;
 import java.util.*;
 
 /**
@@ -50,7 +52,7 @@ public class ShapeListFormatter {
             throw new IllegalArgumentException("Shape not found: " + name);
         }
 
-        return shape.listInfo();
+        return shape.listInfo(groupManager.offsetX(shape), groupManager.offsetY(shape));
     }
 
     /**
@@ -89,7 +91,7 @@ public class ShapeListFormatter {
     private String formatShape(Shape shape) {
         StringBuilder sb = new StringBuilder();
         Set<Shape> visited = new HashSet<>();
-        appendShapeInfo(shape, 0, sb, visited);
+        appendShapeInfo(shape, 0, 0, 0, sb, visited);
         return sb.toString();
     }
 
@@ -101,7 +103,9 @@ public class ShapeListFormatter {
         }
     }
 
-    private void appendShapeInfo(Shape shape, int depth, StringBuilder sb, Set<Shape> visited) {
+    // dx, dy: sum of the pending offsets of the groups enclosing the shape
+    private void appendShapeInfo(Shape shape, int depth, double dx, double dy,
+                                 StringBuilder sb, Set<Shape> visited) {
         if (!visited.add(shape)) {
             return;
         }
@@ -111,14 +115,102 @@ public class ShapeListFormatter {
         }
 
         String indent = depth <= 0 ? "" : "  ".repeat(depth);
-        sb.append(indent).append(shape.listInfo());
+        sb.append(indent).append(shape.listInfo(dx, dy));
 
         if (shape instanceof Group) {
-            List<Shape> members = new ArrayList<>(((Group) shape).getShapes());
+            Group group = (Group) shape;
+            List<Shape> members = new ArrayList<>(group.members());
             members.sort(Comparator.comparingInt(Shape::z).reversed());
             for (Shape member : members) {
-                appendShapeInfo(member, depth + 1, sb, visited);
+                appendShapeInfo(member, depth + 1, dx + group.offsetX(), dy + group.offsetY(), sb, visited);
             }
         }
     }
-}
\ No newline at end of file
+
+    // =============================
+    // Primitive views
+    // =============================
+
+    /**
+     * Lists a top-level shape of a {@link PrimitiveShapeView} (REQ13), formatted
+     * exactly like the shape's own listInfo.
+     * @throws IllegalArgumentException if name is null/empty, the shape doesn't exist
+     *         or is hidden in a group
+     */
+    public static String list(PrimitiveShapeView store, String name) {
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("Shape name cannot be null or empty");
+        }
+        int id = store.id(name);
+        if (id == PrimitiveShapeStore.NO_SHAPE) {
+            throw new IllegalArgumentException("Shape not found: " + name);
+        }
+        if (store.parent(id) != PrimitiveShapeStore.NO_SHAPE) {
+            throw new IllegalArgumentException(name + " is in a group");
+        }
+        return listInfo(store, id);
+    }
+
+    /**
+     * Lists all shapes of a {@link PrimitiveShapeView} (REQ14) in the same layout as
+     * {@link #listAll()}.
+     */
+    public static String listAll(PrimitiveShapeView store) {
+        List<Integer> topLevel = new ArrayList<>();
+        for (int id = 0; id < store.capacity(); id++) {
+            if (store.isLive(id) && store.parent(id) == PrimitiveShapeStore.NO_SHAPE) {
+                topLevel.add(id);
+            }
+        }
+        topLevel.sort(Comparator.comparingInt(store::z));
+        StringBuilder result = new StringBuilder();
+        for (int id : topLevel) {
+            StringBuilder sb = new StringBuilder();
+            appendShapeInfo(store, id, 0, sb);
+            result.append(sb).append("\n");
+        }
+        return result.toString().trim();
+    }
+
+    private static void appendShapeInfo(PrimitiveShapeView store, int id, int depth, StringBuilder sb) {
+        if (sb.length() > 0) {
+            sb.append(System.lineSeparator());
+        }
+        sb.append(depth <= 0 ? "" : "  ".repeat(depth)).append(listInfo(store, id));
+
+        if (store.type(id) == PrimitiveShapeStore.GROUP) {
+            List<Integer> members = new ArrayList<>();
+            for (int child = store.firstChild(id); child != PrimitiveShapeStore.NO_SHAPE; child = store.nextSibling(child)) {
+                members.add(child);
+            }
+            members.sort(Comparator.comparingInt(store::z).reversed());
+            for (int member : members) {
+                appendShapeInfo(store, member, depth + 1, sb);
+            }
+        }
+    }
+
+    private static String listInfo(PrimitiveShapeView store, int id) {
+        String name = store.name(id);
+        switch (store.type(id)) {
+            case PrimitiveShapeStore.RECTANGLE:
+                return String.format(Locale.US, "%s rectangle %.2f %.2f %.2f %.2f",
+                        name, store.x(id), store.y(id), store.p(id), store.q(id));
+            case PrimitiveShapeStore.LINE:
+                return String.format(Locale.US, "%s line %.2f %.2f %.2f %.2f",
+                        name, store.x(id), store.y(id), store.p(id), store.q(id));
+            case PrimitiveShapeStore.CIRCLE:
+                return String.format(Locale.US, "%s circle %.2f %.2f %.2f",
+                        name, store.x(id), store.y(id), store.p(id));
+            case PrimitiveShapeStore.SQUARE:
+                return String.format(Locale.US, "%s square %.2f %.2f %.2f",
+                        name, store.x(id), store.y(id), store.p(id));
+            default:
+                StringBuilder sb = new StringBuilder(name).append(" group");
+                for (int child = store.firstChild(id); child != PrimitiveShapeStore.NO_SHAPE; child = store.nextSibling(child)) {
+                    sb.append(' ').append(store.name(child));
+                }
+                return sb.toString();
+        }
+    }
+}
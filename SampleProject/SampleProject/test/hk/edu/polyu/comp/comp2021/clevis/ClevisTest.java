@@ -1,13 +1,38 @@
 package hk.edu.polyu.comp.comp2021.clevis;
 
 import hk.edu.polyu.comp.comp2021.clevis.model.Clevis;
+import hk.edu.polyu.comp.comp2021.clevis.model.DrawingChange;
+import hk.edu.polyu.comp.comp2021.clevis.model.DrawingListener;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.DensityPyramid;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.DrawOrder;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.RTree;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialHashGrid;
+import hk.edu.polyu.comp.comp2021.clevis.model.index.SpatialIndex;
+import hk.edu.polyu.comp.comp2021.clevis.model.operations.IntersectionPair;
+import hk.edu.polyu.comp.comp2021.clevis.model.operations.ShapeQueryHandler;
+import hk.edu.polyu.comp.comp2021.clevis.model.persistence.Journal;
+import hk.edu.polyu.comp.comp2021.clevis.model.persistence.MappedSnapshot;
+import hk.edu.polyu.comp.comp2021.clevis.model.persistence.SvgExporter;
+import hk.edu.polyu.comp.comp2021.clevis.model.store.PrimitiveShapeStore;
 import hk.edu.polyu.comp.comp2021.clevis.model.shapes.*;
+import hk.edu.polyu.comp.comp2021.clevis.model.util.ShapeListFormatter;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
-
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -15,6 +40,10 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 public class ClevisTest {
     private Clevis clevis;
 
+    // Files written by the save, journal and export tests; deleted after each test
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     @Before
     public void setUp() {
         clevis = new Clevis();
@@ -1049,4 +1078,1942 @@ public class ClevisTest {
             String result = clevis.shapeAt(17, 17);
             assertEquals("r1", result);
         }
+
+    // ==================== Spatial Index Tests ====================
+    @Test
+    public void testShapeAtManyShapesMatchesTopmost() {
+        for (int i = 0; i < 200; i++) {
+            clevis.rectangle("r" + i, (i % 20) * 3, (i / 20) * 3, 4, 4);
+        }
+        // r21 spans (3,3)-(7,7) and is overlapped by the later r22 at (6,3)-(10,7)
+        assertEquals("r22", clevis.shapeAt(6.5, 4));
+        assertEquals("r0", clevis.shapeAt(0.5, 0.5));
+        assertNull(clevis.shapeAt(500, 500));
+    }
+
+    @Test
+    public void testShapeAtAfterGroupMove() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 10, 10, 1);
+        clevis.group("g1", Arrays.asList("r1", "c1"));
+        clevis.move("g1", 100, 100);
+
+        assertNull(clevis.shapeAt(1, 1));
+        assertEquals("g1", clevis.shapeAt(101, 101));
+        BoundingBox bbox = clevis.boundingBox("g1");
+        assertEquals(100.0, bbox.x, 0.01);
+        assertEquals(111.0, bbox.x + bbox.w, 0.01);
+    }
+
+    @Test
+    public void testShapeAtAfterDeleteAndUngroup() {
+        clevis.rectangle("r1", 0, 0, 5, 5);
+        clevis.rectangle("r2", 0, 0, 5, 5);
+        clevis.group("g1", Arrays.asList("r1", "r2"));
+        assertEquals("g1", clevis.shapeAt(1, 1));
+
+        clevis.ungroup("g1");
+        assertEquals("r2", clevis.shapeAt(1, 1));
+
+        clevis.deleteShape("r2");
+        assertEquals("r1", clevis.shapeAt(1, 1));
+    }
+
+    // ==================== Intersect All Tests ====================
+    @Test
+    public void testIntersectAllFindsEveryPair() {
+        clevis.rectangle("r1", 0, 0, 4, 4);
+        clevis.circle("c1", 3, 3, 2);
+        clevis.line("l1", 100, 100, 110, 110);
+        clevis.square("s1", 2, 2, 1);
+        clevis.line("l2", 100, 110, 110, 100);
+
+        List<IntersectionPair> pairs = clevis.intersectAll();
+        List<String> names = new ArrayList<>();
+        for (IntersectionPair pair : pairs) {
+            names.add(pair.toString());
+        }
+        assertEquals(Arrays.asList("r1 c1", "r1 s1", "c1 s1", "l1 l2"), names);
+    }
+
+    @Test
+    public void testIntersectAllMatchesPairwiseIntersect() {
+        for (int i = 0; i < 60; i++) {
+            double offset = (i * 7) % 40;
+            switch (i % 4) {
+                case 0: clevis.rectangle("s" + i, offset, i % 9, 3, 2); break;
+                case 1: clevis.circle("s" + i, offset, i % 11, 1.5); break;
+                case 2: clevis.line("s" + i, offset, 0, offset + 4, i % 7 + 1); break;
+                default: clevis.square("s" + i, offset, i % 5, 2); break;
+            }
+        }
+        clevis.group("g", Arrays.asList("s0", "s1", "s2"));
+
+        int expected = 0;
+        List<Shape> top = new ArrayList<>(clevis.drawOrder);
+        for (int i = 0; i < top.size(); i++) {
+            for (int j = i + 1; j < top.size(); j++) {
+                if (clevis.intersect(top.get(i).name(), top.get(j).name())) {
+                    expected++;
+                }
+            }
+        }
+        assertEquals(expected, clevis.intersectAll().size());
+    }
+
+    @Test
+    public void testIntersectAllEmptyDrawing() {
+        assertTrue(clevis.intersectAll().isEmpty());
+    }
+
+    @Test
+    public void testIntersectAllParallelMatchesSequential() {
+        for (int i = 0; i < 3000; i++) {
+            clevis.circle("c" + i, (i * 37) % 500, (i * 53) % 500, 4);
+        }
+        List<IntersectionPair> sequential = clevis.intersectAll();
+        List<IntersectionPair> parallel = clevis.intersectAll(4);
+
+        assertEquals(sequential.size(), parallel.size());
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.get(i).toString(), parallel.get(i).toString());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIntersectAllInvalidParallelism() {
+        clevis.intersectAll(0);
+    }
+
+    // ==================== Primitive Store Tests ====================
+    @Test
+    public void testPrimitiveStoreShapeAtMatchesObjectModel() {
+        clevis.rectangle("r1", 0, 0, 10, 10);
+        clevis.circle("c1", 5, 5, 2);
+        clevis.line("l1", 20, 20, 30, 30);
+        clevis.square("s1", 40, 40, 4);
+        clevis.group("g1", Arrays.asList("l1", "s1"));
+
+        PrimitiveShapeStore store = clevis.toPrimitiveStore();
+        double[][] points = {{5, 5}, {1, 1}, {25, 25}, {42, 42}, {100, 100}};
+        for (double[] point : points) {
+            int id = ShapeQueryHandler.shapeAt(store, point[0], point[1]);
+            String name = id == PrimitiveShapeStore.NO_SHAPE ? null : store.name(id);
+            assertEquals(clevis.shapeAt(point[0], point[1]), name);
+        }
+    }
+
+    @Test
+    public void testPrimitiveStoreGroupBoundsAndMove() {
+        PrimitiveShapeStore store = new PrimitiveShapeStore();
+        int r = store.addRectangle("r1", 1, 0, 0, 2, 2);
+        int c = store.addCircle("c1", 2, 10, 10, 1);
+        int g = store.addGroup("g1", 3, r, c);
+        store.move(g, 5, 5);
+
+        double[] box = new double[4];
+        store.bounds(g, box);
+        assertArrayEquals(new double[]{5, 5, 16, 16}, box, 0.001);
+        assertEquals(g, store.id("g1"));
+
+        store.ungroup(g);
+        assertEquals(PrimitiveShapeStore.NO_SHAPE, store.id("g1"));
+        assertEquals(PrimitiveShapeStore.NO_SHAPE, store.parent(r));
+        store.remove(c);
+        assertEquals(1, store.size());
+        assertEquals(PrimitiveShapeStore.NO_SHAPE, store.id("c1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPrimitiveStoreDuplicateName() {
+        PrimitiveShapeStore store = new PrimitiveShapeStore();
+        store.addSquare("s1", 1, 0, 0, 1);
+        store.addCircle("s1", 2, 0, 0, 1);
+    }
+
+    // ==================== Allocation-free Bounds Tests ====================
+    @Test
+    public void testBoundsMatchesBoundingBox() {
+        clevis.rectangle("r1", 1, 2, 3, 4);
+        clevis.line("l1", 9, 8, 5, 12);
+        clevis.circle("c1", -3, -3, 2);
+        clevis.square("s1", 20, 20, 1.5);
+        clevis.group("g1", Arrays.asList("r1", "l1"));
+        clevis.group("g2", Arrays.asList("g1", "c1"));
+
+        double[] sink = new double[4];
+        for (String name : Arrays.asList("r1", "l1", "c1", "s1", "g1", "g2")) {
+            BoundingBox bbox = clevis.boundingBox(name);
+            clevis.shapes.get(name).bounds(sink);
+            assertArrayEquals(name, new double[]{bbox.x, bbox.y, bbox.x + bbox.w, bbox.y + bbox.h}, sink, 1e-9);
+        }
+    }
+
+    // ==================== Group Bounds Cache Tests ====================
+    @Test
+    public void testNestedGroupBoundsFollowMemberMove() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 10, 10, 1);
+        clevis.group("g1", Arrays.asList("r1", "c1"));
+        clevis.line("l1", 0, 0, 1, 1);
+        clevis.group("g2", Arrays.asList("g1", "l1"));
+        assertEquals(11.0, clevis.boundingBox("g2").w, 0.01);
+
+        // Moving a member deep inside the hierarchy must refresh every enclosing group
+        clevis.move("c1", 20, 0);
+        assertEquals(31.0, clevis.boundingBox("g1").w, 0.01);
+        assertEquals(31.0, clevis.boundingBox("g2").w, 0.01);
+        assertEquals("g2", clevis.shapeAt(30, 10));
+    }
+
+    @Test
+    public void testGroupBoundsAfterGroupMove() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.rectangle("r2", 4, 4, 2, 2);
+        clevis.group("g1", Arrays.asList("r1", "r2"));
+        clevis.group("g2", Arrays.asList("g1"));
+        clevis.move("g2", -3, 7);
+
+        BoundingBox inner = clevis.boundingBox("g1");
+        BoundingBox outer = clevis.boundingBox("g2");
+        assertEquals(-3.0, inner.x, 0.01);
+        assertEquals(7.0, inner.y, 0.01);
+        assertEquals(inner.toString(), outer.toString());
+    }
+
+    // ==================== In-place Move Tests ====================
+    @Test
+    public void testMoveUpdatesShapeInPlace() {
+        Rectangle r1 = clevis.rectangle("r1", 0, 0, 2, 2);
+        Line l1 = clevis.line("l1", 0, 0, 1, 1);
+        clevis.group("g1", Arrays.asList("r1", "l1"));
+        clevis.move("g1", 3, 4);
+
+        assertSame(r1, clevis.shapes.get("r1"));
+        assertSame(r1, ((Group) clevis.shapes.get("g1")).members().get(0));
+        assertEquals("r1 rectangle 3.00 4.00 2.00 2.00", r1.listInfo());
+        assertEquals("l1 line 3.00 4.00 4.00 5.00", l1.listInfo());
+    }
+
+    @Test
+    public void testMoveLargeGroup() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            clevis.square("s" + i, i, 0, 1);
+            names.add("s" + i);
+        }
+        clevis.group("g1", names);
+        clevis.move("g1", 0, 50);
+
+        assertEquals("s9999 square 9999.00 50.00 1.00", clevis.shapes.get("s9999").listInfo());
+        assertEquals("0.00 50.00 10000.00 1.00", clevis.boundingBox("g1").toString());
+        assertEquals("g1", clevis.shapeAt(5000.5, 50.5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGroupDuplicateMember() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.group("g1", Arrays.asList("r1", "r1"));
+    }
+
+
+    // =============================
+    // Lazy Group Offset
+    // =============================
+
+    @Test
+    public void testGroupMoveIsAnOffset() {
+        Rectangle r1 = clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 10, 10, 1);
+        List<String> names = new ArrayList<>(Arrays.asList("r1", "c1"));
+        for (int i = 0; i < Group.EAGER_MEMBERS; i++) {
+            clevis.square("s" + i, 1, 1, 1);
+            names.add("s" + i);
+        }
+        Group g1 = clevis.group("g1", names);
+        clevis.move("g1", 5, 5);
+        clevis.move("g1", 1, -1);
+
+        assertEquals(0.0, r1.x, 0.001);
+        assertEquals(6.0, g1.offsetX(), 0.001);
+        assertEquals(4.0, g1.offsetY(), 0.001);
+        assertEquals("6.00 4.00 2.00 2.00", clevis.boundingBox("r1").toString());
+        assertEquals("6.00 4.00 11.00 11.00", clevis.boundingBox("g1").toString());
+        assertEquals("r1 rectangle 6.00 4.00 2.00 2.00", r1.listInfo());
+        assertEquals("r1 rectangle 6.00 4.00 2.00 2.00", clevis.shapes.get("r1").listInfo());
+        assertTrue(clevis.intersect("r1", "s0"));
+
+        // Reading members does not fold the offset into them
+        assertEquals(0.0, r1.x, 0.001);
+        assertEquals(6.0, g1.offsetX(), 0.001);
+        clevis.flatten("g1");
+        assertEquals(6.0, r1.x, 0.001);
+        assertEquals("r1 rectangle 6.00 4.00 2.00 2.00", r1.listInfo());
+    }
+
+    @Test
+    public void testSmallGroupMovesMembers() {
+        Rectangle r1 = clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 10, 10, 1);
+        Group g1 = clevis.group("g1", Arrays.asList("r1", "c1"));
+        Group outer = clevis.group("outer", Arrays.asList("g1"));
+        clevis.move("outer", 3, 4);
+
+        assertEquals(3.0, r1.x, 0.001);
+        assertEquals(0.0, g1.offsetX(), 0.001);
+        assertEquals(0.0, outer.offsetX(), 0.001);
+        assertSame(g1, r1.parent());
+        assertSame(outer, g1.parent());
+        clevis.ungroup("outer");
+        assertNull(g1.parent());
+        clevis.undo();
+        assertSame(outer, g1.parent());
+    }
+
+    @Test
+    public void testShapeAtAfterGroupOffset() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.line("l1", 0, 5, 4, 5);
+        clevis.group("g1", Arrays.asList("r1", "l1"));
+        clevis.move("g1", 10, 0);
+
+        assertNull(clevis.shapeAt(2, 5));
+        assertEquals("g1", clevis.shapeAt(12, 5));
+        assertEquals("g1", clevis.shapeAt(10, 1));
+    }
+
+    @Test
+    public void testIntersectWithGroupOffset() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.group("g1", Arrays.asList("r1"));
+        clevis.square("s1", 20, 20, 2);
+        clevis.group("g2", Arrays.asList("s1"));
+        assertFalse(clevis.intersect("g1", "g2"));
+
+        clevis.move("g1", 19, 19);
+        assertTrue(clevis.intersect("g1", "g2"));
+        assertTrue(clevis.intersect("r1", "s1"));
+        clevis.line("l1", 0, 0, 1, 1);
+        assertFalse(clevis.intersect("l1", "g1"));
+        assertEquals(1, clevis.intersectAll().size());
+    }
+
+    @Test
+    public void testNestedGroupOffsets() {
+        clevis.square("s1", 0, 0, 1);
+        clevis.group("inner", Arrays.asList("s1"));
+        clevis.move("inner", 1, 0);
+        clevis.group("outer", Arrays.asList("inner"));
+        clevis.move("outer", 0, 2);
+
+        assertEquals("1.00 2.00 1.00 1.00", clevis.boundingBox("s1").toString());
+        assertEquals("outer", clevis.shapeAt(1, 2.5));
+        assertEquals("outer group inner\n  inner group s1\n    s1 square 1.00 2.00 1.00",
+                clevis.listAll().replace(System.lineSeparator(), "\n"));
+
+        assertEquals("s1 square 1.00 2.00 1.00", clevis.shapes.get("s1").listInfo());
+        assertEquals("outer group inner\n  inner group s1\n    s1 square 1.00 2.00 1.00",
+                clevis.listAll().replace(System.lineSeparator(), "\n"));
+        assertEquals("outer", clevis.shapeAt(1, 2.5));
+    }
+
+    @Test
+    public void testUngroupFoldsOffset() {
+        Square s1 = clevis.square("s1", 0, 0, 1);
+        clevis.group("g1", Arrays.asList("s1"));
+        clevis.move("g1", 3, 3);
+        clevis.ungroup("g1");
+
+        assertEquals(3.0, s1.x, 0.001);
+        assertEquals("s1", clevis.shapeAt(3, 3.5));
+        assertEquals("s1 square 3.00 3.00 1.00", clevis.list("s1"));
+    }
+
+    @Test
+    public void testFlattenKeepsDrawing() {
+        Square s1 = clevis.square("s1", 0, 0, 1);
+        clevis.group("inner", Arrays.asList("s1"));
+        clevis.move("inner", 1, 1);
+        Group outer = clevis.group("outer", Arrays.asList("inner"));
+        clevis.move("outer", 1, 1);
+        clevis.flatten("outer");
+
+        assertEquals(2.0, s1.x, 0.001);
+        assertEquals(0.0, outer.offsetX(), 0.001);
+        assertEquals("2.00 2.00 1.00 1.00", clevis.boundingBox("outer").toString());
+        assertEquals("2.00 2.00 1.00 1.00", clevis.boundingBox("s1").toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFlattenNonGroup() {
+        clevis.square("s1", 0, 0, 1);
+        clevis.flatten("s1");
+    }
+
+
+    // =============================
+    // Script Mode
+    // =============================
+
+    private String runScript(String... commands) throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        Path script = Files.write(dir.resolve("commands.txt"), Arrays.asList(commands));
+        PrintStream original = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true));
+        try {
+            Application.main(new String[] {"-html", dir.resolve("log.html").toString(),
+                    "-txt", dir.resolve("log.txt").toString(), "-script", script.toString()});
+        } finally {
+            System.setOut(original);
+        }
+        return captured.toString().replace(System.lineSeparator(), "\n");
+    }
+
+    @Test
+    public void testScriptPrintsOnlyResultsAndErrors() throws IOException {
+        String output = runScript(
+                "rectangle r1 0 0 2 2",
+                "circle c1 1 1 1",
+                "move r1 1 1",
+                "boundingbox r1",
+                "",
+                "boundingbox nope",
+                "quit");
+        assertEquals("1.00 1.00 2.00 2.00\nError: Shape not found: nope\n", output);
+    }
+
+    @Test
+    public void testScriptWithoutQuit() throws IOException {
+        String output = runScript("square s1 0 0 1", "list s1");
+        assertEquals("s1 square 0.00 0.00 1.00\n", output);
+    }
+
+
+    // =============================
+    // Command Tokenizer
+    // =============================
+
+    @Test
+    public void testTokenizerSplitsOnWhitespace() {
+        CommandTokenizer tokens = new CommandTokenizer();
+        assertEquals(4, tokens.tokenize("  move\tr1   1.5 -2 "));
+        assertEquals(Command.MOVE, tokens.command());
+        assertEquals("r1", tokens.text(1));
+        assertEquals(1.5, tokens.number(2), 0);
+        assertEquals(-2.0, tokens.number(3), 0);
+        assertEquals(0, tokens.tokenize("   "));
+        assertEquals(Command.UNKNOWN, tokens.command());
+    }
+
+    @Test
+    public void testTokenizerCommandLookupIgnoresCase() {
+        CommandTokenizer tokens = new CommandTokenizer();
+        for (Command command : Command.values()) {
+            if (command == Command.UNKNOWN) {
+                continue;
+            }
+            tokens.tokenize(command.keyword().toUpperCase());
+            assertEquals(command, tokens.command());
+        }
+        tokens.tokenize("shapeAt 1 2");
+        assertEquals(Command.SHAPE_AT, tokens.command());
+        tokens.tokenize("lists");
+        assertEquals(Command.UNKNOWN, tokens.command());
+    }
+
+    @Test
+    public void testTokenizerNumbersMatchParseDouble() {
+        CommandTokenizer tokens = new CommandTokenizer();
+        java.util.Random random = new java.util.Random(10);
+        String[] samples = {"0", "-0", "+3", "0.1", "1.", ".5", "123456789.123456", "1e3",
+                "9007199254740993", "0.30000000000000004", "Infinity", "-1.25E-2", "5d"};
+        for (String sample : samples) {
+            tokens.tokenize(sample);
+            assertEquals(sample, Double.doubleToLongBits(Double.parseDouble(sample)),
+                    Double.doubleToLongBits(tokens.number(0)));
+        }
+        for (int i = 0; i < 10000; i++) {
+            String sample = String.format(java.util.Locale.ROOT, "%." + random.nextInt(10) + "f",
+                    (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12)));
+            tokens.tokenize(sample);
+            assertEquals(sample, Double.parseDouble(sample), tokens.number(0), 0);
+        }
+    }
+
+    @Test
+    public void testTokenizerRejectsInvalidNumbers() {
+        CommandTokenizer tokens = new CommandTokenizer();
+        tokens.tokenize("x - 1.2.3 abc 99999999999 7");
+        assertThrows(NumberFormatException.class, () -> tokens.number(1));
+        assertThrows(NumberFormatException.class, () -> tokens.number(2));
+        assertThrows(NumberFormatException.class, () -> tokens.number(3));
+        assertThrows(NumberFormatException.class, () -> tokens.integer(4));
+        assertEquals(7, tokens.integer(5));
+    }
+
+    @Test
+    public void testScriptUsesTokenizer() throws IOException {
+        String output = runScript("RECTANGLE r1 0 0 2 2", "  boundingBox   r1", "frobnicate", "move r1 x 1");
+        assertEquals("0.00 0.00 2.00 2.00\n"
+                + "Error: Unknown command 'frobnicate'. Type a valid command.\n"
+                + "Error: Invalid number format. Please enter valid numeric values.\n", output);
+    }
+
+
+    // =============================
+    // Command Log Writer
+    // =============================
+
+    @Test
+    public void testLogWriterAppendsBothLogs() throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        Path txt = dir.resolve("log.txt");
+        Path html = dir.resolve("log.html");
+        CommandLogWriter log = new CommandLogWriter(txt.toString(), html.toString(), 2,
+                CommandLogWriter.SyncPolicy.BATCH);
+        for (int i = 0; i < 100; i++) {
+            log.append("square s" + i + " 0 0 1");
+        }
+        log.append("list <s1>");
+        log.close();
+        log.close();
+
+        List<String> lines = Files.readAllLines(txt);
+        assertEquals(101, lines.size());
+        assertEquals("square s0 0 0 1", lines.get(0));
+        assertEquals("list <s1>", lines.get(100));
+        String page = new String(Files.readAllBytes(html), java.nio.charset.StandardCharsets.UTF_8);
+        assertTrue(page.contains("<tr><td>100</td><td>square s99 0 0 1</td></tr>"));
+        assertTrue(page.contains("<tr><td>101</td><td>list &lt;s1&gt;</td></tr>"));
+        assertTrue(page.trim().endsWith("</html>"));
+        assertThrows(IllegalStateException.class, () -> log.append("quit"));
+    }
+
+    @Test
+    public void testLogWrittenBeforeQuit() throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        Path txt = dir.resolve("log.txt");
+        CommandLogWriter log = new CommandLogWriter(txt.toString(), dir.resolve("log.html").toString(),
+                CommandLogWriter.DEFAULT_CAPACITY, CommandLogWriter.SyncPolicy.NONE);
+        log.append("circle c1 0 0 1");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.size(txt) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(Arrays.asList("circle c1 0 0 1"), Files.readAllLines(txt));
+        log.close();
+    }
+
+
+    // =============================
+    // Binary Snapshot
+    // =============================
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        clevis.rectangle("r1", 0, 0, 2, 3);
+        clevis.line("l1", 1, 1, 4, 5);
+        clevis.circle("c1", 5, 5, 1.5);
+        clevis.square("s1", -1, -1, 2);
+        clevis.group("inner", Arrays.asList("l1", "c1"));
+        clevis.move("inner", 1, 0);
+        clevis.group("outer", Arrays.asList("inner", "s1"));
+        clevis.move("outer", 0, 2);
+        clevis.rectangle("\u540d\u5b57", 9, 9, 1, 1);
+        String listing = clevis.listAll();
+        Path file = tmp.newFolder().toPath().resolve("drawing.clv");
+        clevis.save(file.toString());
+
+        Clevis restored = new Clevis();
+        restored.square("old", 0, 0, 1);
+        restored.load(file.toString());
+
+        assertEquals(listing, restored.listAll());
+        assertNull(restored.shapes.get("old"));
+        assertEquals(clevis.boundingBox("c1").toString(), restored.boundingBox("c1").toString());
+        assertEquals("outer", restored.shapeAt(-1, 1.5));
+        assertTrue(restored.groups.containsKey("inner"));
+        restored.ungroup("outer");
+        assertEquals("s1", restored.shapeAt(-1, 1.5));
+        assertEquals(clevis.rectangle("next", 0, 0, 1, 1).z(), restored.rectangle("next", 0, 0, 1, 1).z());
+    }
+
+    @Test
+    public void testSnapshotLargeDrawing() throws IOException {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            clevis.rectangle("r" + i, i, i % 100, 1, 1);
+            if (i % 10 == 0) {
+                names.add("r" + i);
+            }
+        }
+        clevis.group("g", names);
+        Path file = tmp.newFolder().toPath().resolve("drawing.clv");
+        clevis.save(file.toString());
+
+        Clevis restored = new Clevis();
+        restored.load(file.toString());
+        assertEquals(clevis.shapes.size(), restored.shapes.size());
+        assertEquals(clevis.drawOrder.size(), restored.drawOrder.size());
+        assertEquals("r49999 rectangle 49999.00 99.00 1.00 1.00", restored.list("r49999"));
+        assertEquals(clevis.boundingBox("g").toString(), restored.boundingBox("g").toString());
+    }
+
+    @Test
+    public void testLoadRejectsOtherFiles() throws IOException {
+        clevis.square("s1", 0, 0, 1);
+        Path file = tmp.newFolder().toPath().resolve("notes.txt");
+        Files.write(file, Arrays.asList("square s1 0 0 1", "square s2 0 0 1"));
+        assertThrows(IOException.class, () -> clevis.load(file.toString()));
+        assertEquals("s1 square 0.00 0.00 1.00", clevis.list("s1"));
+    }
+
+
+    // =============================
+    // Mapped Snapshot
+    // =============================
+
+    @Test
+    public void testMappedSnapshotAnswersQueries() throws IOException {
+        clevis.rectangle("r1", 0, 0, 2, 3);
+        clevis.line("l1", 1, 1, 4, 5);
+        clevis.circle("c1", 5, 5, 1.5);
+        clevis.square("s1", -1, -1, 2);
+        clevis.group("inner", Arrays.asList("l1", "c1"));
+        clevis.move("inner", 1, 0);
+        clevis.group("outer", Arrays.asList("inner", "s1"));
+        clevis.move("outer", 0, 2);
+        clevis.line("l2", 20, 20, 30, 30);
+        Path file = tmp.newFolder().toPath().resolve("drawing.clv");
+        clevis.save(file.toString());
+
+        try (MappedSnapshot archive = MappedSnapshot.open(file)) {
+            assertEquals(clevis.listAll(), ShapeListFormatter.listAll(archive));
+            assertEquals(clevis.list("outer"), ShapeListFormatter.list(archive, "outer"));
+            for (String name : Arrays.asList("r1", "l1", "c1", "s1", "inner", "outer", "l2")) {
+                assertEquals(name, clevis.boundingBox(name).toString(),
+                        ShapeQueryHandler.boundingBox(archive, name).toString());
+                for (String other : Arrays.asList("r1", "l1", "c1", "s1", "inner", "outer", "l2")) {
+                    assertEquals(name + " " + other, clevis.intersect(name, other),
+                            ShapeQueryHandler.intersect(archive, name, other));
+                }
+            }
+            for (double x = -2; x <= 8; x += 0.5) {
+                for (double y = -2; y <= 10; y += 0.5) {
+                    int id = ShapeQueryHandler.shapeAt(archive, x, y);
+                    assertEquals(clevis.shapeAt(x, y), id == PrimitiveShapeStore.NO_SHAPE ? null : archive.name(id));
+                }
+            }
+            assertEquals(PrimitiveShapeStore.NO_SHAPE, archive.id("missing"));
+            assertThrows(IllegalArgumentException.class, () -> ShapeListFormatter.list(archive, "c1"));
+
+            assertEquals(clevis.intersectAll().toString(), ShapeQueryHandler.intersectAll(archive).toString());
+            assertFalse(clevis.intersectAll().isEmpty());
+            for (ShapeQueryHandler.RegionMode mode : ShapeQueryHandler.RegionMode.values()) {
+                for (double x = -3; x <= 8; x += 1.5) {
+                    List<String> found = new ArrayList<>();
+                    ShapeQueryHandler.shapesIn(archive, x, x, 3, 4, mode, id -> found.add(archive.name(id)));
+                    assertEquals(mode + " " + x, clevis.shapesIn(x, x, 3, 4, mode), found);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testScriptOnOpenedSnapshot() throws IOException {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        Path file = tmp.newFolder().toPath().resolve("drawing.clv");
+        clevis.save(file.toString());
+        Path dir = tmp.newFolder().toPath();
+        Path script = Files.write(dir.resolve("commands.txt"),
+                Arrays.asList("boundingbox r1", "square s1 0 0 1", "shapeAt 0 1", "shapesIn 1 1 5 5",
+                        "intersectAll"));
+        PrintStream original = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true));
+        try {
+            Application.main(new String[] {"-html", dir.resolve("log.html").toString(),
+                    "-txt", dir.resolve("log.txt").toString(), "-script", script.toString(),
+                    "-open", file.toString()});
+        } finally {
+            System.setOut(original);
+        }
+        assertEquals("0.00 0.00 2.00 2.00\nError: The opened snapshot is read-only.\nShape at (0.0, 1.0): r1\n"
+                        + "r1\nNo intersecting shapes found.\n",
+                captured.toString().replace(System.lineSeparator(), "\n"));
+    }
+
+
+    // =============================
+    // Journal
+    // =============================
+
+    @Test
+    public void testJournalRecoversDrawing() throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        Journal journal = Journal.open(dir, 1000, false);
+        Clevis drawing = journal.recover();
+        drawing.rectangle("r1", 0, 0, 2, 2);
+        drawing.line("l1", 0, 0, 3, 3);
+        drawing.circle("c1", 5, 5, 1);
+        drawing.square("s1", 1, 1, 1);
+        drawing.group("g1", Arrays.asList("r1", "l1"));
+        drawing.move("g1", 2, 2);
+        drawing.flatten("g1");
+        drawing.move("c1", -1, 0);
+        drawing.deleteShape("s1");
+        drawing.square("s1", 9, 9, 1);
+        drawing.ungroup("g1");
+        assertThrows(IllegalArgumentException.class, () -> drawing.square("s1", 0, 0, 1));
+        String listing = drawing.listAll();
+        // Not closed, as after a crash
+        assertEquals(11, journal.lastSequence());
+
+        Journal reopened = Journal.open(dir, 1000, false);
+        Clevis recovered = reopened.recover();
+        assertEquals(listing, recovered.listAll());
+        assertEquals(drawing.nextZ(), recovered.nextZ());
+        assertEquals(11, reopened.lastSequence());
+        recovered.circle("c2", 0, 0, 1);
+        reopened.close();
+        journal.close();
+        assertEquals(listing + "\n" + "c2 circle 0.00 0.00 1.00",
+                Journal.open(dir, 1000, false).recover().listAll());
+    }
+
+    @Test
+    public void testJournalCheckpointsAndReplaysTail() throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        Journal journal = Journal.open(dir, 100, false);
+        Clevis drawing = journal.recover();
+        for (int i = 0; i < 250; i++) {
+            drawing.square("s" + i, i, 0, 1);
+        }
+        drawing.move("s7", 0, 5);
+        journal.close();
+
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            List<String> names = new ArrayList<>();
+            files.forEach(file -> names.add(file.getFileName().toString()));
+            names.sort(null);
+            assertEquals(Arrays.asList("checkpoint-00000000000000000200.clv",
+                    "journal-00000000000000000201.log"), names);
+        }
+        Clevis recovered = Journal.open(dir, 100, false).recover();
+        assertEquals(drawing.listAll(), recovered.listAll());
+    }
+
+    @Test
+    public void testJournalIgnoresTornRecord() throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        Journal journal = Journal.open(dir, 1000, false);
+        Clevis drawing = journal.recover();
+        drawing.rectangle("r1", 0, 0, 2, 2);
+        drawing.rectangle("r2", 1, 1, 2, 2);
+        journal.close();
+        Path segment = dir.resolve("journal-00000000000000000001.log");
+        byte[] bytes = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOf(bytes, bytes.length - 3));
+
+        Journal reopened = Journal.open(dir, 1000, false);
+        Clevis recovered = reopened.recover();
+        assertEquals("r1 rectangle 0.00 0.00 2.00 2.00", recovered.listAll());
+        recovered.square("s1", 0, 0, 1);
+        reopened.close();
+        assertEquals("r1 rectangle 0.00 0.00 2.00 2.00\ns1 square 0.00 0.00 1.00",
+                Journal.open(dir, 1000, false).recover().listAll());
+    }
+
+    @Test
+    public void testJournalCheckpointsLoadedDrawing() throws IOException {
+        clevis.circle("c1", 0, 0, 1);
+        Path file = tmp.newFolder().toPath().resolve("drawing.clv");
+        clevis.save(file.toString());
+
+        Path dir = tmp.newFolder().toPath();
+        Journal journal = Journal.open(dir, 1000, false);
+        Clevis drawing = journal.recover();
+        drawing.square("s1", 0, 0, 1);
+        drawing.load(file.toString());
+        drawing.move("c1", 1, 1);
+        journal.close();
+        assertEquals("c1 circle 1.00 1.00 1.00", Journal.open(dir, 1000, false).recover().listAll());
+    }
+
+
+    // =============================
+    // Undo and Redo
+    // =============================
+
+    @Test
+    public void testUndoRedoCreation() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 5, 5, 1);
+        assertTrue(clevis.undo());
+        assertEquals("r1 rectangle 0.00 0.00 2.00 2.00", clevis.listAll());
+        assertTrue(clevis.undo());
+        assertEquals("", clevis.listAll());
+        assertFalse(clevis.undo());
+        assertTrue(clevis.redo());
+        assertTrue(clevis.redo());
+        assertFalse(clevis.redo());
+        assertEquals("c1", clevis.shapeAt(5, 5.9));
+        assertEquals("r1 rectangle 0.00 0.00 2.00 2.00\nc1 circle 5.00 5.00 1.00", clevis.listAll());
+    }
+
+    @Test
+    public void testNewEditClearsRedo() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.undo();
+        clevis.square("s1", 0, 0, 1);
+        assertFalse(clevis.redo());
+        assertEquals("s1 square 0.00 0.00 1.00", clevis.listAll());
+    }
+
+    @Test
+    public void testUndoMoveAndDelete() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.line("l1", 0, 0, 4, 4);
+        clevis.move("r1", 3, 1);
+        clevis.deleteShape("l1");
+        assertNull(clevis.shapeAt(1, 1.05));
+
+        clevis.undo();
+        assertEquals("l1", clevis.shapeAt(1, 1.05));
+        assertEquals("r1 rectangle 3.00 1.00 2.00 2.00\nl1 line 0.00 0.00 4.00 4.00", clevis.listAll());
+        clevis.undo();
+        assertEquals("r1 rectangle 0.00 0.00 2.00 2.00", clevis.list("r1"));
+        clevis.redo();
+        clevis.redo();
+        assertEquals("r1 rectangle 3.00 1.00 2.00 2.00", clevis.listAll());
+        assertThrows(IllegalArgumentException.class, () -> clevis.list("l1"));
+    }
+
+    @Test
+    public void testUndoGroupAndUngroup() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 5, 5, 1);
+        clevis.group("g1", Arrays.asList("r1", "c1"));
+        clevis.move("g1", 10, 0);
+        clevis.ungroup("g1");
+        assertEquals("r1 rectangle 10.00 0.00 2.00 2.00\nc1 circle 15.00 5.00 1.00", clevis.listAll());
+
+        clevis.undo();
+        assertEquals("g1", clevis.shapeAt(15, 5));
+        assertEquals("g1 group r1 c1\n  c1 circle 15.00 5.00 1.00\n  r1 rectangle 10.00 0.00 2.00 2.00",
+                clevis.listAll());
+        clevis.undo();
+        clevis.undo();
+        assertEquals("r1 rectangle 0.00 0.00 2.00 2.00\nc1 circle 5.00 5.00 1.00", clevis.listAll());
+        assertEquals("c1", clevis.shapeAt(5, 5));
+        clevis.redo();
+        assertThrows(IllegalArgumentException.class, () -> clevis.group("g2", Arrays.asList("r1")));
+        BoundingBox bbox = clevis.boundingBox("g1");
+        assertEquals(0.0, bbox.x, 0.01);
+        assertEquals(6.0, bbox.w, 0.01);
+    }
+
+    @Test
+    public void testUndoDeleteGroupRestoresMembers() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 5, 5, 1);
+        clevis.group("g1", Arrays.asList("r1", "c1"));
+        clevis.square("s1", 20, 20, 1);
+        clevis.group("g2", Arrays.asList("g1", "s1"));
+        clevis.deleteShape("g2");
+        assertEquals("", clevis.listAll());
+
+        clevis.undo();
+        assertEquals("g2", clevis.shapeAt(1, 1));
+        clevis.ungroup("g2");
+        clevis.ungroup("g1");
+        assertEquals("r1 rectangle 0.00 0.00 2.00 2.00\nc1 circle 5.00 5.00 1.00\ns1 square 20.00 20.00 1.00",
+                clevis.listAll());
+    }
+
+    @Test
+    public void testUndoDeleteOfGroupMember() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 5, 5, 1);
+        clevis.group("g1", Arrays.asList("r1", "c1"));
+        clevis.move("g1", 1, 0);
+        clevis.deleteShape("r1");
+        assertNull(clevis.shapes.get("r1"));
+        clevis.undo();
+        assertEquals("r1", clevis.shapes.get("r1").name());
+        assertThrows(IllegalArgumentException.class, () -> clevis.group("g2", Arrays.asList("r1")));
+        clevis.ungroup("g1");
+        assertEquals("r1 rectangle 1.00 0.00 2.00 2.00", clevis.list("r1"));
+    }
+
+    @Test
+    public void testLoadClearsHistory() throws IOException {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        Path file = tmp.newFolder().toPath().resolve("drawing.clv");
+        clevis.save(file.toString());
+        clevis.square("s1", 0, 0, 1);
+        clevis.load(file.toString());
+        assertFalse(clevis.undo());
+        assertEquals("r1 rectangle 0.00 0.00 2.00 2.00", clevis.listAll());
+    }
+
+    @Test
+    public void testJournalRecordsUndoAndRedo() throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        Journal journal = Journal.open(dir, 1000, false);
+        Clevis drawing = journal.recover();
+        drawing.rectangle("r1", 0, 0, 2, 2);
+        drawing.circle("c1", 5, 5, 1);
+        drawing.square("s1", 9, 9, 1);
+        drawing.group("g1", Arrays.asList("r1", "c1"));
+        drawing.move("g1", 1, 1);
+        drawing.ungroup("g1");
+        drawing.undo();
+        drawing.group("g2", Arrays.asList("g1", "s1"));
+        drawing.deleteShape("c1");
+        drawing.undo();
+        drawing.deleteShape("g2");
+        drawing.undo();
+        drawing.move("c1", 0, 1);
+        drawing.deleteShape("c1");
+        drawing.undo();
+        drawing.line("l1", 0, 0, 1, 1);
+        drawing.deleteShape("l1");
+        drawing.undo();
+        drawing.undo();
+        drawing.redo();
+        String listing = drawing.listAll();
+        String hit = drawing.shapeAt(6, 6);
+        journal.close();
+
+        Clevis recovered = Journal.open(dir, 1000, false).recover();
+        assertEquals(listing, recovered.listAll());
+        assertEquals(hit, recovered.shapeAt(6, 6));
+        assertFalse(recovered.undo());
+    }
+
+    @Test
+    public void testScriptUndoRedo() throws IOException {
+        String output = runScript("square s1 0 0 1", "undo", "listAll", "undo", "redo", "redo", "listAll");
+        assertTrue(output.contains("No shapes have been created yet."));
+        assertTrue(output.contains("Error: Nothing to undo."));
+        assertTrue(output.contains("Error: Nothing to redo."));
+        assertTrue(output.contains("s1 square 0.00 0.00 1.00"));
+    }
+
+
+    // =============================
+    // Draw Order
+    // =============================
+
+    @Test
+    public void testDrawOrderMatchesArrayList() {
+        Random random = new Random(16);
+        DrawOrder order = new DrawOrder();
+        List<Shape> expected = new ArrayList<>();
+        List<Shape> pool = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            pool.add(new Square("s" + i, i, i, 0, 1));
+        }
+        for (int step = 0; step < 20000; step++) {
+            int op = random.nextInt(10);
+            if (op < 4 || expected.isEmpty()) {
+                Shape shape = pool.get(random.nextInt(pool.size()));
+                if (!expected.contains(shape)) {
+                    if (op == 0) {
+                        int index = random.nextInt(expected.size() + 1);
+                        expected.add(index, shape);
+                        order.add(index, shape);
+                    } else {
+                        expected.add(shape);
+                        order.add(shape);
+                    }
+                }
+            } else if (op < 7) {
+                Shape shape = pool.get(random.nextInt(pool.size()));
+                assertEquals(expected.remove(shape), order.remove(shape));
+            } else if (op < 8) {
+                int index = random.nextInt(expected.size());
+                assertSame(expected.remove(index), order.remove(index));
+            } else {
+                int index = random.nextInt(expected.size());
+                assertSame(expected.get(index), order.get(index));
+                assertEquals(index, order.indexOf(expected.get(index)));
+            }
+            assertEquals(expected.size(), order.size());
+        }
+        assertEquals(expected, new ArrayList<>(order));
+        assertArrayEquals(expected.toArray(new Shape[0]), order.toArray(new Shape[0]));
+        assertEquals(-1, order.indexOf(new Square("x", 0, 0, 0, 1)));
+    }
+
+    @Test
+    public void testDrawOrderIteratorRemove() {
+        DrawOrder order = new DrawOrder();
+        List<Shape> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            Shape shape = new Square("s" + i, i, i, 0, 1);
+            order.add(shape);
+            expected.add(shape);
+        }
+        // Removing most shapes compacts the slots mid-iteration
+        order.removeIf(shape -> shape.z() % 7 != 0);
+        expected.removeIf(shape -> shape.z() % 7 != 0);
+        assertEquals(expected, order);
+        assertThrows(IllegalArgumentException.class, () -> order.add(expected.get(0)));
+    }
+
+    @Test
+    public void testDrawOrderSetSwapsAndSorts() {
+        DrawOrder order = new DrawOrder();
+        List<Shape> expected = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Shape shape = new Square("s" + i, (i * 37) % 300, i, 0, 1);
+            order.add(shape);
+            expected.add(shape);
+        }
+        // Tombstones in the slots must not shift the indexes
+        order.removeIf(shape -> shape.name().endsWith("3"));
+        expected.removeIf(shape -> shape.name().endsWith("3"));
+
+        Collections.swap(order, 0, 100);
+        Collections.swap(expected, 0, 100);
+        assertEquals(expected, order);
+        assertEquals(100, order.indexOf(expected.get(100)));
+
+        Shape outsider = new Square("x", -1, 0, 0, 1);
+        assertSame(expected.set(5, outsider), order.set(5, outsider));
+        assertEquals(expected, order);
+        assertEquals(5, order.indexOf(outsider));
+        assertEquals(expected.size(), order.size());
+
+        order.sort(Comparator.comparingInt(Shape::z));
+        expected.sort(Comparator.comparingInt(Shape::z));
+        assertEquals(expected, order);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(i, order.indexOf(expected.get(i)));
+        }
+        assertThrows(IllegalArgumentException.class, () -> order.set(0, null));
+    }
+
+    @Test
+    public void testDeleteLargeGroup() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            clevis.square("s" + i, i, 0, 1);
+            names.add("s" + i);
+        }
+        clevis.circle("c1", -5, -5, 1);
+        clevis.group("g1", names);
+        clevis.deleteShape("g1");
+        assertEquals("c1 circle -5.00 -5.00 1.00", clevis.listAll());
+        assertEquals(1, clevis.drawOrder.size());
+        assertEquals(0, clevis.drawOrder.indexOf(clevis.shapes.get("c1")));
+    }
+
+
+    // =============================
+    // Batch Creation and Deletion
+    // =============================
+
+    @Test
+    public void testBatchCreation() {
+        clevis.square("s0", 50, 50, 1);
+        clevis.rectangles(new String[] {"r1", "r2"}, new double[] {0, 0, 2, 2, 10, 0, 1, 3});
+        clevis.lines(new String[] {"l1"}, new double[] {0, 5, 4, 5});
+        clevis.circles(new String[] {"c1", "c2"}, new double[] {20, 20, 1, 30, 30, 2});
+        clevis.squares(new String[] {"s1"}, new double[] {40, 40, 1});
+        assertEquals("s0 square 50.00 50.00 1.00\n"
+                + "r1 rectangle 0.00 0.00 2.00 2.00\n"
+                + "r2 rectangle 10.00 0.00 1.00 3.00\n"
+                + "l1 line 0.00 5.00 4.00 5.00\n"
+                + "c1 circle 20.00 20.00 1.00\n"
+                + "c2 circle 30.00 30.00 2.00\n"
+                + "s1 square 40.00 40.00 1.00", clevis.listAll());
+        assertEquals("r2", clevis.shapeAt(10.5, 0));
+        assertEquals("c2", clevis.shapeAt(32, 30));
+        assertEquals(8, clevis.nextZ());
+    }
+
+    @Test
+    public void testBatchCreationIsAllOrNothing() {
+        clevis.square("s0", 0, 0, 1);
+        assertThrows(IllegalArgumentException.class,
+                () -> clevis.rectangles(new String[] {"r1", "s0"}, new double[] {0, 0, 1, 1, 0, 0, 1, 1}));
+        assertThrows(IllegalArgumentException.class,
+                () -> clevis.circles(new String[] {"c1", "c1"}, new double[] {0, 0, 1, 0, 0, 1}));
+        assertThrows(IllegalArgumentException.class,
+                () -> clevis.squares(new String[] {"q1", "q2"}, new double[] {0, 0, 1, 0, 0, -1}));
+        assertThrows(IllegalArgumentException.class,
+                () -> clevis.lines(new String[] {"l1"}, new double[] {0, 0, 1}));
+        assertEquals("s0 square 0.00 0.00 1.00", clevis.listAll());
+        assertEquals(2, clevis.nextZ());
+    }
+
+    @Test
+    public void testBulkIndexMatchesLinearScan() {
+        Random random = new Random(17);
+        int n = 5000;
+        String[] names = new String[n];
+        double[] values = new double[n * 4];
+        for (int i = 0; i < n; i++) {
+            names[i] = "r" + i;
+            values[i * 4] = random.nextDouble() * 1000;
+            values[i * 4 + 1] = random.nextDouble() * 1000;
+            values[i * 4 + 2] = 1 + random.nextDouble() * 20;
+            values[i * 4 + 3] = 1 + random.nextDouble() * 20;
+        }
+        clevis.rectangles(names, values);
+        List<String> doomed = new ArrayList<>();
+        for (int i = 0; i < n; i += 3) {
+            doomed.add(names[i]);
+        }
+        clevis.deleteMany(doomed);
+        Clevis reference = new Clevis();
+        for (Shape shape : clevis.drawOrder) {
+            Rectangle r = (Rectangle) shape;
+            reference.rectangle(r.name(), r.x, r.y, r.w, r.h);
+        }
+        for (int i = 0; i < 500; i++) {
+            double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+            assertEquals(reference.shapeAt(x, y), clevis.shapeAt(x, y));
+        }
+    }
+
+    @Test
+    public void testDeleteManyWithGroupAndMember() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 5, 5, 1);
+        clevis.square("s1", 9, 9, 1);
+        clevis.line("l1", 0, 0, 1, 1);
+        clevis.group("g1", Arrays.asList("r1", "c1"));
+        assertThrows(IllegalArgumentException.class, () -> clevis.deleteMany(Arrays.asList("s1", "nope")));
+        assertThrows(IllegalArgumentException.class, () -> clevis.deleteMany(Arrays.asList("s1", "s1")));
+        assertEquals(3, clevis.drawOrder.size());
+
+        clevis.deleteMany(Arrays.asList("c1", "g1", "s1"));
+        assertEquals("l1 line 0.00 0.00 1.00 1.00", clevis.listAll());
+        assertNull(clevis.shapes.get("c1"));
+
+        clevis.undo();
+        assertEquals("s1 square 9.00 9.00 1.00\nl1 line 0.00 0.00 1.00 1.00\ng1 group r1 c1\n"
+                + "  c1 circle 5.00 5.00 1.00\n  r1 rectangle 0.00 0.00 2.00 2.00", clevis.listAll());
+        assertEquals("g1", clevis.shapeAt(5, 5));
+        assertEquals(Arrays.asList("s1", "l1", "g1"), namesOf(clevis.drawOrder));
+        clevis.redo();
+        assertEquals("l1 line 0.00 0.00 1.00 1.00", clevis.listAll());
+    }
+
+    @Test
+    public void testUndoBatchCreationAndBulkDelete() {
+        clevis.squares(new String[] {"a", "b", "c", "d"}, new double[] {0, 0, 1, 2, 0, 1, 4, 0, 1, 6, 0, 1});
+        clevis.deleteMany(Arrays.asList("d", "b"));
+        assertEquals(Arrays.asList("a", "c"), namesOf(clevis.drawOrder));
+        clevis.undo();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), namesOf(clevis.drawOrder));
+        assertEquals("b", clevis.shapeAt(2.5, 0.5));
+        clevis.undo();
+        assertEquals("", clevis.listAll());
+        assertNull(clevis.shapeAt(2.5, 0.5));
+        clevis.redo();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), namesOf(clevis.drawOrder));
+    }
+
+    @Test
+    public void testJournalRecordsBatches() throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        Journal journal = Journal.open(dir, 1000, false);
+        Clevis drawing = journal.recover();
+        drawing.squares(new String[] {"a", "b", "c"}, new double[] {0, 0, 1, 2, 0, 1, 4, 0, 1});
+        drawing.group("g1", Arrays.asList("a", "b"));
+        drawing.deleteMany(Arrays.asList("a", "c"));
+        drawing.undo();
+        drawing.deleteMany(Arrays.asList("g1", "c"));
+        drawing.undo();
+        String listing = drawing.listAll();
+        List<String> order = namesOf(drawing.drawOrder);
+        journal.close();
+
+        Clevis recovered = Journal.open(dir, 1000, false).recover();
+        assertEquals(listing, recovered.listAll());
+        assertEquals(order, namesOf(recovered.drawOrder));
+    }
+
+    @Test
+    public void testScriptDeleteMany() throws IOException {
+        String output = runScript("square s1 0 0 1", "square s2 5 5 1", "square s3 9 9 1",
+                "deleteMany s1 s3", "listAll", "deleteMany", "quit");
+        assertEquals("s2 square 5.00 5.00 1.00\nError: Usage: deleteMany <shape1> <shape2> ...\n", output);
+    }
+
+    private static List<String> namesOf(List<Shape> shapes) {
+        List<String> names = new ArrayList<>();
+        for (Shape shape : shapes) {
+            names.add(shape.name());
+        }
+        return names;
+    }
+
+
+    // =============================
+    // Batched shapeAt
+    // =============================
+
+    @Test
+    public void testShapeAtBatchMatchesShapeAt() {
+        Random random = new Random(18);
+        for (int i = 0; i < 3000; i++) {
+            double x = random.nextDouble() * 500, y = random.nextDouble() * 500;
+            switch (i % 4) {
+                case 0: clevis.rectangle("s" + i, x, y, 1 + random.nextDouble() * 10, 1 + random.nextDouble() * 10); break;
+                case 1: clevis.circle("s" + i, x, y, 1 + random.nextDouble() * 5); break;
+                case 2: clevis.line("s" + i, x, y, x + random.nextDouble() * 10, y + 1); break;
+                default: clevis.square("s" + i, x, y, 1 + random.nextDouble() * 8);
+            }
+        }
+        for (int g = 0; g < 100; g++) {
+            clevis.group("g" + g, Arrays.asList("s" + (g * 4), "s" + (g * 4 + 1)));
+            clevis.move("g" + g, 3, -2);
+        }
+        int n = 20000;
+        double[] xs = new double[n], ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = random.nextDouble() * 520 - 10;
+            ys[i] = random.nextDouble() * 520 - 10;
+        }
+        String[] serial = clevis.shapeAtBatch(xs, ys);
+        int hits = 0;
+        for (int i = 0; i < n; i++) {
+            assertEquals(clevis.shapeAt(xs[i], ys[i]), serial[i]);
+            hits += serial[i] == null ? 0 : 1;
+        }
+        assertTrue(hits > n / 10);
+        assertArrayEquals(serial, clevis.shapeAtBatch(xs, ys, 4));
+    }
+
+    @Test
+    public void testShapeAtBatchEdgeCases() {
+        clevis.circle("c1", 0, 0, 1);
+        assertEquals(0, clevis.shapeAtBatch(new double[0], new double[0]).length);
+        assertArrayEquals(new String[] {"c1", "c1", null},
+                clevis.shapeAtBatch(new double[] {1, 1, 5}, new double[] {0, 0, 5}));
+        assertThrows(IllegalArgumentException.class, () -> clevis.shapeAtBatch(new double[1], new double[2]));
+        assertThrows(IllegalArgumentException.class, () -> clevis.shapeAtBatch(new double[1], new double[1], 0));
+    }
+
+    @Test
+    public void testScriptShapeAtBatch() throws IOException {
+        Path points = tmp.newFolder().toPath().resolve("points.txt");
+        Files.write(points, Arrays.asList("1 0", "", "5 5"));
+        Path bad = points.resolveSibling("bad.txt");
+        Files.write(bad, Arrays.asList("1 0 3"));
+        String output = runScript("circle c1 0 0 1", "shapeAtBatch " + points, "shapeAtBatch " + bad, "quit");
+        assertEquals("Shape at (1.0, 0.0): c1\nNo shape found at (5.0, 5.0)\n"
+                + "Error: Invalid number format. Please enter valid numeric values.\n", output);
+    }
+
+    // =============================
+    // Spatial hash grid
+    // =============================
+
+    @Test
+    public void testGridDrawingMatchesTreeDrawing() {
+        Clevis tree = clevis;
+        Clevis grid = new Clevis(new SpatialHashGrid(8));
+        Random random = new Random(19);
+        List<String> names = new ArrayList<>();
+        for (int step = 0; step < 3000; step++) {
+            int op = random.nextInt(10);
+            String name = "s" + step;
+            double x = random.nextDouble() * 300 - 50, y = random.nextDouble() * 300 - 50;
+            if (op < 4 || names.size() < 2) {
+                double size = 1 + random.nextDouble() * (step % 50 == 0 ? 200 : 10);
+                for (Clevis drawing : Arrays.asList(tree, grid)) {
+                    switch (step % 3) {
+                        case 0: drawing.rectangle(name, x, y, size, size / 2); break;
+                        case 1: drawing.circle(name, x, y, size / 2); break;
+                        default: drawing.line(name, x, y, x + size, y - size);
+                    }
+                }
+                names.add(name);
+            } else if (op < 7) {
+                String target = names.get(random.nextInt(names.size()));
+                double dx = random.nextGaussian() * 20, dy = random.nextGaussian() * 20;
+                tree.move(target, dx, dy);
+                grid.move(target, dx, dy);
+            } else if (op == 7) {
+                String first = names.remove(random.nextInt(names.size()));
+                String second = names.remove(random.nextInt(names.size()));
+                tree.group(name, Arrays.asList(first, second));
+                grid.group(name, Arrays.asList(first, second));
+                names.add(name);
+            } else if (op == 8) {
+                String target = names.remove(random.nextInt(names.size()));
+                tree.deleteShape(target);
+                grid.deleteShape(target);
+            } else {
+                assertEquals(tree.undo(), grid.undo());
+                names.clear();
+                for (Shape shape : tree.drawOrder) {
+                    names.add(shape.name());
+                }
+            }
+        }
+        assertEquals(tree.listAll(), grid.listAll());
+        double[] xs = new double[5000], ys = new double[5000];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = random.nextDouble() * 400 - 100;
+            ys[i] = random.nextDouble() * 400 - 100;
+            assertEquals(tree.shapeAt(xs[i], ys[i]), grid.shapeAt(xs[i], ys[i]));
+        }
+        assertArrayEquals(tree.shapeAtBatch(xs, ys), grid.shapeAtBatch(xs, ys));
+    }
+
+    @Test
+    public void testGridSearchReportsEachShapeOnce() {
+        SpatialHashGrid grid = new SpatialHashGrid(1);
+        Rectangle wide = new Rectangle("wide", 0, -3.5, -3.5, 6, 6);
+        Rectangle huge = new Rectangle("huge", 1, -100, -100, 200, 200);
+        Circle small = new Circle("small", 2, 10, 10, 0.25);
+        grid.insertAll(Arrays.asList(wide, huge, small));
+        assertEquals(3, grid.size());
+
+        List<Shape> found = new ArrayList<>();
+        grid.search(-1000, -1000, 1000, 1000, found);
+        assertEquals(3, found.size());
+        found.clear();
+        grid.search(-2, -2, 2, 2, found);
+        assertEquals(Arrays.asList("huge", "wide"), namesOf(found).stream().sorted().collect(java.util.stream.Collectors.toList()));
+        found.clear();
+        grid.search(10.2, 10.2, 10.3, 10.3, found);
+        assertEquals(2, found.size());
+
+        // Moving within the cell keeps the stored box current; moving out relinks
+        small.translate(0.1, 0);
+        grid.update(small);
+        found.clear();
+        grid.search(10.3, 10, 10.3, 10, found);
+        assertTrue(found.contains(small));
+        small.translate(150, 0);
+        grid.update(small);
+        found.clear();
+        grid.search(9, 9, 11, 11, found);
+        assertFalse(found.contains(small));
+        found.clear();
+        grid.search(160, 10, 161, 10, found);
+        assertEquals(Arrays.asList(small), found);
+
+        assertTrue(grid.remove(wide));
+        assertFalse(grid.remove(wide));
+        assertThrows(IllegalArgumentException.class, () -> grid.insert(huge));
+        grid.clear();
+        assertEquals(0, grid.size());
+        assertThrows(IllegalArgumentException.class, () -> new SpatialHashGrid(0));
+        assertThrows(IllegalArgumentException.class, () -> new SpatialHashGrid(Double.NaN));
+    }
+
+    @Test(timeout = 10000)
+    public void testGridHandlesExtremeCoordinates() {
+        SpatialHashGrid grid = new SpatialHashGrid(1);
+        // Cells at and past the edge of the int range
+        Square edge = new Square("edge", 0, Integer.MAX_VALUE - 0.5, Integer.MAX_VALUE - 0.5, 1);
+        Square far = new Square("far", 1, 1e300, 1e300, 1);
+        Square low = new Square("low", 2, -1e300, -1e300, 1);
+        grid.insertAll(Arrays.asList(edge, far, low));
+
+        List<Shape> found = new ArrayList<>();
+        grid.search(Integer.MAX_VALUE, Integer.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, found);
+        assertEquals(Arrays.asList("edge", "far"), namesOf(found).stream().sorted().collect(java.util.stream.Collectors.toList()));
+        found.clear();
+        grid.search(-Double.MAX_VALUE, -Double.MAX_VALUE, -1e299, -1e299, found);
+        assertEquals(Arrays.asList(low), found);
+
+        far.translate(0, 1);
+        grid.update(far);
+        edge.translate(1, 0);
+        grid.update(edge);
+        found.clear();
+        grid.search(1e300, 1e300, Double.MAX_VALUE, Double.MAX_VALUE, found);
+        assertEquals(Arrays.asList(far), found);
+        assertTrue(grid.remove(edge));
+        assertTrue(grid.remove(far));
+        assertEquals(1, grid.size());
+    }
+
+    @Test
+    public void testClevisRejectsUsedIndex() {
+        SpatialIndex index = new SpatialHashGrid(4);
+        index.insert(new Circle("c1", 0, 0, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new Clevis(index));
+    }
+
+    // =============================
+    // Region queries
+    // =============================
+
+    @Test
+    public void testShapesInTouchingUsesExactGeometry() {
+        clevis.rectangle("r1", 0, 0, 4, 4);
+        clevis.circle("c1", 10, 10, 3);
+        // The line's bounding box overlaps the region, the line itself passes below it
+        clevis.line("l1", 4, 10, 10, 4);
+        clevis.square("s1", 20, 20, 1);
+        ShapeQueryHandler.RegionMode touching = ShapeQueryHandler.RegionMode.TOUCHING;
+
+        assertEquals(Arrays.asList("r1"), clevis.shapesIn(1, 1, 1, 1, touching));
+        assertEquals(Arrays.asList("c1"), clevis.shapesIn(11.5, 11.5, 1, 1, touching));
+        // The region is inside the circle's bounding box but clear of the circle
+        assertTrue(clevis.shapesIn(12.9, 12.9, 1, 1, touching).isEmpty());
+        assertTrue(clevis.shapesIn(4.5, 4.5, 1, 1, touching).isEmpty());
+        assertEquals(Arrays.asList("l1"), clevis.shapesIn(6.5, 6.5, 1, 1, touching));
+        // Edges count, and results come bottom shape first
+        assertEquals(Arrays.asList("r1", "c1", "l1", "s1"), clevis.shapesIn(0, 0, 20, 20, touching));
+    }
+
+    @Test
+    public void testShapesInContained() {
+        clevis.rectangle("r1", 0, 0, 4, 4);
+        clevis.circle("c1", 10, 10, 3);
+        clevis.line("l1", 4, 10, 10, 4);
+        ShapeQueryHandler.RegionMode contained = ShapeQueryHandler.RegionMode.CONTAINED;
+
+        assertEquals(Arrays.asList("r1", "l1"), clevis.shapesIn(0, 0, 10, 10, contained));
+        assertEquals(Arrays.asList("r1", "c1", "l1"), clevis.shapesIn(0, 0, 13, 13, contained));
+        assertTrue(clevis.shapesIn(1, 1, 2, 2, contained).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> clevis.shapesIn(0, 0, -1, 1, contained));
+        assertThrows(IllegalArgumentException.class, () -> clevis.shapesIn(Double.NaN, 0, 1, 1, contained));
+    }
+
+    @Test
+    public void testShapesInGroupsAndMatchesScan() {
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 20, 20, 1);
+        clevis.group("g1", Arrays.asList("r1", "c1"));
+        clevis.move("g1", 100, 0);
+        ShapeQueryHandler.RegionMode touching = ShapeQueryHandler.RegionMode.TOUCHING;
+
+        // The region lies between the members, inside the group's box
+        assertTrue(clevis.shapesIn(110, 10, 2, 2, touching).isEmpty());
+        assertEquals(Arrays.asList("g1"), clevis.shapesIn(119, 19, 1, 1, touching));
+        assertTrue(clevis.shapesIn(0, 0, 5, 5, touching).isEmpty());
+        assertTrue(clevis.shapesIn(100, 0, 25, 25, ShapeQueryHandler.RegionMode.CONTAINED).contains("g1"));
+
+        clevis.deleteShape("g1");
+        Random random = new Random(20);
+        for (int i = 0; i < 500; i++) {
+            double x = random.nextDouble() * 200, y = random.nextDouble() * 200;
+            if (i % 2 == 0) {
+                clevis.circle("c" + (i + 2), x, y, 1 + random.nextDouble() * 5);
+            } else {
+                clevis.line("l" + i, x, y, x + random.nextGaussian() * 10, y + random.nextGaussian() * 10);
+            }
+        }
+        for (int q = 0; q < 200; q++) {
+            double x = random.nextDouble() * 200, y = random.nextDouble() * 200;
+            double w = random.nextDouble() * 30, h = random.nextDouble() * 30;
+            List<String> expected = new ArrayList<>();
+            for (Shape shape : clevis.drawOrder) {
+                if (shape instanceof Circle c && ShapeQueryHandler.circleIntersectsRectangle(c.centerX, c.centerY, c.radius, x, y, w, h)
+                        || shape instanceof Line l && ShapeQueryHandler.lineIntersectsRectangle(l.x1, l.y1, l.x2, l.y2, x, y, w, h)) {
+                    expected.add(shape.name());
+                }
+            }
+            assertEquals(expected, clevis.shapesIn(x, y, w, h, touching));
+        }
+    }
+
+    @Test
+    public void testScriptShapesIn() throws IOException {
+        String output = runScript("rectangle r1 0 0 4 4", "circle c1 10 10 3",
+                "shapesIn 0 0 20 20", "shapesIn 0 0 5 5 contained", "shapesIn 50 50 1 1",
+                "shapesIn 0 0 1 1 inside", "shapesIn 0 0 -1 1", "quit");
+        assertEquals("r1\nc1\nr1\nNo shapes found in (50.0, 50.0, 1.0, 1.0)\n"
+                + "Error: Usage: shapesIn <x> <y> <w> <h> [contained|touching]\n"
+                + "Error: Region width and height must not be negative\n", output);
+    }
+
+    // =============================
+    // Culled rendering
+    // =============================
+
+    @Test
+    public void testRendererDrawsOnlyShapesInArea() {
+        clevis.rectangle("r1", 10, 10, 20, 20);
+        clevis.circle("c1", 50, 50, 5);
+        for (int i = 0; i < 1000; i++) {
+            clevis.square("far" + i, 5000 + i * 10, 5000, 5);
+        }
+        clevis.rectangle("m1", 60, 10, 5, 5);
+        clevis.rectangle("m2", 3000, 3000, 5, 5);
+        clevis.group("g1", Arrays.asList("m1", "m2"));
+
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(100, 100, java.awt.image.BufferedImage.TYPE_INT_RGB);
+        java.awt.Graphics2D g2 = image.createGraphics();
+        g2.setColor(java.awt.Color.WHITE);
+        assertEquals(3, new ShapeRenderer().render(clevis, g2, 0, 0, 100, 100));
+        g2.dispose();
+
+        int white = java.awt.Color.WHITE.getRGB();
+        assertEquals(white, image.getRGB(10, 20));
+        assertEquals(white, image.getRGB(55, 50));
+        assertEquals(white, image.getRGB(60, 12));
+        assertNotEquals(white, image.getRGB(20, 20));
+        assertNotEquals(white, image.getRGB(90, 90));
+    }
+
+    @Test
+    public void testRendererIncludesOutlinesJustOutsideArea() {
+        clevis.line("l1", 0, 101, 100, 101);
+        clevis.line("l2", 0, 110, 100, 110);
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(100, 100, java.awt.image.BufferedImage.TYPE_INT_RGB);
+        java.awt.Graphics2D g2 = image.createGraphics();
+        assertEquals(1, new ShapeRenderer().render(clevis, g2, 0, 0, 100, 100));
+        g2.dispose();
+    }
+
+    // =============================
+    // Change events
+    // =============================
+
+    @Test
+    public void testChangeEventsCarryBoxes() {
+        List<DrawingChange> changes = new ArrayList<>();
+        clevis.addListener(changes::add);
+        clevis.rectangle("r1", 0, 0, 2, 2);
+        clevis.circle("c1", 10, 10, 1);
+        clevis.group("g1", Arrays.asList("r1", "c1"));
+        clevis.move("g1", 5, 0);
+        clevis.move("r1", 0, 1);
+        clevis.ungroup("g1");
+        clevis.deleteShape("c1");
+        assertEquals("[ADDED r1, ADDED c1, GROUPED g1, MOVED g1, MOVED r1, UNGROUPED g1, DELETED c1]", changes.toString());
+
+        DrawingChange groupMove = changes.get(3);
+        assertEquals(0, groupMove.before.x, 1e-9);
+        assertEquals(5, groupMove.after.x, 1e-9);
+        assertEquals(16, groupMove.after.x + groupMove.after.w, 1e-9);
+        // A member's boxes include its group's offset
+        DrawingChange memberMove = changes.get(4);
+        assertEquals(5, memberMove.before.x, 1e-9);
+        assertEquals(1, memberMove.after.y, 1e-9);
+        assertNull(changes.get(0).before);
+        assertEquals(14, changes.get(6).before.x, 1e-9);
+        assertNull(changes.get(6).after);
+    }
+
+    @Test
+    public void testChangeEventsForUndoBatchesAndRestore() throws IOException {
+        List<DrawingChange> changes = new ArrayList<>();
+        DrawingListener listener = changes::add;
+        clevis.addListener(listener);
+        clevis.squares(new String[] {"s1", "s2"}, new double[] {0, 0, 1, 5, 5, 1});
+        clevis.deleteMany(Arrays.asList("s1", "s2"));
+        clevis.undo();
+        clevis.move("s2", 1, 1);
+        clevis.undo();
+        assertEquals("[ADDED s1, ADDED s2, DELETED s1, DELETED s2, ADDED s1, ADDED s2, MOVED s2, MOVED s2]",
+                changes.toString());
+        assertEquals(6, changes.get(7).before.x, 1e-9);
+        assertEquals(5, changes.get(7).after.x, 1e-9);
+
+        Path file = tmp.newFolder().toPath().resolve("events.clv");
+        clevis.save(file.toString());
+        changes.clear();
+        clevis.load(file.toString());
+        assertEquals(1, changes.size());
+        assertEquals(DrawingChange.Kind.RESTORED, changes.get(0).kind);
+
+        clevis.removeListener(listener);
+        clevis.circle("c1", 0, 0, 1);
+        assertEquals(1, changes.size());
+    }
+
+    // =============================
+    // Tiled PNG export
+    // =============================
+
+    @Test
+    public void testTiledRasterizerFitsDrawingAndMatchesSerial() {
+        // A 100 x 50 frame scaled by 5.92 fits a 700 x 300 image, 2 pixels from the top and
+        // bottom and centred across, from x = 54 to 646
+        clevis.rectangle("frame", 0, 0, 100, 50);
+        Random random = new Random(23);
+        for (int i = 0; i < 2000; i++) {
+            double x = 5 + random.nextDouble() * 85, y = 5 + random.nextDouble() * 35;
+            clevis.circle("c" + i, x, y, 0.5 + random.nextDouble() * 2);
+        }
+        java.awt.image.BufferedImage serial = TiledRasterizer.render(clevis, 700, 300, 1);
+        assertEquals(700, serial.getWidth());
+        assertEquals(300, serial.getHeight());
+        int white = java.awt.Color.WHITE.getRGB();
+        assertEquals(white, serial.getRGB(20, 150));
+        assertNotEquals(white, serial.getRGB(350, 2));
+        assertNotEquals(white, serial.getRGB(54, 150));
+        assertNotEquals(white, serial.getRGB(646, 150));
+
+        java.awt.image.BufferedImage parallel = TiledRasterizer.render(clevis, 700, 300, 4);
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 700; x++) {
+                assertEquals(serial.getRGB(x, y), parallel.getRGB(x, y));
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> TiledRasterizer.render(clevis, 0, 10, 1));
+        assertThrows(IllegalArgumentException.class, () -> TiledRasterizer.render(clevis, 10, 10, 0));
+    }
+
+    @Test
+    public void testScriptExportPng() throws IOException {
+        Path file = tmp.newFolder().toPath().resolve("drawing.png");
+        String output = runScript("circle c1 0 0 10", "export png " + file + " 64 48",
+                "export svg " + file + " 64 48", "export png " + file + " 0 48", "quit");
+        assertEquals("Error: Usage: export png <file> <width> <height> | export svg <file>\n"
+                + "Error: Image width and height must be positive\n", output);
+        java.awt.image.BufferedImage image = javax.imageio.ImageIO.read(file.toFile());
+        assertEquals(64, image.getWidth());
+        assertEquals(48, image.getHeight());
+        assertEquals(java.awt.Color.WHITE.getRGB(), image.getRGB(32, 24));
+        assertNotEquals(java.awt.Color.WHITE.getRGB(), image.getRGB(32, 2));
+    }
+
+
+    // =============================
+    // Streaming SVG export
+    // =============================
+
+    @Test
+    public void testSvgExportWritesShapesByZWithGroupsAsG() throws IOException {
+        clevis.rectangle("r1", 0, 0, 4, 4);
+        clevis.line("l1", 1.5, -2, 3.25, 7);
+        clevis.circle("c1", 10, 10, 1 / 3.0);
+        clevis.square("s&1", 20, 0, 1);
+        clevis.deleteShape("s&1");
+        clevis.group("g1", List.of("c1"));
+        clevis.move("g1", 5, -0.5);
+        StringWriter out = new StringWriter();
+        SvgExporter.write(out, clevis.drawOrder);
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"-2 -4 19.3333 15.8333\""
+                + " width=\"19.3333\" height=\"15.8333\">\n"
+                + "<g fill=\"none\" stroke=\"black\" stroke-width=\"2\">\n"
+                + "<rect id=\"r1\" x=\"0\" y=\"0\" width=\"4\" height=\"4\"/>\n"
+                + "<line id=\"l1\" x1=\"1.5\" y1=\"-2\" x2=\"3.25\" y2=\"7\"/>\n"
+                + "<g id=\"g1\">\n"
+                + "<circle id=\"c1\" cx=\"15\" cy=\"9.5\" r=\"0.3333\"/>\n"
+                + "</g>\n"
+                + "</g>\n</svg>\n", out.toString());
+
+        // Members of a group that moved by an offset keep their own coordinates
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i <= Group.EAGER_MEMBERS; i++) {
+            clevis.square("q" + i, i, 0, 1);
+            names.add("q" + i);
+        }
+        clevis.group("big", names);
+        clevis.move("big", 5, -0.5);
+        out = new StringWriter();
+        SvgExporter.write(out, clevis.drawOrder);
+        assertTrue(out.toString(), out.toString().contains("<g id=\"big\" transform=\"translate(5 -0.5)\">\n"
+                + "<rect id=\"q0\" x=\"0\" y=\"0\" width=\"1\" height=\"1\"/>\n"));
+    }
+
+    @Test
+    public void testSvgExportFormatsNumbersAndEscapesNames() throws IOException {
+        clevis.rectangle("a<\"b\">&", -0.00001, 0.99999, 1e20, 123456789.125);
+        clevis.square("s1", -7.00005, 1e15, 0.1);
+        StringWriter out = new StringWriter();
+        SvgExporter.write(out, clevis.drawOrder);
+        String svg = out.toString();
+        assertTrue(svg, svg.contains("<rect id=\"a&lt;&quot;b&quot;&gt;&amp;\" x=\"0\" y=\"1\" width=\"1.0E20\""
+                + " height=\"123456789.125\"/>\n"));
+        assertTrue(svg, svg.contains("<rect id=\"s1\" x=\"-7.0001\" y=\"1000000000000000\" width=\"0.1\""
+                + " height=\"0.1\"/>\n"));
+
+        StringWriter empty = new StringWriter();
+        SvgExporter.write(empty, new Clevis().drawOrder);
+        assertTrue(empty.toString(), empty.toString().contains("viewBox=\"-2 -2 4 4\""));
+    }
+
+    @Test
+    public void testScriptExportSvg() throws IOException {
+        Path file = tmp.newFolder().toPath().resolve("drawing.svg");
+        String output = runScript("circle c1 0 0 10", "export svg " + file, "export svg", "quit");
+        assertEquals("Error: Usage: export png <file> <width> <height> | export svg <file>\n", output);
+        String svg = Files.readString(file);
+        assertTrue(svg, svg.contains("<circle id=\"c1\" cx=\"0\" cy=\"0\" r=\"10\"/>\n"));
+        assertTrue(svg, svg.endsWith("</svg>\n"));
+    }
+
+
+    // =============================
+    // Level-of-detail rendering
+    // =============================
+
+    @Test
+    public void testDensityPyramidLevels() {
+        assertEquals(0, DensityPyramid.levelOf(0.5));
+        assertEquals(0, DensityPyramid.levelOf(0.99));
+        assertEquals(1, DensityPyramid.levelOf(1));
+        assertEquals(DensityPyramid.MIN_LEVEL, DensityPyramid.levelOf(0));
+        assertEquals(DensityPyramid.MAX_LEVEL + 1, DensityPyramid.levelOf(Double.POSITIVE_INFINITY));
+        assertEquals(0, DensityPyramid.detailLevel(1));
+        assertEquals(0, DensityPyramid.detailLevel(0.75));
+        assertEquals(1, DensityPyramid.detailLevel(0.5));
+        assertEquals(-2, DensityPyramid.detailLevel(3));
+        assertEquals(DensityPyramid.MIN_LEVEL, DensityPyramid.detailLevel(1e6));
+        assertEquals(DensityPyramid.MAX_LEVEL, DensityPyramid.detailLevel(1e-30));
+        assertThrows(IllegalArgumentException.class, () -> DensityPyramid.detailLevel(0));
+    }
+
+    @Test
+    public void testDensityPyramidCountsOrCollectsEveryShape() {
+        DensityPyramid pyramid = new DensityPyramid();
+        List<Shape> shapes = new ArrayList<>();
+        Random random = new Random(25);
+        for (int step = 0; step < 4000; step++) {
+            int op = random.nextInt(10);
+            if (op < 5 || shapes.size() < 2) {
+                double x = random.nextDouble() * 200 - 100, y = random.nextDouble() * 200 - 100;
+                double size = Math.pow(10, random.nextDouble() * 6 - 3) * (step % 500 == 0 ? 1e7 : 1);
+                Shape shape = step % 2 == 0 ? new Circle("s" + step, step, x, y, size / 2)
+                        : new Line("s" + step, step, x, y, x + size, y - size / 3);
+                pyramid.insert(shape);
+                shapes.add(shape);
+            } else if (op < 8) {
+                Shape shape = shapes.get(random.nextInt(shapes.size()));
+                shape.translate(random.nextGaussian() * 30, random.nextGaussian() * 30);
+                pyramid.update(shape);
+            } else {
+                assertTrue(pyramid.remove(shapes.remove(random.nextInt(shapes.size()))));
+            }
+        }
+        assertEquals(shapes.size(), pyramid.size());
+
+        double[] box = new double[4];
+        for (int query = 0; query < 200; query++) {
+            double x = random.nextDouble() * 300 - 150, y = random.nextDouble() * 300 - 150;
+            double w = random.nextDouble() * 40, h = random.nextDouble() * 40;
+            List<String> expected = new ArrayList<>();
+            for (Shape shape : shapes) {
+                shape.bounds(box);
+                if (box[0] <= x + w && box[2] >= x && box[1] <= y + h && box[3] >= y) {
+                    expected.add(shape.name());
+                }
+            }
+            List<Shape> found = new ArrayList<>();
+            pyramid.search(x, y, x + w, y + h, found);
+            Collections.sort(expected);
+            List<String> names = namesOf(found);
+            Collections.sort(names);
+            assertEquals(expected, names);
+        }
+
+        // Over the whole plane, each shape is either collected or counted in one cell,
+        // whether the shapes were added one by one or in bulk
+        DensityPyramid bulk = new DensityPyramid();
+        bulk.insertAll(shapes);
+        for (int level = -3; level <= 4; level++) {
+            int detail = level;
+            List<String> cells = new ArrayList<>();
+            for (DensityPyramid built : Arrays.asList(pyramid, bulk)) {
+                List<Shape> collected = new ArrayList<>();
+                int[] counted = new int[1];
+                StringBuilder seen = new StringBuilder();
+                built.query(detail, -1e12, -1e12, 1e12, 1e12, collected, (cx, cy, side, count) -> {
+                    assertEquals(Math.scalb(1.0, detail), side, 0);
+                    counted[0] += count;
+                    seen.append(cx).append(',').append(cy).append('=').append(count).append(' ');
+                });
+                assertEquals(shapes.size(), collected.size() + counted[0]);
+                for (Shape shape : collected) {
+                    shape.bounds(box);
+                    assertTrue(DensityPyramid.levelOf(Math.max(box[2] - box[0], box[3] - box[1])) > detail);
+                }
+                String[] sorted = seen.toString().split(" ");
+                Arrays.sort(sorted);
+                cells.add(String.join(" ", sorted));
+            }
+            assertEquals(cells.get(0), cells.get(1));
+        }
+        assertThrows(IllegalArgumentException.class, () -> pyramid.insert(shapes.get(0)));
+        pyramid.clear();
+        assertEquals(0, pyramid.size());
+    }
+
+    @Test
+    public void testLevelOfDetailRendererFollowsDrawing() {
+        clevis.rectangle("frame", 0, 0, 100, 100);
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                clevis.circle("c" + i + "_" + j, i + 0.5, j + 0.5, 0.2);
+            }
+        }
+        LevelOfDetailRenderer lod = new LevelOfDetailRenderer(clevis);
+        clevis.addListener(lod);
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(120, 120,
+                java.awt.image.BufferedImage.TYPE_INT_RGB);
+        java.awt.Graphics2D g2 = image.createGraphics();
+        g2.setColor(java.awt.Color.WHITE);
+        g2.fillRect(0, 0, 120, 120);
+        g2.setColor(java.awt.Color.BLACK);
+
+        // One pixel per unit: the circles, 0.4 across, become one point per unit cell
+        assertEquals(1, lod.render(g2, 1, -10, -10, 0, 0, 120, 120));
+        int white = java.awt.Color.WHITE.getRGB();
+        assertNotEquals(white, image.getRGB(60, 60));
+        assertEquals(white, image.getRGB(5, 5));
+        // Zoomed in 8 times on a 10 by 10 corner, the circles there are drawn in full
+        assertEquals(101, lod.render(g2, 8, 0, 0, 0, 0, 80, 80));
+
+        clevis.group("g", Arrays.asList("c0_0", "c1_0"));
+        assertEquals(2, lod.render(g2, 1, -10, -10, 0, 0, 120, 120));
+        assertEquals(100, lod.render(g2, 8, 0, 0, 0, 0, 80, 80));
+        clevis.ungroup("g");
+        assertEquals(1, lod.render(g2, 1, -10, -10, 0, 0, 120, 120));
+        clevis.move("c5_5", 0, 200);
+        clevis.deleteShape("frame");
+        assertEquals(99, lod.render(g2, 8, 0, 0, 0, 0, 80, 80));
+        clevis.undo();
+        assertEquals(100, lod.render(g2, 8, 0, 0, 0, 0, 80, 80));
+        clevis.restore(new ArrayList<>(), 0);
+        assertEquals(0, lod.render(g2, 8, 0, 0, 0, 0, 80, 80));
+        g2.dispose();
+    }
+
+
+    @Test(timeout = 10000)
+    public void testLevelOfDetailRendererWaitsForDrawing() throws InterruptedException {
+        clevis.rectangle("r1", 0, 0, 10, 10);
+        LevelOfDetailRenderer lod = new LevelOfDetailRenderer(clevis);
+        clevis.addListener(lod);
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(20, 20,
+                java.awt.image.BufferedImage.TYPE_INT_RGB);
+        int[] drawn = {-1};
+        Thread viewer = new Thread(() -> {
+            java.awt.Graphics2D g2 = image.createGraphics();
+            drawn[0] = lod.render(g2, 1, 0, 0, 0, 0, 20, 20);
+            g2.dispose();
+        });
+        // A frame cannot be rendered while the drawing is being changed
+        synchronized (clevis) {
+            viewer.start();
+            viewer.join(200);
+            assertTrue(viewer.isAlive());
+            clevis.move("r1", 100, 100);
+        }
+        viewer.join();
+        assertEquals(0, drawn[0]);
+    }
+
+
+    @Test
+    public void testLevelOfDetailRendererFollowsMovedMember() {
+        clevis.rectangle("r1", 0, 0, 10, 10);
+        clevis.rectangle("r2", 20, 0, 10, 10);
+        clevis.group("g1", Arrays.asList("r1", "r2"));
+        clevis.group("g2", Arrays.asList("g1"));
+        LevelOfDetailRenderer lod = new LevelOfDetailRenderer(clevis);
+        clevis.addListener(lod);
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(100, 100,
+                java.awt.image.BufferedImage.TYPE_INT_RGB);
+        java.awt.Graphics2D g2 = image.createGraphics();
+
+        clevis.move("r1", 5000, 5000);
+        assertEquals(Arrays.asList("g2"), clevis.shapesIn(4990, 4990, 30, 30, ShapeQueryHandler.RegionMode.TOUCHING));
+        assertEquals(1, lod.render(g2, 1, 4960, 4960, 0, 0, 100, 100));
+        // The group's box now spans both members, so the gap between them still finds it
+        assertEquals(1, lod.render(g2, 1, 2000, 2000, 0, 0, 100, 100));
+        clevis.undo();
+        assertEquals(1, lod.render(g2, 1, -10, -10, 0, 0, 100, 100));
+        assertEquals(0, lod.render(g2, 1, 4960, 4960, 0, 0, 100, 100));
+        g2.dispose();
+        assertEquals("g2", clevis.topLevelOf("r1"));
+        assertEquals("g2", clevis.topLevelOf("g2"));
+        assertNull(clevis.topLevelOf("missing"));
+    }
+
+
+    @Test
+    public void testDensityPyramidFindsSmallShapesAwayFromOrigin() {
+        Clevis dots = new Clevis(new DensityPyramid());
+        dots.circle("dot", 5, 5, 0.1);
+        dots.circle("far", -3000.5, 7000.25, 0.05);
+        assertEquals("dot", dots.shapeAt(5, 5));
+        assertEquals("far", dots.shapeAt(-3000.5, 7000.25));
+
+        // Cells of the top levels hold the shapes near the origin, not 2^32 times further
+        DensityPyramid pyramid = new DensityPyramid();
+        Circle dot = new Circle("dot", 0, 5, 5, 0.1);
+        pyramid.insert(dot);
+        for (int level = 20; level <= DensityPyramid.MAX_LEVEL; level++) {
+            List<double[]> cells = new ArrayList<>();
+            pyramid.query(level, -1e12, -1e12, 1e12, 1e12, new ArrayList<>(),
+                    (x, y, side, count) -> cells.add(new double[] {x, y, side, count}));
+            assertEquals(1, cells.size());
+            double[] cell = cells.get(0);
+            assertTrue(cell[0] <= 5 && cell[0] + cell[2] > 5 && cell[1] <= 5 && cell[1] + cell[2] > 5);
+            assertEquals(1.0, cell[3], 0);
+        }
+
+        // A tiny shape whose cell is outside the int range is still found
+        Circle tiny = new Circle("tiny", 1, 1e8, 1e8, 0.005);
+        pyramid.insert(tiny);
+        pyramid.insert(new Rectangle("big", 2, 1e8 - 50, 1e8 - 50, 40, 40));
+        List<Shape> found = new ArrayList<>();
+        pyramid.search(1e8 - 1, 1e8 - 1, 1e8 + 1, 1e8 + 1, found);
+        assertEquals(Arrays.asList(tiny), found);
+        tiny.translate(-1e8, -1e8);
+        pyramid.update(tiny);
+        found.clear();
+        pyramid.search(-1, -1, 1, 1, found);
+        assertEquals(Arrays.asList(tiny), found);
+        assertTrue(pyramid.remove(tiny));
+        assertEquals(2, pyramid.size());
+    }
+
+
+    @Test
+    public void testInsertAllRejectsShapeTwiceInBatch() {
+        for (SpatialIndex index : Arrays.<SpatialIndex>asList(new RTree(), new SpatialHashGrid(4), new DensityPyramid())) {
+            Circle c1 = new Circle("c1", 0, 0, 0, 1);
+            Square s1 = new Square("s1", 1, 5, 5, 1);
+            assertThrows(IllegalArgumentException.class, () -> index.insertAll(Arrays.asList(c1, s1, c1)));
+            assertEquals(0, index.size());
+            index.insertAll(Arrays.asList(c1, s1));
+            assertEquals(2, index.size());
+            assertTrue(index.remove(c1));
+            assertTrue(index.remove(s1));
+            assertEquals(0, index.size());
+        }
+    }
+
+
+    @Test
+    public void testIntersectAllFindsPairsFinerThanFloat() {
+        // Far from the origin the boxes' left edges round to the same float
+        double base = 1e8;
+        clevis.square("a", base + 0.5, 0, 0.25);
+        clevis.square("b", base + 0.25, 0, 0.1);
+        clevis.square("c", base + 0.3, 0, 0.5);
+        clevis.line("d", base + 0.8, 0, base + 0.8, 1);
+        clevis.square("e", base - 0.2, 0, 0.45);
+
+        List<String> found = new ArrayList<>();
+        for (IntersectionPair pair : clevis.intersectAll()) {
+            found.add(pair.first + " " + pair.second);
+        }
+        List<String> expected = new ArrayList<>();
+        List<Shape> top = new ArrayList<>(clevis.drawOrder);
+        for (int i = 0; i < top.size(); i++) {
+            for (int j = i + 1; j < top.size(); j++) {
+                if (clevis.intersect(top.get(i).name(), top.get(j).name())) {
+                    expected.add(top.get(i).name() + " " + top.get(j).name());
+                }
+            }
+        }
+        Collections.sort(found);
+        Collections.sort(expected);
+        assertEquals(expected, found);
+        assertEquals(4, found.size());
     }
+}